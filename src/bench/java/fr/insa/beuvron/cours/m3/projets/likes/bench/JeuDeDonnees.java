@@ -0,0 +1,79 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.bench;
+
+import fr.insa.beuvron.cours.m3.projets.likes.model.GenerateurDonnees;
+import fr.insa.beuvron.cours.m3.projets.likes.model.GestionBdD;
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.SQLException;
+
+/**
+ * Création d'une base H2 en mémoire remplie par {@link GenerateurDonnees},
+ * commune aux benchmarks.
+ *
+ * @author francois
+ */
+public class JeuDeDonnees {
+
+    /**
+     * graine fixe : les mêmes paramètres donnent toujours les mêmes données.
+     */
+    public static final long GRAINE = 42;
+
+    private static int compteur = 0;
+
+    private final ConnectionSGBD connSGBD;
+    private final int[] ids;
+
+    /**
+     * @param nbrUtilisateurs nombre d'utilisateurs créés
+     * @param degreMoyen nombre moyen d'utilisateurs appréciés
+     * @param distribution distribution des degrés
+     */
+    public JeuDeDonnees(int nbrUtilisateurs, int degreMoyen,
+            GenerateurDonnees.Distribution distribution) throws SQLException {
+        // une base différente par jeu de données
+        String nomBase = "bench" + (compteur++);
+        this.connSGBD = ConnectionSGBD.connect(ConnectionSGBD.SGBDConnus.H2InMemory,
+                "", 0, nomBase, "", "");
+        GestionBdD.razBdD(this.connSGBD);
+        GenerateurDonnees.Progression rien = (etape, fait, total) -> {
+        };
+        this.ids = GenerateurDonnees.creeUtilisateurs(this.connSGBD, "u", nbrUtilisateurs,
+                GenerateurDonnees.TAILLE_TRANSACTION, rien);
+        GenerateurDonnees.creeApprecies(this.connSGBD, this.ids, distribution, degreMoyen,
+                GRAINE, GenerateurDonnees.TAILLE_TRANSACTION, rien);
+    }
+
+    public ConnectionSGBD getConnSGBD() {
+        return connSGBD;
+    }
+
+    /**
+     * @return les ids des utilisateurs créés
+     */
+    public int[] getIds() {
+        return ids;
+    }
+
+    public void ferme() throws SQLException {
+        this.connSGBD.close();
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.bench;
+
+import fr.insa.beuvron.cours.m3.projets.likes.model.Apprecie;
+import fr.insa.beuvron.cours.m3.projets.likes.model.GenerateurDonnees;
+import fr.insa.beuvron.cours.m3.projets.likes.model.GrapheApprecie;
+import fr.insa.beuvron.cours.m3.projets.likes.model.Utilisateur;
+import fr.insa.beuvron.cours.m3.projets.likes.model.UtilisateurResume;
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks des requêtes du modèle sur la relation apprecie : requêtes sql
+ * (l'index {@link GrapheApprecie} n'est pas associé à la base), et index
+ * mémoire pour amisGraphe.
+ *
+ * @author francois
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModeleBench {
+
+    /**
+     * nombre d'utilisateurs dont on fait tourner les requêtes.
+     */
+    private static final int NBR_CIBLES = 100;
+
+    @Param({"1000", "10000", "100000"})
+    public int nbrUtilisateurs;
+
+    @Param({"20"})
+    public int degreMoyen;
+
+    @Param({"PUISSANCE"})
+    public GenerateurDonnees.Distribution distribution;
+
+    private JeuDeDonnees donnees;
+    private ConnectionSGBD connSGBD;
+    private GrapheApprecie graphe;
+    private Utilisateur[] cibles;
+    private int courant;
+
+    private Utilisateur modifie;
+    private List<Utilisateur> apprecieA;
+    private List<Utilisateur> apprecieB;
+    private boolean versA;
+
+    @Setup(Level.Trial)
+    public void prepare() throws SQLException {
+        this.donnees = new JeuDeDonnees(this.nbrUtilisateurs, this.degreMoyen, this.distribution);
+        this.connSGBD = this.donnees.getConnSGBD();
+        // l'index est interrogé directement par amisGraphe : associé à la
+        // base, il servirait aussi aux autres benchmarks, qui mesurent les
+        // requêtes sql
+        this.graphe = GrapheApprecie.charge(this.connSGBD);
+        this.connSGBD.setExtension(GrapheApprecie.class, null);
+        int[] ids = this.donnees.getIds();
+        this.cibles = new Utilisateur[NBR_CIBLES];
+        for (int i = 0; i < NBR_CIBLES; i++) {
+            // logins u1 ... un créés par JeuDeDonnees
+            int num = 1 + (int) ((long) i * ids.length / NBR_CIBLES);
+            this.cibles[i] = Utilisateur.login(this.connSGBD, "u" + num, "pass").get();
+        }
+        // deux listes de 2 * degreMoyen utilisateurs qui se recouvrent à moitié
+        List<Utilisateur> tous = Utilisateur.tousLesUtilisateurs(this.connSGBD);
+        this.modifie = this.cibles[0];
+        this.apprecieA = new ArrayList<>(tous.subList(1, 1 + 2 * this.degreMoyen));
+        this.apprecieB = new ArrayList<>(tous.subList(1 + this.degreMoyen, 1 + 3 * this.degreMoyen));
+    }
+
+    @TearDown(Level.Trial)
+    public void termine() throws SQLException {
+        this.donnees.ferme();
+    }
+
+    private Utilisateur suivant() {
+        this.courant = (this.courant + 1) % NBR_CIBLES;
+        return this.cibles[this.courant];
+    }
+
+    @Benchmark
+    public List<Utilisateur> amisSQL() throws SQLException {
+        return this.suivant().amis(this.connSGBD);
+    }
+
+    @Benchmark
+    public int[] amisGraphe() {
+        return this.graphe.amis(this.suivant().getId());
+    }
+
+    @Benchmark
+    public List<Utilisateur> apprecieSQL() throws SQLException {
+        return this.suivant().apprecie(this.connSGBD);
+    }
+
+    @Benchmark
+    public List<Utilisateur> appreciePar() throws SQLException {
+        return this.suivant().appreciePar(this.connSGBD);
+    }
+
+    @Benchmark
+    public List<UtilisateurResume> apprecieResumes() throws SQLException {
+        return UtilisateurResume.apprecie(this.connSGBD, this.suivant().getId());
+    }
+
+    @Benchmark
+    public int[] apprecieIds() throws SQLException {
+        return Apprecie.apprecies(this.connSGBD, this.suivant().getId());
+    }
+
+    /**
+     * alterne entre deux listes : chaque appel ajoute et supprime degreMoyen
+     * couples.
+     */
+    @Benchmark
+    public void saveApprecies() throws SQLException {
+        this.versA = !this.versA;
+        this.modifie.saveApprecies(this.connSGBD, this.versA ? this.apprecieA : this.apprecieB);
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.bench;
+
+import fr.insa.beuvron.cours.m3.projets.likes.model.GenerateurDonnees;
+import fr.insa.beuvron.utils.StringFormatException;
+import fr.insa.beuvron.utils.StringUtil;
+import fr.insa.beuvron.utils.database.ResultSetUtils;
+import fr.insa.beuvron.utils.matrice.MatriceToText;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks des utilitaires de formatage et de (dé)codage.
+ *
+ * @author francois
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UtilsBench {
+
+    /**
+     * nombre de lignes (utilisateurs, lignes csv, lignes de matrice).
+     */
+    @Param({"100", "10000"})
+    public int nbrLignes;
+
+    private JeuDeDonnees donnees;
+    private PreparedStatement selectUtilisateurs;
+    private List<String> lignesCSV;
+    private List<List<String>> matrice;
+
+    @Setup
+    public void prepare() throws SQLException {
+        this.donnees = new JeuDeDonnees(this.nbrLignes, 0, GenerateurDonnees.Distribution.CONSTANTE);
+        this.selectUtilisateurs = this.donnees.getConnSGBD().getCon().prepareStatement(
+                "select id,login,password,description,idrole from utilisateur");
+        Random rand = new Random(JeuDeDonnees.GRAINE);
+        this.lignesCSV = new ArrayList<>();
+        this.matrice = new ArrayList<>();
+        for (int i = 0; i < this.nbrLignes; i++) {
+            List<String> items = new ArrayList<>();
+            for (int j = 0; j < 5; j++) {
+                // quelques séparateurs et caractères d'échappement à coder
+                items.add("val" + rand.nextInt(100000) + (rand.nextInt(4) == 0 ? ";/x" : ""));
+            }
+            this.lignesCSV.add(StringUtil.encodeEscapedCSV(items, ';', '/'));
+            this.matrice.add(items);
+        }
+    }
+
+    @TearDown
+    public void termine() throws SQLException {
+        this.selectUtilisateurs.close();
+        this.donnees.ferme();
+    }
+
+    @Benchmark
+    public String formatResultSetAsTxt() throws SQLException {
+        return ResultSetUtils.formatResultSetAsTxt(this.selectUtilisateurs.executeQuery());
+    }
+
+    @Benchmark
+    public long formatResultSetAsTxtFlux() throws SQLException, IOException {
+        return ResultSetUtils.formatResultSetAsTxt(this.selectUtilisateurs.executeQuery(),
+                Writer.nullWriter(), 1000);
+    }
+
+    @Benchmark
+    public int decodeEscapedCSV() throws StringFormatException {
+        int res = 0;
+        for (String ligne : this.lignesCSV) {
+            res = res + StringUtil.decodeEscapedCSV(ligne, ';', '/').size();
+        }
+        return res;
+    }
+
+    @Benchmark
+    public String formatMat() {
+        return MatriceToText.formatMat(this.matrice, true);
+    }
+
+}
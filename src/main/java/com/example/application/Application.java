@@ -1,6 +1,7 @@
 package com.example.application;
 
 import com.vaadin.flow.component.page.AppShellConfigurator;
+import com.vaadin.flow.component.page.Push;
 import com.vaadin.flow.theme.Theme;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -11,8 +12,12 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
  * Use the @PWA annotation make the application installable on phones, tablets
  * and some desktop browsers.
  *
+ * Server push lets views update the page when an asynchronous query (see
+ * {@link fr.insa.beuvron.cours.m3.projets.likes.model.ModeleAsync}) completes.
+ *
  */
 @SpringBootApplication
+@Push
 @Theme(value = "mytodo")
 public class Application implements AppShellConfigurator {
 
@@ -0,0 +1,32 @@
+package com.example.application;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.SQLException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * The database used by the views : a pool of connections configured by the
+ * likes.bdd.* properties (see application.properties).
+ *
+ * With min = 0, no connection is opened before the first request, so the
+ * application starts even if the database is not available yet.
+ */
+@Configuration
+public class BdDConfig {
+
+    @Bean(destroyMethod = "close")
+    public ConnectionSGBD connectionSGBD(
+            @Value("${likes.bdd.sgbd:MARIADB}") ConnectionSGBD.SGBDConnus sgbd,
+            @Value("${likes.bdd.host:localhost}") String host,
+            @Value("${likes.bdd.port:3306}") int port,
+            @Value("${likes.bdd.base:test}") String base,
+            @Value("${likes.bdd.user:test}") String user,
+            @Value("${likes.bdd.pass:pass}") String pass,
+            @Value("${likes.bdd.pool.min:0}") int min,
+            @Value("${likes.bdd.pool.max:10}") int max) throws SQLException {
+        return ConnectionSGBD.pool(sgbd, host, port, base, user, pass, min, max);
+    }
+
+}
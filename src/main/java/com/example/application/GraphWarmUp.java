@@ -0,0 +1,72 @@
+package com.example.application;
+
+import fr.insa.beuvron.cours.m3.projets.likes.model.InstantaneGraphe;
+import fr.insa.beuvron.cours.m3.projets.likes.model.JournalApprecie;
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Loads the in-memory index of the likes at startup, from the snapshot file
+ * (see {@link InstantaneGraphe}) instead of the whole apprecie table, and
+ * rewrites the snapshot periodically (and when the database is closed).
+ *
+ * Configured by the likes.journal.* and likes.graphe.* properties : the
+ * journal is opened if likes.journal.dossier is set, the index is loaded if
+ * likes.graphe.instantane is set, and nothing is done if both are empty. The
+ * loading runs in its own thread once the application is ready : the views
+ * work meanwhile, with the database only.
+ */
+@Component
+public class GraphWarmUp {
+
+    private static final Logger LOGGER = Logger.getLogger(GraphWarmUp.class.getName());
+
+    private final ConnectionSGBD connSGBD;
+    private final String journal;
+    private final String instantane;
+    private final long periode;
+
+    public GraphWarmUp(ConnectionSGBD connSGBD,
+            @Value("${likes.journal.dossier:}") String journal,
+            @Value("${likes.graphe.instantane:}") String instantane,
+            @Value("${likes.graphe.instantane.periode:600}") long periode) {
+        this.connSGBD = connSGBD;
+        this.journal = journal;
+        this.instantane = instantane;
+        this.periode = periode;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (this.instantane.isBlank() && this.journal.isBlank()) {
+            return;
+        }
+        Thread t = new Thread(this::load, "graph-warm-up");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void load() {
+        try {
+            if (!this.journal.isBlank()) {
+                JournalApprecie.ouvre(this.connSGBD, Paths.get(this.journal));
+            }
+            if (!this.instantane.isBlank()) {
+                InstantaneGraphe.Chargement res = InstantaneGraphe.demarre(this.connSGBD, Paths.get(this.instantane));
+                LOGGER.info(res.toString());
+                InstantaneGraphe.Periodique.demarre(this.connSGBD, Paths.get(this.instantane), this.periode);
+            }
+        } catch (IOException | SQLException ex) {
+            LOGGER.log(Level.WARNING, "in-memory index not loaded", ex);
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.example.application.views.main;
 
+import com.example.application.views.utilisateurs.UtilisateursView;
 import com.vaadin.flow.component.Key;
 import com.vaadin.flow.component.button.Button;
 import com.vaadin.flow.component.notification.Notification;
@@ -7,6 +8,7 @@ import com.vaadin.flow.component.orderedlayout.HorizontalLayout;
 import com.vaadin.flow.component.textfield.TextField;
 import com.vaadin.flow.router.PageTitle;
 import com.vaadin.flow.router.Route;
+import com.vaadin.flow.router.RouterLink;
 
 @PageTitle("Main")
 @Route(value = "")
@@ -26,7 +28,7 @@ public class MainView extends HorizontalLayout {
         setMargin(true);
         setVerticalComponentAlignment(Alignment.END, name, sayHello);
 
-        add(name, sayHello);
+        add(name, sayHello, new RouterLink("Utilisateurs", UtilisateursView.class));
     }
 
 }
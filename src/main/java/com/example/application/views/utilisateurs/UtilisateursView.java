@@ -0,0 +1,186 @@
+package com.example.application.views.utilisateurs;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.grid.Grid;
+import com.vaadin.flow.component.html.Span;
+import com.vaadin.flow.component.notification.Notification;
+import com.vaadin.flow.component.orderedlayout.VerticalLayout;
+import com.vaadin.flow.component.textfield.TextField;
+import com.vaadin.flow.data.provider.Query;
+import com.vaadin.flow.data.provider.QuerySortOrder;
+import com.vaadin.flow.data.provider.SortDirection;
+import com.vaadin.flow.data.value.ValueChangeMode;
+import com.vaadin.flow.router.PageTitle;
+import com.vaadin.flow.router.Route;
+import fr.insa.beuvron.cours.m3.projets.likes.model.ModeleAsync;
+import fr.insa.beuvron.cours.m3.projets.likes.model.Profil;
+import fr.insa.beuvron.cours.m3.projets.likes.model.Role;
+import fr.insa.beuvron.cours.m3.projets.likes.model.Utilisateur;
+import fr.insa.beuvron.cours.m3.projets.likes.model.UtilisateurResume;
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Directory of the users, in a lazy grid.
+ *
+ * Only the rows displayed are loaded, page by page, with keyset paging (see
+ * {@link Utilisateur#page(fr.insa.beuvron.utils.database.ConnectionSGBD, fr.insa.beuvron.cours.m3.projets.likes.model.Utilisateur.Ordre, java.lang.Object, int, java.lang.String)}).
+ * The grid asks for rows by offset : we remember the key of the last user
+ * of each page loaded, so that the next page starts directly from that key.
+ * Sorting (id or login) and filtering (login prefix) are done by the
+ * database, and the likes counts are read by the same query.
+ *
+ * When a user is selected, its liked users, likers and friends are loaded
+ * in a single query (see {@link Profil}), asynchronously (see
+ * {@link ModeleAsync}), and shown below the grid without blocking the UI
+ * thread.
+ */
+@PageTitle("Utilisateurs")
+@Route(value = "utilisateurs")
+public class UtilisateursView extends VerticalLayout {
+
+    /**
+     * a row of the grid : the user and its likes counts.
+     */
+    private static class Ligne {
+
+        private final Utilisateur utilisateur;
+        private final String role;
+        private final int nbrApprecie;
+        private final int nbrAppreciePar;
+
+        private Ligne(Utilisateur utilisateur, String role, int nbrApprecie, int nbrAppreciePar) {
+            this.utilisateur = utilisateur;
+            this.role = role;
+            this.nbrApprecie = nbrApprecie;
+            this.nbrAppreciePar = nbrAppreciePar;
+        }
+    }
+
+    private final ConnectionSGBD connSGBD;
+
+    private final TextField filtre;
+    private final Grid<Ligne> grid;
+    private final Span details;
+
+    /**
+     * offset in the current order ==> key of the user just before this
+     * offset (null for offset 0).
+     */
+    private final TreeMap<Integer, Object> curseurs = new TreeMap<>();
+    private Utilisateur.Ordre ordreCourant;
+    private String filtreCourant;
+
+    public UtilisateursView(ConnectionSGBD connSGBD) {
+        this.connSGBD = connSGBD;
+
+        this.grid = new Grid<>();
+        this.grid.addColumn(l -> l.utilisateur.getId()).setHeader("id")
+                .setKey("id").setSortProperty("id").setAutoWidth(true);
+        this.grid.addColumn(l -> l.utilisateur.getLogin()).setHeader("login")
+                .setKey("login").setSortProperty("login").setAutoWidth(true);
+        this.grid.addColumn(l -> l.utilisateur.getDescription()).setHeader("description");
+        this.grid.addColumn(l -> l.role).setHeader("rôle").setAutoWidth(true);
+        this.grid.addColumn(l -> l.nbrApprecie).setHeader("apprécie").setAutoWidth(true);
+        this.grid.addColumn(l -> l.nbrAppreciePar).setHeader("apprécié par").setAutoWidth(true);
+        this.grid.setItems(this::charge);
+        this.grid.setSizeFull();
+        this.grid.asSingleSelect().addValueChangeListener(e -> this.afficheDetails(e.getValue()));
+
+        this.details = new Span();
+
+        this.filtre = new TextField("Login commençant par");
+        this.filtre.setClearButtonVisible(true);
+        this.filtre.setValueChangeMode(ValueChangeMode.LAZY);
+        this.filtre.addValueChangeListener(e -> this.grid.getDataProvider().refreshAll());
+
+        this.setSizeFull();
+        this.add(this.filtre, this.grid, this.details);
+    }
+
+    private static String logins(List<UtilisateurResume> us) {
+        return us.isEmpty() ? "-" : us.stream().map(UtilisateurResume::getLogin).collect(Collectors.joining(", "));
+    }
+
+    private void afficheDetails(Ligne ligne) {
+        if (ligne == null) {
+            this.details.setText("");
+            return;
+        }
+        Utilisateur u = ligne.utilisateur;
+        this.details.setText("chargement de " + u.getLogin() + " ...");
+        UI ui = UI.getCurrent();
+        ModeleAsync.get(this.connSGBD).profil(u).whenComplete((profil, ex) -> ui.access(() -> {
+            if (ligne != this.grid.asSingleSelect().getValue()) {
+                // another user has been selected meanwhile
+                return;
+            }
+            if (ex != null) {
+                this.details.setText("Problème d'accès à la base : " + ex.getCause().getLocalizedMessage());
+            } else {
+                this.details.setText(u.getLogin() + " apprécie : " + logins(profil.getApprecie())
+                        + " | apprécié par : " + logins(profil.getAppreciePar())
+                        + " | amis : " + logins(profil.getAmis()));
+            }
+        }));
+    }
+
+    private static Utilisateur.Ordre ordre(List<QuerySortOrder> tris) {
+        if (tris.isEmpty()) {
+            return Utilisateur.Ordre.ID_CROISSANT;
+        }
+        QuerySortOrder tri = tris.get(0);
+        boolean croissant = tri.getDirection() == SortDirection.ASCENDING;
+        if (tri.getSorted().equals("login")) {
+            return croissant ? Utilisateur.Ordre.LOGIN_CROISSANT : Utilisateur.Ordre.LOGIN_DECROISSANT;
+        } else {
+            return croissant ? Utilisateur.Ordre.ID_CROISSANT : Utilisateur.Ordre.ID_DECROISSANT;
+        }
+    }
+
+    private Stream<Ligne> charge(Query<Ligne, Void> query) {
+        Utilisateur.Ordre ordre = ordre(query.getSortOrders());
+        String prefixe = this.filtre.getValue();
+        if (ordre != this.ordreCourant || !prefixe.equals(this.filtreCourant)) {
+            // the keys remembered are only valid for one order and one filter
+            this.curseurs.clear();
+            this.curseurs.put(0, null);
+            this.ordreCourant = ordre;
+            this.filtreCourant = prefixe;
+        }
+        int offset = query.getOffset();
+        int limit = query.getLimit();
+        // usually, the page asked starts just after a page already loaded ;
+        // otherwise we start from the nearest known key and skip some rows
+        Map.Entry<Integer, Object> depart = this.curseurs.floorEntry(offset);
+        int aSauter = offset - depart.getKey();
+        try {
+            // the counts come with the page : no need to load the counters of
+            // every user on the UI thread
+            List<Utilisateur.AvecCompteurs> us = Utilisateur.pageAvecCompteurs(this.connSGBD, ordre,
+                    depart.getValue(), aSauter + limit, prefixe);
+            if (us.size() == aSauter + limit) {
+                this.curseurs.put(offset + limit, ordre.cle(us.get(us.size() - 1).getUtilisateur()));
+            }
+            us = us.subList(Math.min(aSauter, us.size()), us.size());
+            List<Ligne> res = new ArrayList<>(us.size());
+            for (Utilisateur.AvecCompteurs uc : us) {
+                Utilisateur u = uc.getUtilisateur();
+                Optional<Role> role = u.getRole(this.connSGBD);
+                res.add(new Ligne(u, role.map(Role::getNom).orElse(""), uc.getNbrApprecie(), uc.getNbrAppreciePar()));
+            }
+            return res.stream();
+        } catch (SQLException ex) {
+            Notification.show("Problème d'accès à la base : " + ex.getLocalizedMessage());
+            return Stream.empty();
+        }
+    }
+
+}
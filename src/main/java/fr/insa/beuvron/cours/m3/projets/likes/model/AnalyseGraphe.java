@@ -0,0 +1,407 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import fr.insa.beuvron.utils.database.InsertionParLots;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Statistiques globales sur la relation apprecie, calculées par lot :
+ * distribution des degrés, PageRank (popularité), composantes faiblement
+ * connexes (groupes d'utilisateurs reliés).
+ * <p>
+ * Le graphe est lu une fois en mémoire au format CSR
+ * ({@link GrapheCSR#lit}, ou l'instantané de {@link GrapheApprecie} s'il est
+ * chargé) ; tous les calculs sont ensuite faits en parallèle sur tous les
+ * processeurs, sans accès à la base. Les résultats par utilisateur sont
+ * écrits dans la table statistiques_utilisateur (voir
+ * {@link GestionBdD#creeSchema}), qui est entièrement remplacée à chaque
+ * analyse.
+ * </p>
+ *
+ * @author francois
+ */
+public class AnalyseGraphe {
+
+    public static final double AMORTISSEMENT = 0.85;
+
+    /**
+     * arrêt du PageRank quand la somme des variations est inférieure.
+     */
+    public static final double PRECISION = 1e-9;
+
+    public static final int MAX_ITERATIONS = 100;
+
+    private final GrapheCSR graphe;
+    /**
+     * taille des tableaux par utilisateur : 1 + le plus grand id.
+     */
+    private final int taille;
+    /**
+     * existe[id] : l'id est celui d'un utilisateur.
+     */
+    private final boolean[] existe;
+    private final int nbrUtilisateurs;
+
+    private int[] histoApprecie;
+    private int[] histoAppreciePar;
+    private double[] pagerank;
+    private int iterations;
+    private int[] composante;
+    private int nbrComposantes;
+    private int tailleMaxComposante;
+
+    private AnalyseGraphe(GrapheCSR graphe, boolean[] existe) {
+        this.graphe = graphe;
+        this.existe = existe;
+        this.taille = existe.length;
+        this.nbrUtilisateurs = (int) IntStream.range(0, this.taille).filter(u -> existe[u]).count();
+    }
+
+    /**
+     * @param graphe la relation apprecie
+     * @param ids les ids des utilisateurs (y compris ceux qui n'apprécient
+     * personne et ne sont appréciés par personne)
+     * @return l'analyse complète
+     */
+    public static AnalyseGraphe calcule(GrapheCSR graphe, int[] ids) {
+        int taille = graphe.getTaille();
+        for (int id : ids) {
+            taille = Math.max(taille, id + 1);
+        }
+        boolean[] existe = new boolean[taille];
+        for (int id : ids) {
+            existe[id] = true;
+        }
+        // un couple dont un utilisateur n'existe pas (base sans clés étrangères)
+        // est gardé : ses extrémités sont comptées comme utilisateurs
+        for (int u = 0; u < graphe.getTaille(); u++) {
+            if (graphe.nbrApprecie(u) > 0 || graphe.nbrAppreciePar(u) > 0) {
+                existe[u] = true;
+            }
+        }
+        AnalyseGraphe res = new AnalyseGraphe(graphe, existe);
+        res.histoApprecie = res.histogramme(graphe::nbrApprecie);
+        res.histoAppreciePar = res.histogramme(graphe::nbrAppreciePar);
+        res.calculePageRank();
+        res.calculeComposantes();
+        return res;
+    }
+
+    /**
+     * lit le graphe et les ids des utilisateurs, puis calcule l'analyse.
+     */
+    public static AnalyseGraphe calcule(ConnectionSGBD connSGBD) throws SQLException {
+        GrapheApprecie charge = GrapheApprecie.get(connSGBD);
+        GrapheCSR graphe = charge != null ? charge.instantane() : GrapheCSR.lit(connSGBD);
+        return calcule(graphe, litIds(connSGBD));
+    }
+
+    private static int[] litIds(ConnectionSGBD connSGBD) throws SQLException {
+        int[] res = new int[1024];
+        int n = 0;
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            // postgresql ne lit en flux qu'en dehors du mode autocommit
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                connSGBD.getSgbd().configureLectureEnFlux(st);
+                ResultSet rs = st.executeQuery("select id from utilisateur");
+                while (rs.next()) {
+                    if (n == res.length) {
+                        res = Arrays.copyOf(res, n * 2);
+                    }
+                    res[n++] = rs.getInt(1);
+                }
+            } finally {
+                // lecture seule : rien à valider
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    /**
+     * @return h[d] = nombre d'utilisateurs de degré d
+     */
+    private int[] histogramme(IntUnaryOperator degre) {
+        int max = IntStream.range(0, this.taille).parallel().map(degre).max().orElse(0);
+        // un histogramme par thread, additionnés à la fin
+        return IntStream.range(0, this.taille).parallel().filter(u -> this.existe[u])
+                .collect(() -> new int[max + 1],
+                        (h, u) -> h[degre.applyAsInt(u)]++,
+                        (h1, h2) -> Arrays.setAll(h1, d -> h1[d] + h2[d]));
+    }
+
+    /**
+     * PageRank "tiré" : chaque utilisateur calcule son nouveau rang à partir
+     * de ses entrants. Chaque case n'est écrite que par un seul thread : pas
+     * de synchronisation. Le rang des utilisateurs qui n'apprécient personne
+     * est redistribué à tous.
+     */
+    private void calculePageRank() {
+        int n = this.taille;
+        double nbr = Math.max(1, this.nbrUtilisateurs);
+        int[] debutsE = this.graphe.getDebutsEntrants();
+        int[] entrants = this.graphe.getEntrants();
+        double[] rang = new double[n];
+        double[] suivant = new double[n];
+        // rang / degré sortant, pour n'avoir qu'une addition par arc
+        double[] part = new double[n];
+        IntStream.range(0, n).parallel().forEach(u -> rang[u] = this.existe[u] ? 1 / nbr : 0);
+        int it = 0;
+        double variation = Double.MAX_VALUE;
+        while (it < MAX_ITERATIONS && variation > PRECISION) {
+            IntStream.range(0, n).parallel().forEach(u -> {
+                int deg = this.graphe.nbrApprecie(u);
+                part[u] = deg > 0 ? rang[u] / deg : 0;
+            });
+            double sansSortants = IntStream.range(0, n).parallel()
+                    .filter(u -> this.existe[u] && this.graphe.nbrApprecie(u) == 0)
+                    .mapToDouble(u -> rang[u]).sum();
+            double base = (1 - AMORTISSEMENT) / nbr + AMORTISSEMENT * sansSortants / nbr;
+            IntStream.range(0, n).parallel().forEach(v -> {
+                if (this.existe[v]) {
+                    double s = 0;
+                    if (v < this.graphe.getTaille()) {
+                        for (int i = debutsE[v]; i < debutsE[v + 1]; i++) {
+                            s = s + part[entrants[i]];
+                        }
+                    }
+                    suivant[v] = base + AMORTISSEMENT * s;
+                }
+            });
+            variation = IntStream.range(0, n).parallel().mapToDouble(u -> Math.abs(suivant[u] - rang[u])).sum();
+            System.arraycopy(suivant, 0, rang, 0, n);
+            it++;
+        }
+        this.pagerank = rang;
+        this.iterations = it;
+    }
+
+    /**
+     * union-find concurrent (sans verrou) : les racines ne sont modifiées que
+     * par compareAndSet, la plus grande racine étant toujours rattachée à la
+     * plus petite. La racine d'une composante est donc son plus petit id.
+     */
+    private static int racine(AtomicIntegerArray parent, int u) {
+        int p = parent.get(u);
+        while (p != u) {
+            int gp = parent.get(p);
+            // compression par moitié : sans danger si un autre thread l'a déjà fait
+            parent.compareAndSet(u, p, gp);
+            u = gp;
+            p = parent.get(u);
+        }
+        return u;
+    }
+
+    private static void union(AtomicIntegerArray parent, int u, int v) {
+        while (true) {
+            int ru = racine(parent, u);
+            int rv = racine(parent, v);
+            if (ru == rv) {
+                return;
+            }
+            int grand = Math.max(ru, rv);
+            int petit = Math.min(ru, rv);
+            if (parent.compareAndSet(grand, grand, petit)) {
+                return;
+            }
+            // grand a été rattaché entre temps par un autre thread : on recommence
+        }
+    }
+
+    private void calculeComposantes() {
+        int n = this.taille;
+        AtomicIntegerArray parent = new AtomicIntegerArray(n);
+        for (int u = 0; u < n; u++) {
+            parent.set(u, u);
+        }
+        int[] debutsS = this.graphe.getDebutsSortants();
+        int[] sortants = this.graphe.getSortants();
+        IntStream.range(0, this.graphe.getTaille()).parallel().forEach(u -> {
+            for (int i = debutsS[u]; i < debutsS[u + 1]; i++) {
+                union(parent, u, sortants[i]);
+            }
+        });
+        int[] comp = new int[n];
+        IntStream.range(0, n).parallel().forEach(u -> comp[u] = racine(parent, u));
+        int[] tailles = new int[n];
+        for (int u = 0; u < n; u++) {
+            if (this.existe[u]) {
+                tailles[comp[u]]++;
+            }
+        }
+        int nbr = 0;
+        int max = 0;
+        for (int u = 0; u < n; u++) {
+            if (tailles[u] > 0) {
+                nbr++;
+                max = Math.max(max, tailles[u]);
+            }
+        }
+        this.composante = comp;
+        this.nbrComposantes = nbr;
+        this.tailleMaxComposante = max;
+    }
+
+    /**
+     * remplace le contenu de statistiques_utilisateur par les résultats de
+     * l'analyse (une seule transaction).
+     */
+    public void sauvegarde(ConnectionSGBD connSGBD) throws SQLException {
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate("delete from statistiques_utilisateur");
+                try (InsertionParLots ins = new InsertionParLots(connSGBD, "statistiques_utilisateur",
+                        "id", "nbr_apprecie", "nbr_apprecie_par", "pagerank", "composante")) {
+                    for (int u = 0; u < this.taille; u++) {
+                        if (this.existe[u]) {
+                            ins.ajoute(u, this.graphe.nbrApprecie(u), this.graphe.nbrAppreciePar(u),
+                                    this.pagerank[u], this.composante[u]);
+                        }
+                    }
+                }
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * @return les k utilisateurs de plus grand PageRank, du premier au
+     * dernier
+     */
+    public int[] plusPopulaires(int k) {
+        return IntStream.range(0, this.taille).filter(u -> this.existe[u]).boxed()
+                .sorted((u, v) -> Double.compare(this.pagerank[v], this.pagerank[u]))
+                .limit(k).mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * affiche un histogramme par tranches de puissances de 2 :
+     * [0], [1], [2..3], [4..7] ...
+     */
+    public static String formatHistogramme(int[] histo) {
+        StringBuilder res = new StringBuilder();
+        int debut = 0;
+        int fin = 0;
+        while (debut < histo.length) {
+            int nbr = 0;
+            for (int d = debut; d <= Math.min(fin, histo.length - 1); d++) {
+                nbr = nbr + histo[d];
+            }
+            if (nbr > 0) {
+                res.append(debut == fin ? "" + debut : debut + ".." + fin)
+                        .append(" : ").append(nbr).append("\n");
+            }
+            debut = fin + 1;
+            fin = 2 * fin + 1;
+        }
+        return res.toString();
+    }
+
+    public static void menuAnalyse(ConnectionSGBD connSGBD) throws SQLException {
+        long debut = System.currentTimeMillis();
+        AnalyseGraphe res = AnalyseGraphe.calcule(connSGBD);
+        long calcul = System.currentTimeMillis();
+        res.sauvegarde(connSGBD);
+        long fin = System.currentTimeMillis();
+        System.out.println(res.getNbrUtilisateurs() + " utilisateurs, " + res.getGraphe().getNbrArcs()
+                + " couples : analyse en " + (calcul - debut) + " ms, sauvegarde en "
+                + (fin - calcul) + " ms");
+        System.out.println("---- nombre d'utilisateurs appréciés (degré : nombre d'utilisateurs)");
+        System.out.print(formatHistogramme(res.getHistoApprecie()));
+        System.out.println("---- nombre d'utilisateurs qui apprécient");
+        System.out.print(formatHistogramme(res.getHistoAppreciePar()));
+        System.out.println("---- PageRank (" + res.getIterations() + " itérations), les plus populaires :");
+        int[] top = res.plusPopulaires(10);
+        for (Utilisateur u : Utilisateur.parIds(connSGBD, top)) {
+            System.out.println(u.getLogin() + " : " + res.getPagerank()[u.getId()]);
+        }
+        System.out.println("---- " + res.getNbrComposantes() + " composantes connexes, la plus grande : "
+                + res.getTailleMaxComposante() + " utilisateurs");
+    }
+
+    public GrapheCSR getGraphe() {
+        return graphe;
+    }
+
+    public int getNbrUtilisateurs() {
+        return nbrUtilisateurs;
+    }
+
+    /**
+     * @return h[d] = nombre d'utilisateurs qui apprécient d utilisateurs
+     */
+    public int[] getHistoApprecie() {
+        return histoApprecie;
+    }
+
+    /**
+     * @return h[d] = nombre d'utilisateurs appréciés par d utilisateurs
+     */
+    public int[] getHistoAppreciePar() {
+        return histoAppreciePar;
+    }
+
+    /**
+     * @return pagerank[id] (somme 1 sur les utilisateurs)
+     */
+    public double[] getPagerank() {
+        return pagerank;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return composante[id] = plus petit id de la composante faiblement
+     * connexe de l'utilisateur
+     */
+    public int[] getComposante() {
+        return composante;
+    }
+
+    public int getNbrComposantes() {
+        return nbrComposantes;
+    }
+
+    public int getTailleMaxComposante() {
+        return tailleMaxComposante;
+    }
+
+}
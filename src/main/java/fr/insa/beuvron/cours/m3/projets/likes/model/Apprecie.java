@@ -0,0 +1,627 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import fr.insa.beuvron.utils.database.InsertionParLots;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Accès en écriture à la relation apprecie (u1 apprecie u2).
+ * <p>
+ * Toutes les modifications de la table apprecie passent par
+ * {@link #appliqueDiff(fr.insa.beuvron.utils.database.ConnectionSGBD, int, fr.insa.beuvron.cours.m3.projets.likes.model.Apprecie.Diff)}
+ * qui n'envoie que les différences, par lots, et tient à jour dans la même
+ * transaction la table amitie (couples qui s'apprécient mutuellement, dans
+ * les deux sens) et les compteurs utilisateur.nb_apprecie et
+ * utilisateur.nb_apprecie_par. La transaction est validée par
+ * {@link #valide(fr.insa.beuvron.utils.database.ConnectionSGBD, int, fr.insa.beuvron.cours.m3.projets.likes.model.Apprecie.Diff)},
+ * qui met ensuite à jour les structures en mémoire ({@link GrapheApprecie},
+ * {@link CompteursApprecie}) et le journal ({@link JournalApprecie}).
+ * </p>
+ * <p>
+ * Le commit et la mise à jour des structures en mémoire se font sous le
+ * verrou {@link #verrouCommit} (partagé entre les écrivains), le chargement
+ * d'une structure depuis la base sous {@link #verrouChargement} (exclusif) :
+ * une structure chargée contient exactement les commits terminés avant son
+ * chargement, et reçoit tous les suivants.
+ * </p>
+ *
+ * @author francois
+ */
+public class Apprecie {
+
+    /**
+     * nombre maximum d'identificateurs dans un {@code u2 in (...)}.
+     */
+    private static final int TAILLE_MAX_IN = 500;
+
+    /**
+     * verrou des structures en mémoire dérivées de apprecie, un par base.
+     */
+    private static final class VerrouDerivees {
+
+        private final ReentrantReadWriteLock verrou = new ReentrantReadWriteLock();
+    }
+
+    private static ReentrantReadWriteLock verrouDerivees(ConnectionSGBD connSGBD) {
+        VerrouDerivees res = connSGBD.getExtension(VerrouDerivees.class);
+        if (res == null) {
+            synchronized (connSGBD) {
+                res = connSGBD.getExtension(VerrouDerivees.class);
+                if (res == null) {
+                    res = new VerrouDerivees();
+                    connSGBD.setExtension(VerrouDerivees.class, res);
+                }
+            }
+        }
+        return res.verrou;
+    }
+
+    /**
+     * à prendre avant la première écriture d'une transaction qui appelle
+     * {@link #appliqueDiff(fr.insa.beuvron.utils.database.ConnectionSGBD, int, fr.insa.beuvron.cours.m3.projets.likes.model.Apprecie.Diff)},
+     * et à garder jusqu'après les appels à
+     * {@link #apresCommit(fr.insa.beuvron.utils.database.ConnectionSGBD, int, fr.insa.beuvron.cours.m3.projets.likes.model.Apprecie.Diff)}
+     * qui suivent le commit. Plusieurs écrivains peuvent le tenir en même
+     * temps. Un écrivain ne garde donc pas de ligne verrouillée dans la base
+     * en attendant le verrou : celui qui tient {@link #verrouChargement} peut
+     * lui-même modifier la base.
+     */
+    public static Lock verrouCommit(ConnectionSGBD connSGBD) {
+        return verrouDerivees(connSGBD).readLock();
+    }
+
+    /**
+     * à prendre pour (re)charger une structure dérivée depuis la base et
+     * l'associer à la base : aucun commit de
+     * {@link #appliqueDiff(fr.insa.beuvron.utils.database.ConnectionSGBD, int, fr.insa.beuvron.cours.m3.projets.likes.model.Apprecie.Diff)}
+     * n'a lieu pendant le chargement, et aucune transaction de ce type
+     * n'est en cours. La connection doit être empruntée avant de prendre le
+     * verrou (les écrivains qui attendent le verrou gardent la leur) : d'où
+     * l'emprunt en paramètre.
+     */
+    static Lock verrouChargement(ConnectionSGBD.Emprunt emp) {
+        return verrouDerivees(emp.getConnectionSGBD()).writeLock();
+    }
+
+    /**
+     * un ensemble de modifications de la relation apprecie pour un même u1.
+     */
+    public static class Diff {
+
+        private final int[] ajouts;
+        private final int[] suppressions;
+
+        public Diff(int[] ajouts, int[] suppressions) {
+            this.ajouts = ajouts;
+            this.suppressions = suppressions;
+        }
+
+        /**
+         * calcule les modifications pour passer de existants à voulus.
+         *
+         * @param existants les u2 actuellement appréciés
+         * @param voulus les u2 qui doivent être appréciés
+         */
+        public static Diff entre(int[] existants, int[] voulus) {
+            int[] ex = trieSansDoublons(existants);
+            int[] vo = trieSansDoublons(voulus);
+            return new Diff(difference(vo, ex), difference(ex, vo));
+        }
+
+        public boolean isVide() {
+            return this.ajouts.length == 0 && this.suppressions.length == 0;
+        }
+
+        /**
+         * @return les u2 à ajouter (triés)
+         */
+        public int[] getAjouts() {
+            return ajouts;
+        }
+
+        /**
+         * @return les u2 à supprimer (triés)
+         */
+        public int[] getSuppressions() {
+            return suppressions;
+        }
+
+        @Override
+        public String toString() {
+            return "Diff{" + "ajouts=" + Arrays.toString(ajouts) + ", suppressions=" + Arrays.toString(suppressions) + '}';
+        }
+    }
+
+    private static int[] trieSansDoublons(int[] t) {
+        int[] res = t.clone();
+        Arrays.sort(res);
+        int n = 0;
+        for (int i = 0; i < res.length; i++) {
+            if (i == 0 || res[i] != res[i - 1]) {
+                res[n++] = res[i];
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    /**
+     * a \ b pour deux tableaux triés sans doublons.
+     */
+    private static int[] difference(int[] a, int[] b) {
+        int[] res = new int[a.length];
+        int n = 0;
+        int j = 0;
+        for (int i = 0; i < a.length; i++) {
+            while (j < b.length && b[j] < a[i]) {
+                j++;
+            }
+            if (j >= b.length || b[j] != a[i]) {
+                res[n++] = a[i];
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    /**
+     * @return les identificateurs des utilisateurs appréciés par u1, lus
+     * dans la base (dans la transaction en cours s'il y en a une)
+     */
+    public static int[] apprecies(ConnectionSGBD connSGBD, int u1) throws SQLException {
+        return litIds(connSGBD, "select u2 from apprecie where u1 = ?", u1);
+    }
+
+    /**
+     * @return les identificateurs des utilisateurs qui apprécient u2, lus
+     * dans {@link GrapheApprecie} s'il est chargé, sinon dans l'index (u2,u1)
+     * sans accès à la table
+     */
+    public static int[] appreciateurs(ConnectionSGBD connSGBD, int u2) throws SQLException {
+        GrapheApprecie graphe = GrapheApprecie.get(connSGBD);
+        if (graphe != null) {
+            return graphe.appreciePar(u2);
+        }
+        return litIds(connSGBD, "select u1 from apprecie where u2 = ?", u2);
+    }
+
+    /**
+     * @return les identificateurs des amis de u, lus dans
+     * {@link GrapheApprecie} s'il est chargé, sinon dans la table amitie
+     */
+    public static int[] amis(ConnectionSGBD connSGBD, int u) throws SQLException {
+        GrapheApprecie graphe = GrapheApprecie.get(connSGBD);
+        if (graphe != null) {
+            return graphe.amis(u);
+        }
+        return litIds(connSGBD, "select u2 from amitie where u1 = ?", u);
+    }
+
+    /**
+     * @param sql un select d'une colonne entière, avec un paramètre
+     */
+    private static int[] litIds(ConnectionSGBD connSGBD, String sql, int param) throws SQLException {
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte();
+                PreparedStatement st = emp.prepare(sql)) {
+            st.setInt(1, param);
+            ResultSet res = st.executeQuery();
+            int[] ids = new int[16];
+            int n = 0;
+            while (res.next()) {
+                if (n == ids.length) {
+                    ids = Arrays.copyOf(ids, n * 2);
+                }
+                ids[n++] = res.getInt(1);
+            }
+            return Arrays.copyOf(ids, n);
+        }
+    }
+
+    /**
+     * nombre d'utilisateurs appréciés par chacun des utilisateurs ids, lu
+     * dans {@link CompteursApprecie} (chargés au premier appel) : ni requête,
+     * ni comptage des lignes de apprecie.
+     *
+     * @return res[i] = nombre d'utilisateurs appréciés par ids[i]
+     */
+    public static int[] nbrApprecie(ConnectionSGBD connSGBD, int[] ids) throws SQLException {
+        return CompteursApprecie.get(connSGBD).nbrApprecie(ids);
+    }
+
+    /**
+     * comme {@link #nbrApprecie(fr.insa.beuvron.utils.database.ConnectionSGBD, int[])}
+     * pour le nombre d'utilisateurs qui apprécient chacun des ids.
+     */
+    public static int[] nbrAppreciePar(ConnectionSGBD connSGBD, int[] ids) throws SQLException {
+        return CompteursApprecie.get(connSGBD).nbrAppreciePar(ids);
+    }
+
+    /**
+     * applique un diff pour u1, et tient à jour la table amitie : un ajout
+     * (u1,u2) crée l'amitié si u2 apprécie déjà u1, une suppression (u1,u2)
+     * supprime l'amitié dans les deux sens. Les compteurs nb_apprecie et
+     * nb_apprecie_par sont modifiés par incrément ({@code set n = n + ?}) :
+     * deux transactions concurrentes sur un même utilisateur ne perdent pas de
+     * mise à jour. Ne gère pas la transaction : doit être appelé pendant un
+     * emprunt, typiquement dans une transaction ouverte par l'appelant.
+     * <p>
+     * Les lignes utilisateur de u1 et des u2 du diff sont d'abord
+     * verrouillées (voir
+     * {@link #verrouilleUtilisateurs(fr.insa.beuvron.utils.database.ConnectionSGBD, int[])}) :
+     * deux transactions qui créent (u1,u2) et (u2,u1) en même temps
+     * s'exécutent l'une après l'autre, et la seconde voit le couple de la
+     * première (sinon aucune ne créerait l'amitié). De même, les ajouts sont
+     * comparés au contenu de la table une fois u1 verrouillé : deux
+     * transactions qui ajoutent le même couple n'insèrent qu'une ligne, même
+     * si leurs diffs ont été calculés avant.
+     * </p>
+     *
+     * @return le diff réellement appliqué (les ajouts de couples qui
+     * existaient déjà et les suppressions de couples qui n'existaient plus
+     * sont retirés), à passer à
+     * {@link #valide(fr.insa.beuvron.utils.database.ConnectionSGBD, int, fr.insa.beuvron.cours.m3.projets.likes.model.Apprecie.Diff)}
+     */
+    public static Diff appliqueDiff(ConnectionSGBD connSGBD, int u1, Diff diff) throws SQLException {
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            int[] concernes = new int[1 + diff.getAjouts().length + diff.getSuppressions().length];
+            concernes[0] = u1;
+            System.arraycopy(diff.getAjouts(), 0, concernes, 1, diff.getAjouts().length);
+            System.arraycopy(diff.getSuppressions(), 0, concernes, 1 + diff.getAjouts().length,
+                    diff.getSuppressions().length);
+            verrouilleUtilisateurs(connSGBD, concernes);
+            int[] ajouts = absents(connSGBD, u1, diff.getAjouts());
+            int[] supprimes = supprimeApprecie(connSGBD, u1, diff.getSuppressions());
+            supprime(conn, "amitie", "u1", u1, "u2", supprimes);
+            supprime(conn, "amitie", "u2", u1, "u1", supprimes);
+            try (InsertionParLots ins = new InsertionParLots(connSGBD, "apprecie", "u1", "u2")) {
+                for (int u2 : ajouts) {
+                    ins.ajoute(u1, u2);
+                }
+            }
+            int[] nouveauxAmis = reciproques(connSGBD, u1, ajouts);
+            try (InsertionParLots ins = new InsertionParLots(connSGBD, "amitie", "u1", "u2")) {
+                for (int u2 : nouveauxAmis) {
+                    ins.ajoute(u1, u2);
+                    ins.ajoute(u2, u1);
+                }
+            }
+            Diff res = new Diff(ajouts, supprimes);
+            int delta = res.getAjouts().length - res.getSuppressions().length;
+            if (delta != 0) {
+                try (PreparedStatement st = emp.prepare(
+                        "update utilisateur set nb_apprecie = nb_apprecie + ? where id = ?")) {
+                    st.setInt(1, delta);
+                    st.setInt(2, u1);
+                    st.executeUpdate();
+                }
+            }
+            incrementeAppreciePar(conn, 1, res.getAjouts());
+            incrementeAppreciePar(conn, -1, res.getSuppressions());
+            return res;
+        }
+    }
+
+    /**
+     * verrouille jusqu'à la fin de la transaction en cours les lignes
+     * utilisateur d'ids donnés, dans l'ordre croissant des ids : deux
+     * transactions qui verrouillent des ensembles qui se recouvrent ne
+     * peuvent pas s'interbloquer. Une transaction qui modifie plusieurs u1
+     * doit verrouiller tous les utilisateurs concernés avant le premier
+     * appel à
+     * {@link #appliqueDiff(fr.insa.beuvron.utils.database.ConnectionSGBD, int, fr.insa.beuvron.cours.m3.projets.likes.model.Apprecie.Diff)}.
+     *
+     * @return les ids qui existent (triés, sans doublons)
+     */
+    public static int[] verrouilleUtilisateurs(ConnectionSGBD connSGBD, int[] ids) throws SQLException {
+        int[] tries = trieSansDoublons(ids);
+        int[] res = new int[tries.length];
+        int n = 0;
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            for (int debut = 0; debut < tries.length; debut = debut + TAILLE_MAX_IN) {
+                int nbr = Math.min(TAILLE_MAX_IN, tries.length - debut);
+                try (PreparedStatement st = emp.getCon().prepareStatement(
+                        connSGBD.getSgbd().sqlForVerrouLignes(
+                                "select id from utilisateur where id in (" + parametres(nbr) + ") order by id"))) {
+                    for (int i = 0; i < nbr; i++) {
+                        st.setInt(i + 1, tries[debut + i]);
+                    }
+                    ResultSet rs = st.executeQuery();
+                    // lu jusqu'au bout : certains drivers ne verrouillent qu'à la lecture
+                    while (rs.next()) {
+                        res[n++] = rs.getInt(1);
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    /**
+     * @return les u2 de u2s (dans le même ordre) tels que u1 n'apprécie pas
+     * encore u2. Lecture verrouillante, comme
+     * {@link #reciproques(fr.insa.beuvron.utils.database.ConnectionSGBD, int, int[])}.
+     */
+    private static int[] absents(ConnectionSGBD connSGBD, int u1, int[] u2s) throws SQLException {
+        int[] presents = new int[u2s.length];
+        int np = 0;
+        for (int debut = 0; debut < u2s.length; debut = debut + TAILLE_MAX_IN) {
+            int nbr = Math.min(TAILLE_MAX_IN, u2s.length - debut);
+            try (PreparedStatement st = connSGBD.getCon().prepareStatement(connSGBD.getSgbd().sqlForVerrouLignes(
+                    "select u2 from apprecie where u1 = ? and u2 in (" + parametres(nbr) + ")"))) {
+                st.setInt(1, u1);
+                for (int i = 0; i < nbr; i++) {
+                    st.setInt(i + 2, u2s[debut + i]);
+                }
+                ResultSet rs = st.executeQuery();
+                while (rs.next()) {
+                    presents[np++] = rs.getInt(1);
+                }
+            }
+        }
+        if (np == 0) {
+            return u2s;
+        }
+        Arrays.sort(presents, 0, np);
+        int[] res = new int[u2s.length];
+        int n = 0;
+        for (int u2 : u2s) {
+            if (Arrays.binarySearch(presents, 0, np, u2) < 0) {
+                res[n++] = u2;
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    /**
+     * supprime les couples (u1,u2) par un lot jdbc de delete mono-ligne : le
+     * nombre de lignes supprimées par chacun dit si le couple existait.
+     *
+     * @return les u2 effectivement supprimés
+     */
+    private static int[] supprimeApprecie(ConnectionSGBD connSGBD, int u1, int[] u2s) throws SQLException {
+        if (u2s.length == 0) {
+            return u2s;
+        }
+        try (PreparedStatement st = connSGBD.prepare(
+                "delete from apprecie where u1 = ? and u2 = ?")) {
+            for (int u2 : u2s) {
+                st.setInt(1, u1);
+                st.setInt(2, u2);
+                st.addBatch();
+            }
+            int[] nbrs = st.executeBatch();
+            int[] res = new int[u2s.length];
+            int n = 0;
+            for (int i = 0; i < u2s.length; i++) {
+                // SUCCESS_NO_INFO (-2) : le driver ne sait pas, on suppose supprimé
+                if (nbrs[i] != 0) {
+                    res[n++] = u2s[i];
+                }
+            }
+            return Arrays.copyOf(res, n);
+        }
+    }
+
+    /**
+     * {@code update utilisateur set nb_apprecie_par = nb_apprecie_par + delta where id in (ids)}
+     * par paquets.
+     */
+    private static void incrementeAppreciePar(Connection conn, int delta, int[] ids) throws SQLException {
+        for (int debut = 0; debut < ids.length; debut = debut + TAILLE_MAX_IN) {
+            int nbr = Math.min(TAILLE_MAX_IN, ids.length - debut);
+            try (PreparedStatement st = conn.prepareStatement(
+                    "update utilisateur set nb_apprecie_par = nb_apprecie_par + ? where id in ("
+                    + parametres(nbr) + ")")) {
+                st.setInt(1, delta);
+                for (int i = 0; i < nbr; i++) {
+                    st.setInt(i + 2, ids[debut + i]);
+                }
+                st.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * @return les u2 de u2s qui apprécient u1. Lecture verrouillante : elle
+     * voit la dernière version validée, même dans une transaction en
+     * lecture répétable (mysql).
+     */
+    private static int[] reciproques(ConnectionSGBD connSGBD, int u1, int[] u2s) throws SQLException {
+        int[] res = new int[u2s.length];
+        int n = 0;
+        for (int debut = 0; debut < u2s.length; debut = debut + TAILLE_MAX_IN) {
+            int nbr = Math.min(TAILLE_MAX_IN, u2s.length - debut);
+            try (PreparedStatement st = connSGBD.getCon().prepareStatement(connSGBD.getSgbd().sqlForVerrouLignes(
+                    "select u1 from apprecie where u2 = ? and u1 in (" + parametres(nbr) + ")"))) {
+                st.setInt(1, u1);
+                for (int i = 0; i < nbr; i++) {
+                    st.setInt(i + 2, u2s[debut + i]);
+                }
+                ResultSet rs = st.executeQuery();
+                while (rs.next()) {
+                    res[n++] = rs.getInt(1);
+                }
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    /**
+     * recalcule entièrement la table amitie à partir de apprecie, dans sa
+     * propre transaction. Utilisé après les modifications en masse qui ne
+     * passent pas par
+     * {@link #appliqueDiff(fr.insa.beuvron.utils.database.ConnectionSGBD, int, fr.insa.beuvron.cours.m3.projets.likes.model.Apprecie.Diff)}.
+     */
+    public static void reconstruitAmities(ConnectionSGBD connSGBD) throws SQLException {
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate("delete from amitie");
+                st.executeUpdate("insert into amitie (u1,u2) "
+                        + " select a1.u1,a1.u2 from apprecie a1 "
+                        + "   join apprecie a2 on a1.u2 = a2.u1 and a1.u1 = a2.u2");
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * recalcule les colonnes nb_apprecie et nb_apprecie_par de tous les
+     * utilisateurs à partir de apprecie, dans sa propre transaction.
+     */
+    public static void recalculeCompteurs(ConnectionSGBD connSGBD) throws SQLException {
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate("update utilisateur set "
+                        + " nb_apprecie = (select count(*) from apprecie where apprecie.u1 = utilisateur.id),"
+                        + " nb_apprecie_par = (select count(*) from apprecie where apprecie.u2 = utilisateur.id)");
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * valide la transaction en cours, qui a appliqué diff pour u1, puis le
+     * reporte dans les structures en mémoire, sous {@link #verrouCommit}.
+     *
+     * @param diff le diff retourné par
+     * {@link #appliqueDiff(fr.insa.beuvron.utils.database.ConnectionSGBD, int, fr.insa.beuvron.cours.m3.projets.likes.model.Apprecie.Diff)}
+     */
+    public static void valide(ConnectionSGBD connSGBD, int u1, Diff diff) throws SQLException {
+        Lock verrou = verrouCommit(connSGBD);
+        verrou.lock();
+        try {
+            connSGBD.getCon().commit();
+            apresCommit(connSGBD, u1, diff);
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    /**
+     * reporte un diff commité (celui retourné par
+     * {@link #appliqueDiff(fr.insa.beuvron.utils.database.ConnectionSGBD, int, fr.insa.beuvron.cours.m3.projets.likes.model.Apprecie.Diff)})
+     * dans les structures en mémoire associées à la base. L'appelant tient
+     * {@link #verrouCommit} depuis avant le commit. Une erreur d'écriture du
+     * journal n'est pas propagée (la transaction est déjà commitée) : voir
+     * {@link JournalApprecie#getErreur()}.
+     */
+    public static void apresCommit(ConnectionSGBD connSGBD, int u1, Diff diff) {
+        GrapheApprecie graphe = GrapheApprecie.get(connSGBD);
+        if (graphe != null) {
+            graphe.appliqueDiff(u1, diff);
+        }
+        CompteursApprecie compteurs = connSGBD.getExtension(CompteursApprecie.class);
+        if (compteurs != null) {
+            compteurs.appliqueDiff(u1, diff);
+        }
+        JournalApprecie journal = JournalApprecie.get(connSGBD);
+        if (journal != null) {
+            try {
+                journal.ajoute(u1, diff);
+            } catch (IOException ex) {
+                // la transaction est commitée : ce n'est pas à l'appelant
+                // d'échouer, le journal est marqué incomplet
+                journal.noteErreur(ex);
+            }
+        }
+    }
+
+    /**
+     * les structures dérivées de apprecie (table amitie, compteurs,
+     * structures en mémoire) ne sont plus à jour après une modification en
+     * masse de la table apprecie : on les recalcule. Le journal, s'il est
+     * ouvert, reçoit le nouvel état de la table (ou est marqué incomplet).
+     */
+    public static void apresModificationEnMasse(ConnectionSGBD connSGBD) throws SQLException {
+        JournalApprecie journal = JournalApprecie.get(connSGBD);
+        if (journal != null) {
+            try {
+                journal.amorce(connSGBD);
+            } catch (IOException ex) {
+                journal.noteErreur(ex);
+            }
+        }
+        reconstruitDerivees(connSGBD);
+    }
+
+    /**
+     * recalcule les structures dérivées de apprecie, sans journaliser.
+     */
+    static void reconstruitDerivees(ConnectionSGBD connSGBD) throws SQLException {
+        reconstruitAmities(connSGBD);
+        recalculeCompteurs(connSGBD);
+        if (GrapheApprecie.get(connSGBD) != null) {
+            GrapheApprecie.charge(connSGBD);
+        }
+        if (connSGBD.getExtension(CompteursApprecie.class) != null) {
+            CompteursApprecie.charge(connSGBD);
+        }
+    }
+
+    private static String parametres(int nbr) {
+        StringBuilder res = new StringBuilder();
+        for (int i = 0; i < nbr; i++) {
+            res.append(i == 0 ? "?" : ",?");
+        }
+        return res.toString();
+    }
+
+    /**
+     * {@code delete from table where colFixe = valFixe and colIn in (vals)}
+     * par paquets.
+     */
+    private static void supprime(Connection conn, String table, String colFixe, int valFixe,
+            String colIn, int[] vals) throws SQLException {
+        for (int debut = 0; debut < vals.length; debut = debut + TAILLE_MAX_IN) {
+            int nbr = Math.min(TAILLE_MAX_IN, vals.length - debut);
+            try (PreparedStatement st = conn.prepareStatement("delete from " + table
+                    + " where " + colFixe + " = ? and " + colIn + " in (" + parametres(nbr) + ")")) {
+                st.setInt(1, valFixe);
+                for (int i = 0; i < nbr; i++) {
+                    st.setInt(i + 2, vals[debut + i]);
+                }
+                st.executeUpdate();
+            }
+        }
+    }
+
+}
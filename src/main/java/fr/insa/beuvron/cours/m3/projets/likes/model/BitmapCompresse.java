@@ -0,0 +1,609 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import java.util.Arrays;
+
+/**
+ * Ensemble non modifiable d'entiers positifs (des ids d'utilisateurs)
+ * compressé à la manière des "roaring bitmaps".
+ * <p>
+ * Les entiers sont groupés par leurs 16 bits de poids fort ; chaque groupe
+ * est stocké dans un conteneur adapté à sa densité :
+ * </p>
+ * <ul>
+ * <li>au plus {@link #MAX_TABLEAU} valeurs : tableau trié des 16 bits de
+ * poids faible (2 octets par valeur) ;</li>
+ * <li>au-delà : bitmap de 65536 bits (1024 long, 8 Ko).</li>
+ * </ul>
+ * <p>
+ * L'intersection, l'union et la différence se font groupe par groupe : par
+ * fusion de tableaux triés, par test de bits, ou mot à mot (64 valeurs par
+ * opération, boucles simples que le JIT sait vectoriser) entre deux
+ * bitmaps. {@link #cardinaliteEt} compte l'intersection sans la construire.
+ * </p>
+ *
+ * @author francois
+ */
+public final class BitmapCompresse {
+
+    /**
+     * nombre maximum de valeurs d'un conteneur tableau (au-delà, le bitmap
+     * prend moins de place).
+     */
+    public static final int MAX_TABLEAU = 4096;
+
+    private static final int NBR_MOTS = 1 << 10;
+
+    public static final BitmapCompresse VIDE = new BitmapCompresse(new char[0], new Conteneur[0], 0);
+
+    /**
+     * 16 bits de poids fort des valeurs de chaque conteneur, croissants.
+     */
+    private final char[] cles;
+    private final Conteneur[] conteneurs;
+    private final int nbr;
+
+    private BitmapCompresse(char[] cles, Conteneur[] conteneurs, int nbr) {
+        this.cles = cles;
+        this.conteneurs = conteneurs;
+        this.nbr = nbr;
+    }
+
+    /**
+     * les valeurs d'un groupe (16 bits de poids faible).
+     */
+    private abstract static class Conteneur {
+
+        abstract int cardinalite();
+
+        abstract boolean contient(char v);
+
+        /**
+         * @return null si l'intersection est vide
+         */
+        abstract Conteneur et(Conteneur o);
+
+        abstract int cardinaliteEt(Conteneur o);
+
+        abstract Conteneur ou(Conteneur o);
+
+        /**
+         * @return null si la différence est vide
+         */
+        abstract Conteneur sauf(Conteneur o);
+
+        /**
+         * copie les valeurs (avec leurs 16 bits de poids fort) dans dest à
+         * partir de pos.
+         *
+         * @return la position suivante
+         */
+        abstract int copie(int haut, int[] dest, int pos);
+    }
+
+    private static final class Tableau extends Conteneur {
+
+        private final char[] vals;
+
+        private Tableau(char[] vals) {
+            this.vals = vals;
+        }
+
+        @Override
+        int cardinalite() {
+            return this.vals.length;
+        }
+
+        @Override
+        boolean contient(char v) {
+            return Arrays.binarySearch(this.vals, v) >= 0;
+        }
+
+        @Override
+        Conteneur et(Conteneur o) {
+            if (o instanceof Bits) {
+                return this.filtre((Bits) o, true);
+            }
+            char[] b = ((Tableau) o).vals;
+            char[] res = new char[Math.min(this.vals.length, b.length)];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < this.vals.length && j < b.length) {
+                if (this.vals[i] < b[j]) {
+                    i++;
+                } else if (this.vals[i] > b[j]) {
+                    j++;
+                } else {
+                    res[n++] = this.vals[i];
+                    i++;
+                    j++;
+                }
+            }
+            return n == 0 ? null : new Tableau(Arrays.copyOf(res, n));
+        }
+
+        @Override
+        int cardinaliteEt(Conteneur o) {
+            int n = 0;
+            if (o instanceof Bits) {
+                for (char v : this.vals) {
+                    if (o.contient(v)) {
+                        n++;
+                    }
+                }
+                return n;
+            }
+            char[] b = ((Tableau) o).vals;
+            int i = 0;
+            int j = 0;
+            while (i < this.vals.length && j < b.length) {
+                if (this.vals[i] < b[j]) {
+                    i++;
+                } else if (this.vals[i] > b[j]) {
+                    j++;
+                } else {
+                    n++;
+                    i++;
+                    j++;
+                }
+            }
+            return n;
+        }
+
+        /**
+         * @return les valeurs qui sont (dedans = true) ou ne sont pas dans o
+         */
+        private Conteneur filtre(Bits o, boolean dedans) {
+            char[] res = new char[this.vals.length];
+            int n = 0;
+            for (char v : this.vals) {
+                if (o.contient(v) == dedans) {
+                    res[n++] = v;
+                }
+            }
+            return n == 0 ? null : new Tableau(Arrays.copyOf(res, n));
+        }
+
+        @Override
+        Conteneur ou(Conteneur o) {
+            if (o instanceof Bits) {
+                return o.ou(this);
+            }
+            char[] b = ((Tableau) o).vals;
+            if (this.vals.length + b.length > MAX_TABLEAU) {
+                long[] mots = new long[NBR_MOTS];
+                this.positionne(mots);
+                ((Tableau) o).positionne(mots);
+                return depuisMots(mots);
+            }
+            char[] res = new char[this.vals.length + b.length];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < this.vals.length && j < b.length) {
+                if (this.vals[i] < b[j]) {
+                    res[n++] = this.vals[i++];
+                } else if (this.vals[i] > b[j]) {
+                    res[n++] = b[j++];
+                } else {
+                    res[n++] = this.vals[i];
+                    i++;
+                    j++;
+                }
+            }
+            while (i < this.vals.length) {
+                res[n++] = this.vals[i++];
+            }
+            while (j < b.length) {
+                res[n++] = b[j++];
+            }
+            return new Tableau(Arrays.copyOf(res, n));
+        }
+
+        @Override
+        Conteneur sauf(Conteneur o) {
+            if (o instanceof Bits) {
+                return this.filtre((Bits) o, false);
+            }
+            char[] b = ((Tableau) o).vals;
+            char[] res = new char[this.vals.length];
+            int n = 0;
+            int j = 0;
+            for (char v : this.vals) {
+                while (j < b.length && b[j] < v) {
+                    j++;
+                }
+                if (j == b.length || b[j] != v) {
+                    res[n++] = v;
+                }
+            }
+            return n == 0 ? null : new Tableau(Arrays.copyOf(res, n));
+        }
+
+        private void positionne(long[] mots) {
+            for (char v : this.vals) {
+                mots[v >>> 6] |= 1L << v;
+            }
+        }
+
+        @Override
+        int copie(int haut, int[] dest, int pos) {
+            for (char v : this.vals) {
+                dest[pos++] = haut | v;
+            }
+            return pos;
+        }
+    }
+
+    private static final class Bits extends Conteneur {
+
+        private final long[] mots;
+        private final int card;
+
+        private Bits(long[] mots, int card) {
+            this.mots = mots;
+            this.card = card;
+        }
+
+        @Override
+        int cardinalite() {
+            return this.card;
+        }
+
+        @Override
+        boolean contient(char v) {
+            return (this.mots[v >>> 6] & (1L << v)) != 0;
+        }
+
+        @Override
+        Conteneur et(Conteneur o) {
+            if (o instanceof Tableau) {
+                return o.et(this);
+            }
+            long[] b = ((Bits) o).mots;
+            long[] res = new long[NBR_MOTS];
+            for (int i = 0; i < NBR_MOTS; i++) {
+                res[i] = this.mots[i] & b[i];
+            }
+            return depuisMots(res);
+        }
+
+        @Override
+        int cardinaliteEt(Conteneur o) {
+            if (o instanceof Tableau) {
+                return o.cardinaliteEt(this);
+            }
+            long[] b = ((Bits) o).mots;
+            int n = 0;
+            for (int i = 0; i < NBR_MOTS; i++) {
+                n = n + Long.bitCount(this.mots[i] & b[i]);
+            }
+            return n;
+        }
+
+        @Override
+        Conteneur ou(Conteneur o) {
+            long[] res = this.mots.clone();
+            if (o instanceof Tableau) {
+                ((Tableau) o).positionne(res);
+            } else {
+                long[] b = ((Bits) o).mots;
+                for (int i = 0; i < NBR_MOTS; i++) {
+                    res[i] = res[i] | b[i];
+                }
+            }
+            return depuisMots(res);
+        }
+
+        @Override
+        Conteneur sauf(Conteneur o) {
+            long[] res = this.mots.clone();
+            if (o instanceof Tableau) {
+                for (char v : ((Tableau) o).vals) {
+                    res[v >>> 6] &= ~(1L << v);
+                }
+            } else {
+                long[] b = ((Bits) o).mots;
+                for (int i = 0; i < NBR_MOTS; i++) {
+                    res[i] = res[i] & ~b[i];
+                }
+            }
+            return depuisMots(res);
+        }
+
+        @Override
+        int copie(int haut, int[] dest, int pos) {
+            for (int i = 0; i < NBR_MOTS; i++) {
+                long m = this.mots[i];
+                while (m != 0) {
+                    dest[pos++] = haut | (i << 6) | Long.numberOfTrailingZeros(m);
+                    m = m & (m - 1);
+                }
+            }
+            return pos;
+        }
+    }
+
+    /**
+     * @return le conteneur le plus compact pour ces bits, null s'ils sont tous
+     * nuls
+     */
+    private static Conteneur depuisMots(long[] mots) {
+        int card = 0;
+        for (long m : mots) {
+            card = card + Long.bitCount(m);
+        }
+        if (card == 0) {
+            return null;
+        }
+        if (card > MAX_TABLEAU) {
+            return new Bits(mots, card);
+        }
+        char[] vals = new char[card];
+        int n = 0;
+        for (int i = 0; i < NBR_MOTS; i++) {
+            long m = mots[i];
+            while (m != 0) {
+                vals[n++] = (char) ((i << 6) | Long.numberOfTrailingZeros(m));
+                m = m & (m - 1);
+            }
+        }
+        return new Tableau(vals);
+    }
+
+    /**
+     * @param trie valeurs positives, croissantes et distinctes, dans
+     * trie[debut..fin-1]
+     */
+    public static BitmapCompresse depuisTrie(int[] trie, int debut, int fin) {
+        if (debut >= fin) {
+            return VIDE;
+        }
+        char[] cles = new char[8];
+        Conteneur[] conteneurs = new Conteneur[8];
+        int n = 0;
+        int i = debut;
+        while (i < fin) {
+            int haut = trie[i] >>> 16;
+            int j = i;
+            while (j < fin && trie[j] >>> 16 == haut) {
+                j++;
+            }
+            Conteneur c;
+            if (j - i > MAX_TABLEAU) {
+                long[] mots = new long[NBR_MOTS];
+                for (int k = i; k < j; k++) {
+                    mots[(trie[k] & 0xFFFF) >>> 6] |= 1L << trie[k];
+                }
+                c = new Bits(mots, j - i);
+            } else {
+                char[] vals = new char[j - i];
+                for (int k = i; k < j; k++) {
+                    vals[k - i] = (char) trie[k];
+                }
+                c = new Tableau(vals);
+            }
+            if (n == cles.length) {
+                cles = Arrays.copyOf(cles, n * 2);
+                conteneurs = Arrays.copyOf(conteneurs, n * 2);
+            }
+            cles[n] = (char) haut;
+            conteneurs[n] = c;
+            n++;
+            i = j;
+        }
+        return new BitmapCompresse(Arrays.copyOf(cles, n), Arrays.copyOf(conteneurs, n), fin - debut);
+    }
+
+    /**
+     * @param ids valeurs positives, dans un ordre quelconque, avec
+     * éventuellement des doublons
+     */
+    public static BitmapCompresse depuis(int... ids) {
+        int[] trie = ids.clone();
+        Arrays.sort(trie);
+        int n = 0;
+        for (int i = 0; i < trie.length; i++) {
+            if (i == 0 || trie[i] != trie[i - 1]) {
+                trie[n++] = trie[i];
+            }
+        }
+        return depuisTrie(trie, 0, n);
+    }
+
+    /**
+     * accumule les conteneurs d'un résultat.
+     */
+    private static class Resultat {
+
+        private char[] cles;
+        private Conteneur[] conteneurs;
+        private int n = 0;
+        private int nbr = 0;
+
+        private Resultat(int capacite) {
+            this.cles = new char[Math.max(1, capacite)];
+            this.conteneurs = new Conteneur[Math.max(1, capacite)];
+        }
+
+        private void ajoute(char cle, Conteneur c) {
+            if (c == null) {
+                return;
+            }
+            if (this.n == this.cles.length) {
+                this.cles = Arrays.copyOf(this.cles, this.n * 2);
+                this.conteneurs = Arrays.copyOf(this.conteneurs, this.n * 2);
+            }
+            this.cles[this.n] = cle;
+            this.conteneurs[this.n] = c;
+            this.n++;
+            this.nbr = this.nbr + c.cardinalite();
+        }
+
+        private BitmapCompresse bitmap() {
+            return this.n == 0 ? VIDE
+                    : new BitmapCompresse(Arrays.copyOf(this.cles, this.n),
+                            Arrays.copyOf(this.conteneurs, this.n), this.nbr);
+        }
+    }
+
+    /**
+     * @return this &#8745; o
+     */
+    public BitmapCompresse et(BitmapCompresse o) {
+        Resultat res = new Resultat(Math.min(this.cles.length, o.cles.length));
+        int i = 0;
+        int j = 0;
+        while (i < this.cles.length && j < o.cles.length) {
+            if (this.cles[i] < o.cles[j]) {
+                i++;
+            } else if (this.cles[i] > o.cles[j]) {
+                j++;
+            } else {
+                res.ajoute(this.cles[i], this.conteneurs[i].et(o.conteneurs[j]));
+                i++;
+                j++;
+            }
+        }
+        return res.bitmap();
+    }
+
+    /**
+     * @return |this &#8745; o|, sans construire l'intersection
+     */
+    public int cardinaliteEt(BitmapCompresse o) {
+        int res = 0;
+        int i = 0;
+        int j = 0;
+        while (i < this.cles.length && j < o.cles.length) {
+            if (this.cles[i] < o.cles[j]) {
+                i++;
+            } else if (this.cles[i] > o.cles[j]) {
+                j++;
+            } else {
+                res = res + this.conteneurs[i].cardinaliteEt(o.conteneurs[j]);
+                i++;
+                j++;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return this &#8746; o
+     */
+    public BitmapCompresse ou(BitmapCompresse o) {
+        Resultat res = new Resultat(this.cles.length + o.cles.length);
+        int i = 0;
+        int j = 0;
+        while (i < this.cles.length || j < o.cles.length) {
+            if (j == o.cles.length || (i < this.cles.length && this.cles[i] < o.cles[j])) {
+                res.ajoute(this.cles[i], this.conteneurs[i]);
+                i++;
+            } else if (i == this.cles.length || this.cles[i] > o.cles[j]) {
+                res.ajoute(o.cles[j], o.conteneurs[j]);
+                j++;
+            } else {
+                res.ajoute(this.cles[i], this.conteneurs[i].ou(o.conteneurs[j]));
+                i++;
+                j++;
+            }
+        }
+        return res.bitmap();
+    }
+
+    /**
+     * @return this \ o
+     */
+    public BitmapCompresse sauf(BitmapCompresse o) {
+        Resultat res = new Resultat(this.cles.length);
+        int j = 0;
+        for (int i = 0; i < this.cles.length; i++) {
+            while (j < o.cles.length && o.cles[j] < this.cles[i]) {
+                j++;
+            }
+            if (j < o.cles.length && o.cles[j] == this.cles[i]) {
+                res.ajoute(this.cles[i], this.conteneurs[i].sauf(o.conteneurs[j]));
+            } else {
+                res.ajoute(this.cles[i], this.conteneurs[i]);
+            }
+        }
+        return res.bitmap();
+    }
+
+    public boolean contient(int v) {
+        if (v < 0) {
+            return false;
+        }
+        int pos = Arrays.binarySearch(this.cles, (char) (v >>> 16));
+        return pos >= 0 && this.conteneurs[pos].contient((char) v);
+    }
+
+    public int cardinalite() {
+        return this.nbr;
+    }
+
+    public boolean isVide() {
+        return this.nbr == 0;
+    }
+
+    /**
+     * @return les valeurs, croissantes
+     */
+    public int[] versTableau() {
+        int[] res = new int[this.nbr];
+        int pos = 0;
+        for (int i = 0; i < this.cles.length; i++) {
+            pos = this.conteneurs[i].copie(this.cles[i] << 16, res, pos);
+        }
+        return res;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(this.versTableau());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final BitmapCompresse other = (BitmapCompresse) obj;
+        return this.nbr == other.nbr && Arrays.equals(this.versTableau(), other.versTableau());
+    }
+
+    @Override
+    public String toString() {
+        int nbrBits = 0;
+        for (Conteneur c : this.conteneurs) {
+            if (c instanceof Bits) {
+                nbrBits++;
+            }
+        }
+        return "BitmapCompresse{" + "cardinalite=" + nbr + ", conteneurs=" + cles.length
+                + ", bitmaps=" + nbrBits + '}';
+    }
+
+}
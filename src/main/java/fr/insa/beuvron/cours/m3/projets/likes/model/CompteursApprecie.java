@@ -0,0 +1,263 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Copie en mémoire des colonnes utilisateur.nb_apprecie et
+ * utilisateur.nb_apprecie_par, associée à la base (extension de
+ * {@link ConnectionSGBD}).
+ * <p>
+ * Les valeurs lues au chargement sont dans deux tableaux d'entiers indexés
+ * par id. Les modifications ultérieures (reportées par
+ * {@link Apprecie#apresCommit}) sont accumulées dans des {@link LongAdder},
+ * créés seulement pour les utilisateurs modifiés : un utilisateur populaire
+ * apprécié en même temps par de nombreux threads ne devient pas un point de
+ * contention. La valeur d'un compteur est la valeur chargée plus la somme de
+ * son LongAdder.
+ * </p>
+ * <p>
+ * Comme pour {@link GrapheApprecie}, les modifications faites sans passer
+ * par {@link Apprecie} ne sont pas vues : voir
+ * {@link Apprecie#apresModificationEnMasse}.
+ * </p>
+ *
+ * @author francois
+ */
+public class CompteursApprecie {
+
+    private int[] baseApprecie;
+    private int[] baseAppreciePar;
+    private AtomicReferenceArray<LongAdder> deltasApprecie;
+    private AtomicReferenceArray<LongAdder> deltasAppreciePar;
+
+    /**
+     * lecture pour lire et incrémenter (concurrents), écriture pour agrandir
+     * les tableaux.
+     */
+    private final ReentrantReadWriteLock verrou = new ReentrantReadWriteLock();
+
+    private CompteursApprecie(int taille) {
+        this.baseApprecie = new int[taille];
+        this.baseAppreciePar = new int[taille];
+        this.deltasApprecie = new AtomicReferenceArray<>(taille);
+        this.deltasAppreciePar = new AtomicReferenceArray<>(taille);
+    }
+
+    /**
+     * @return les compteurs associés à la base (chargés au premier appel)
+     */
+    public static CompteursApprecie get(ConnectionSGBD connSGBD) throws SQLException {
+        CompteursApprecie res = connSGBD.getExtension(CompteursApprecie.class);
+        if (res == null) {
+            res = charge(connSGBD, false);
+        }
+        return res;
+    }
+
+    /**
+     * charge (ou recharge) les compteurs depuis la table utilisateur et les
+     * associe à la base. Les commits de {@link Apprecie} attendent la fin du
+     * chargement (voir {@link Apprecie#verrouChargement}) puis sont reportés
+     * dans les nouveaux compteurs.
+     */
+    public static CompteursApprecie charge(ConnectionSGBD connSGBD) throws SQLException {
+        return charge(connSGBD, true);
+    }
+
+    /**
+     * @param recharge false : ne charge pas si un autre thread l'a fait
+     * pendant l'attente du verrou
+     */
+    private static CompteursApprecie charge(ConnectionSGBD connSGBD, boolean recharge) throws SQLException {
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            // verrou dédié : ne bloque pas les autres extensions de la base
+            // (MoteurLogin...) pendant le parcours de la table
+            Lock verrou = Apprecie.verrouChargement(emp);
+            verrou.lock();
+            try {
+                CompteursApprecie res = recharge ? null : connSGBD.getExtension(CompteursApprecie.class);
+                if (res == null) {
+                    res = lit(connSGBD);
+                    connSGBD.setExtension(CompteursApprecie.class, res);
+                }
+                return res;
+            } finally {
+                verrou.unlock();
+            }
+        }
+    }
+
+    /**
+     * lit la table utilisateur en flux, sans associer les compteurs à la
+     * base.
+     */
+    private static CompteursApprecie lit(ConnectionSGBD connSGBD) throws SQLException {
+        int[] ids = new int[1024];
+        int[] nbrs = new int[1024];
+        int[] nbrsPar = new int[1024];
+        int n = 0;
+        int maxId = -1;
+        Connection conn = connSGBD.getCon();
+        // postgresql ne lit en flux qu'en dehors du mode autocommit
+        conn.setAutoCommit(false);
+        try (Statement st = conn.createStatement()) {
+            connSGBD.getSgbd().configureLectureEnFlux(st);
+            ResultSet res = st.executeQuery("select id,nb_apprecie,nb_apprecie_par from utilisateur");
+            while (res.next()) {
+                if (n == ids.length) {
+                    ids = Arrays.copyOf(ids, n * 2);
+                    nbrs = Arrays.copyOf(nbrs, n * 2);
+                    nbrsPar = Arrays.copyOf(nbrsPar, n * 2);
+                }
+                ids[n] = res.getInt(1);
+                nbrs[n] = res.getInt(2);
+                nbrsPar[n] = res.getInt(3);
+                maxId = Math.max(maxId, ids[n]);
+                n++;
+            }
+        } finally {
+            // lecture seule : rien à valider
+            conn.rollback();
+            conn.setAutoCommit(true);
+        }
+        CompteursApprecie res = new CompteursApprecie(maxId + 1);
+        for (int i = 0; i < n; i++) {
+            res.baseApprecie[ids[i]] = nbrs[i];
+            res.baseAppreciePar[ids[i]] = nbrsPar[i];
+        }
+        return res;
+    }
+
+    private static long valeur(int[] base, AtomicReferenceArray<LongAdder> deltas, int u) {
+        if (u < 0 || u >= base.length) {
+            return 0;
+        }
+        LongAdder delta = deltas.get(u);
+        return delta == null ? base[u] : base[u] + delta.sum();
+    }
+
+    private static void ajoute(AtomicReferenceArray<LongAdder> deltas, int u, int delta) {
+        LongAdder d = deltas.get(u);
+        if (d == null) {
+            deltas.compareAndSet(u, null, new LongAdder());
+            d = deltas.get(u);
+        }
+        d.add(delta);
+    }
+
+    /**
+     * @return res[i] = nombre d'utilisateurs appréciés par ids[i]
+     */
+    public int[] nbrApprecie(int[] ids) {
+        return this.lit(ids, true);
+    }
+
+    /**
+     * @return res[i] = nombre d'utilisateurs qui apprécient ids[i]
+     */
+    public int[] nbrAppreciePar(int[] ids) {
+        return this.lit(ids, false);
+    }
+
+    private int[] lit(int[] ids, boolean sortants) {
+        this.verrou.readLock().lock();
+        try {
+            int[] res = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                res[i] = (int) (sortants ? valeur(this.baseApprecie, this.deltasApprecie, ids[i])
+                        : valeur(this.baseAppreciePar, this.deltasAppreciePar, ids[i]));
+            }
+            return res;
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+    private void assureTaille(int u) {
+        this.verrou.readLock().lock();
+        try {
+            if (u < this.baseApprecie.length) {
+                return;
+            }
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+        this.verrou.writeLock().lock();
+        try {
+            int ancienne = this.baseApprecie.length;
+            if (u >= ancienne) {
+                int taille = Math.max(u + 1, ancienne * 3 / 2 + 1);
+                this.baseApprecie = Arrays.copyOf(this.baseApprecie, taille);
+                this.baseAppreciePar = Arrays.copyOf(this.baseAppreciePar, taille);
+                this.deltasApprecie = agrandit(this.deltasApprecie, taille);
+                this.deltasAppreciePar = agrandit(this.deltasAppreciePar, taille);
+            }
+        } finally {
+            this.verrou.writeLock().unlock();
+        }
+    }
+
+    private static AtomicReferenceArray<LongAdder> agrandit(AtomicReferenceArray<LongAdder> t, int taille) {
+        AtomicReferenceArray<LongAdder> res = new AtomicReferenceArray<>(taille);
+        for (int i = 0; i < t.length(); i++) {
+            res.set(i, t.get(i));
+        }
+        return res;
+    }
+
+    /**
+     * reporte un diff déjà commité dans la base.
+     */
+    public void appliqueDiff(int u1, Apprecie.Diff diff) {
+        int max = u1;
+        for (int u2 : diff.getAjouts()) {
+            max = Math.max(max, u2);
+        }
+        this.assureTaille(max);
+        this.verrou.readLock().lock();
+        try {
+            int delta = diff.getAjouts().length - diff.getSuppressions().length;
+            if (delta != 0) {
+                ajoute(this.deltasApprecie, u1, delta);
+            }
+            for (int u2 : diff.getAjouts()) {
+                ajoute(this.deltasAppreciePar, u2, 1);
+            }
+            for (int u2 : diff.getSuppressions()) {
+                if (u2 < this.baseAppreciePar.length) {
+                    ajoute(this.deltasAppreciePar, u2, -1);
+                }
+            }
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+}
@@ -0,0 +1,613 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLNonTransientException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Écritures différées (write-behind) de la relation apprecie : "u1 apprécie
+ * u2" et "u1 n'apprécie plus u2" sont mis dans une file en mémoire, et
+ * l'appelant n'attend pas la base.
+ * <p>
+ * Un thread d'écriture vide la file par lots : tous les événements en
+ * attente sont appliqués (par
+ * {@link Apprecie#appliqueDiff(fr.insa.beuvron.utils.database.ConnectionSGBD, int, fr.insa.beuvron.cours.m3.projets.likes.model.Apprecie.Diff)},
+ * un diff par u1) dans une seule transaction : un commit pour tout le lot au
+ * lieu d'un par action. Le thread attend un peu ({@link #DELAI_LOT_MS}) avant
+ * d'écrire un lot incomplet, pour laisser le lot se remplir.
+ * </p>
+ * <p>
+ * Les événements sur un même couple (u1,u2) se remplacent : seul le dernier
+ * état voulu est écrit (plusieurs clics sur "j'aime" ne font qu'une
+ * écriture, ou aucune). La file est bornée en nombre de couples : quand elle
+ * est pleine, l'appelant attend qu'un lot soit écrit, au plus
+ * {@link #ATTENTE_MAX_MS}, puis reçoit une {@link SQLTransientException}.
+ * </p>
+ * <p>
+ * Un événement n'est visible dans la base qu'une fois son lot commité : voir
+ * {@link #flush()} pour attendre. Un lot qui échoue pour une raison
+ * transitoire (connection, interblocage...) est remis en attente et réessayé.
+ * Sinon, ses u1 sont réessayés un par un : les événements d'un u1 qui échoue
+ * encore sont abandonnés ({@link #getNbrRejetes()}), comme ceux dont un
+ * utilisateur n'existe pas, pour ne pas bloquer les suivants. Le {@link #close()} (appelé à la fermeture
+ * de la base) écrit tout ce qui est en attente avant de terminer.
+ * </p>
+ *
+ * @author francois
+ */
+public class EcrituresDifferees implements AutoCloseable {
+
+    public static final int CAPACITE = 100000;
+    public static final int TAILLE_LOT = 10000;
+    public static final long DELAI_LOT_MS = 20;
+    public static final long ATTENTE_MAX_MS = 30000;
+
+    /**
+     * attente avant de réessayer un lot qui a échoué.
+     */
+    private static final long ATTENTE_ERREUR_MS = 1000;
+
+    private final ConnectionSGBD connSGBD;
+    private final int capacite;
+    private final int tailleLot;
+
+    private final ReentrantLock verrou = new ReentrantLock();
+    private final Condition nonVide = this.verrou.newCondition();
+    private final Condition nonPlein = this.verrou.newCondition();
+    private final Condition lotEcrit = this.verrou.newCondition();
+
+    /**
+     * couple (u1 &lt;&lt; 32 | u2) ==&gt; true pour apprécie, false pour
+     * n'apprécie plus.
+     */
+    private LinkedHashMap<Long, Boolean> enAttente = new LinkedHashMap<>();
+    /**
+     * numéros d'ordre : nombre d'événements soumis, et nombre d'événements
+     * soumis avant le dernier lot commité.
+     */
+    private long nbrSoumis = 0;
+    private long nbrEcrits = 0;
+    private long nbrLots = 0;
+    /**
+     * nombre d'événements abandonnés (utilisateur inexistant, contrainte
+     * violée...).
+     */
+    private long nbrRejetes = 0;
+    private boolean ferme = false;
+    /**
+     * un {@link #flush()} attend : le lot en cours de constitution est écrit
+     * sans attendre la fin de {@link #DELAI_LOT_MS}.
+     */
+    private boolean presse = false;
+    private SQLException derniereErreur;
+
+    private final Thread ecrivain;
+
+    /**
+     * @param connSGBD la base
+     * @param capacite nombre maximum de couples en attente
+     * @param tailleLot nombre maximum de couples écrits par transaction
+     */
+    public EcrituresDifferees(ConnectionSGBD connSGBD, int capacite, int tailleLot) {
+        this.connSGBD = connSGBD;
+        this.capacite = capacite;
+        this.tailleLot = tailleLot;
+        this.ecrivain = new Thread(this::boucle, "ecritures-differees");
+        this.ecrivain.setDaemon(true);
+        this.ecrivain.start();
+    }
+
+    /**
+     * @return la file associée à la base (créée au premier appel)
+     */
+    public static EcrituresDifferees get(ConnectionSGBD connSGBD) {
+        synchronized (connSGBD) {
+            EcrituresDifferees res = connSGBD.getExtension(EcrituresDifferees.class);
+            if (res == null) {
+                res = new EcrituresDifferees(connSGBD, CAPACITE, TAILLE_LOT);
+                connSGBD.setExtension(EcrituresDifferees.class, res);
+            }
+            return res;
+        }
+    }
+
+    private static long cle(int u1, int u2) {
+        return ((long) u1 << 32) | (u2 & 0xFFFFFFFFL);
+    }
+
+    /**
+     * u1 apprécie u2 (écriture différée).
+     */
+    public void aime(int u1, int u2) throws SQLException {
+        this.soumet(u1, u2, true);
+    }
+
+    /**
+     * u1 n'apprécie plus u2 (écriture différée).
+     */
+    public void naimePlus(int u1, int u2) throws SQLException {
+        this.soumet(u1, u2, false);
+    }
+
+    private void soumet(int u1, int u2, boolean aime) throws SQLException {
+        if (u1 == u2) {
+            throw new IllegalArgumentException("un utilisateur ne peut pas s'apprécier lui-même");
+        }
+        long cle = cle(u1, u2);
+        this.verrou.lock();
+        try {
+            long attente = TimeUnit.MILLISECONDS.toNanos(ATTENTE_MAX_MS);
+            // un couple déjà en attente est remplacé : pas de place en plus
+            while (!this.ferme && this.enAttente.size() >= this.capacite
+                    && !this.enAttente.containsKey(cle)) {
+                if (attente <= 0) {
+                    throw new SQLTransientException("trop d'écritures en attente");
+                }
+                attente = this.nonPlein.awaitNanos(attente);
+            }
+            if (this.ferme) {
+                throw new SQLException("écritures différées fermées");
+            }
+            this.enAttente.put(cle, aime);
+            this.nbrSoumis++;
+            if (this.enAttente.size() == 1 || this.enAttente.size() >= this.tailleLot) {
+                // file vide jusque là, ou lot complet : sinon, l'écrivain
+                // laisse le lot se remplir jusqu'à la fin du délai
+                this.nonVide.signal();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientException("interrompu", ex);
+        } finally {
+            this.verrou.unlock();
+        }
+    }
+
+    /**
+     * attend que tous les événements soumis avant l'appel soient commités.
+     * Les couples en attente étant fusionnés, on ne sait pas lesquels ont été
+     * écrits tant que la file n'a pas été vidée : sous une charge continue,
+     * flush attend que la file se vide.
+     *
+     * @throws SQLException la dernière erreur d'écriture si la file a été
+     * fermée avant, ou si des événements ont été abandonnés pendant l'attente
+     */
+    public void flush() throws SQLException {
+        this.verrou.lock();
+        try {
+            long attendu = this.nbrSoumis;
+            long rejetes = this.nbrRejetes;
+            while (this.nbrEcrits < attendu && this.ecrivain.isAlive()) {
+                this.presse = true;
+                this.nonVide.signal();
+                this.lotEcrit.await(100, TimeUnit.MILLISECONDS);
+            }
+            if (this.nbrEcrits < attendu) {
+                throw this.derniereErreur != null ? this.derniereErreur
+                        : new SQLException("écritures différées fermées");
+            }
+            if (this.nbrRejetes != rejetes) {
+                throw this.derniereErreur;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientException("interrompu", ex);
+        } finally {
+            this.verrou.unlock();
+        }
+    }
+
+    /**
+     * @return le nombre de couples en attente d'écriture
+     */
+    public int getNbrEnAttente() {
+        this.verrou.lock();
+        try {
+            return this.enAttente.size();
+        } finally {
+            this.verrou.unlock();
+        }
+    }
+
+    /**
+     * @return le nombre de transactions (lots) commitées
+     */
+    public long getNbrLots() {
+        this.verrou.lock();
+        try {
+            return this.nbrLots;
+        } finally {
+            this.verrou.unlock();
+        }
+    }
+
+    /**
+     * @return le nombre d'événements abandonnés depuis la création
+     */
+    public long getNbrRejetes() {
+        this.verrou.lock();
+        try {
+            return this.nbrRejetes;
+        } finally {
+            this.verrou.unlock();
+        }
+    }
+
+    /**
+     * @return la dernière erreur d'écriture, ou null
+     */
+    public SQLException getDerniereErreur() {
+        this.verrou.lock();
+        try {
+            return this.derniereErreur;
+        } finally {
+            this.verrou.unlock();
+        }
+    }
+
+    private void boucle() {
+        while (true) {
+            Map<Long, Boolean> lot;
+            long jusqua;
+            this.verrou.lock();
+            try {
+                while (this.enAttente.isEmpty() && !this.ferme) {
+                    this.nonVide.awaitUninterruptibly();
+                }
+                if (this.enAttente.isEmpty()) {
+                    // fermé et tout est écrit
+                    this.lotEcrit.signalAll();
+                    return;
+                }
+                // commit groupé : on laisse au lot DELAI_LOT_MS pour se remplir
+                long reste = TimeUnit.MILLISECONDS.toNanos(DELAI_LOT_MS);
+                try {
+                    while (reste > 0 && this.enAttente.size() < this.tailleLot
+                            && !this.ferme && !this.presse) {
+                        reste = this.nonVide.awaitNanos(reste);
+                    }
+                } catch (InterruptedException ex) {
+                    // on écrit tout de suite
+                }
+                this.presse = false;
+                lot = this.extraitLot();
+                jusqua = this.enAttente.isEmpty() ? this.nbrSoumis : this.nbrEcrits;
+                this.nonPlein.signalAll();
+            } finally {
+                this.verrou.unlock();
+            }
+            boolean remis = this.traite(lot);
+            this.verrou.lock();
+            try {
+                if (!remis) {
+                    this.nbrEcrits = Math.max(this.nbrEcrits, jusqua);
+                }
+                this.lotEcrit.signalAll();
+                if (remis && this.ferme) {
+                    // pas de nouvel essai à la fermeture : les événements sont perdus
+                    return;
+                }
+            } finally {
+                this.verrou.unlock();
+            }
+            if (remis) {
+                try {
+                    Thread.sleep(ATTENTE_ERREUR_MS);
+                } catch (InterruptedException ie) {
+                    // on réessaye tout de suite
+                }
+            }
+        }
+    }
+
+    /**
+     * écrit un lot ; s'il échoue pour une raison qui n'est pas transitoire, ses
+     * u1 sont réessayés un par un, et les événements des u1 qui échouent
+     * encore sont abandonnés.
+     *
+     * @return true si des événements ont été remis en attente (erreur
+     * transitoire)
+     */
+    private boolean traite(Map<Long, Boolean> lot) {
+        Exception erreur;
+        try {
+            this.ecritLot(lot);
+            return false;
+        } catch (SQLException | RuntimeException ex) {
+            erreur = ex;
+        }
+        if (!definitive(erreur)) {
+            this.remet(lot, erreur);
+            return true;
+        }
+        TreeMap<Integer, Map<Long, Boolean>> parU1 = new TreeMap<>();
+        for (Map.Entry<Long, Boolean> e : lot.entrySet()) {
+            parU1.computeIfAbsent((int) (e.getKey() >> 32), k -> new LinkedHashMap<>())
+                    .put(e.getKey(), e.getValue());
+        }
+        if (parU1.size() == 1) {
+            this.rejette(lot, erreur);
+            return false;
+        }
+        boolean remis = false;
+        for (Map<Long, Boolean> sousLot : parU1.values()) {
+            try {
+                this.ecritLot(sousLot);
+            } catch (SQLException | RuntimeException ex) {
+                if (definitive(ex)) {
+                    this.rejette(sousLot, ex);
+                } else {
+                    this.remet(sousLot, ex);
+                    remis = true;
+                }
+            }
+        }
+        return remis;
+    }
+
+    /**
+     * erreur due aux événements eux-mêmes (contrainte violée, donnée
+     * invalide...) : les réessayer tels quels ne sert à rien. Les autres
+     * (connection perdue, interblocage, pool saturé...) sont transitoires.
+     */
+    private static boolean definitive(Exception ex) {
+        if (ex instanceof RuntimeException) {
+            return true;
+        }
+        if (ex instanceof SQLNonTransientConnectionException) {
+            return false;
+        }
+        if (ex instanceof SQLNonTransientException) {
+            return true;
+        }
+        // drivers qui n'utilisent pas les sous-classes : classes 22 (donnée)
+        // et 23 (contrainte d'intégrité)
+        String etat = ((SQLException) ex).getSQLState();
+        return etat != null && (etat.startsWith("22") || etat.startsWith("23"));
+    }
+
+    private static SQLException enSQL(Exception ex) {
+        return ex instanceof SQLException ? (SQLException) ex : new SQLException(ex);
+    }
+
+    /**
+     * écrit le lot et note le commit.
+     */
+    private void ecritLot(Map<Long, Boolean> lot) throws SQLException {
+        RuntimeException erreurApresCommit = this.ecrit(lot);
+        this.verrou.lock();
+        try {
+            // lot commité : il n'est pas remis en attente, même si les
+            // structures dérivées n'ont pas pu être mises à jour
+            if (erreurApresCommit != null) {
+                this.derniereErreur = new SQLException(
+                        "lot écrit, structures dérivées non mises à jour", erreurApresCommit);
+            }
+            this.nbrLots++;
+        } finally {
+            this.verrou.unlock();
+        }
+    }
+
+    /**
+     * remet les événements en attente, sans écraser les événements plus
+     * récents sur les mêmes couples.
+     */
+    private void remet(Map<Long, Boolean> lot, Exception cause) {
+        this.verrou.lock();
+        try {
+            this.derniereErreur = enSQL(cause);
+            for (Map.Entry<Long, Boolean> e : lot.entrySet()) {
+                this.enAttente.putIfAbsent(e.getKey(), e.getValue());
+            }
+        } finally {
+            this.verrou.unlock();
+        }
+    }
+
+    private void rejette(Map<Long, Boolean> evenements, Exception cause) {
+        this.verrou.lock();
+        try {
+            this.nbrRejetes = this.nbrRejetes + evenements.size();
+            StringBuilder couples = new StringBuilder();
+            for (Long couple : evenements.keySet()) {
+                if (couples.length() > 60) {
+                    couples.append(" ...");
+                    break;
+                }
+                couples.append(" (").append(couple >> 32).append(",").append((int) (long) couple).append(")");
+            }
+            this.derniereErreur = new SQLException(evenements.size() + " événement(s) abandonné(s) :"
+                    + couples, cause);
+        } finally {
+            this.verrou.unlock();
+        }
+    }
+
+    /**
+     * retire de la file au plus tailleLot couples (les plus anciens).
+     */
+    private Map<Long, Boolean> extraitLot() {
+        if (this.enAttente.size() <= this.tailleLot) {
+            Map<Long, Boolean> res = this.enAttente;
+            this.enAttente = new LinkedHashMap<>();
+            return res;
+        }
+        Map<Long, Boolean> res = new LinkedHashMap<>();
+        Iterator<Map.Entry<Long, Boolean>> it = this.enAttente.entrySet().iterator();
+        while (res.size() < this.tailleLot) {
+            Map.Entry<Long, Boolean> e = it.next();
+            res.put(e.getKey(), e.getValue());
+            it.remove();
+        }
+        return res;
+    }
+
+    /**
+     * écrit un lot dans une transaction : un diff par u1, calculé par rapport
+     * à l'état de la base (apprécier un utilisateur déjà apprécié ne fait
+     * rien). Les événements dont un utilisateur n'existe pas sont retirés du
+     * lot et abandonnés.
+     *
+     * @return null, ou la première erreur de
+     * {@link Apprecie#apresCommit} : le lot est alors commité, mais les
+     * structures dérivées (index, compteurs, journal) ne sont pas à jour
+     * @throws SQLException (ou RuntimeException) si le lot n'est pas commité
+     */
+    private RuntimeException ecrit(Map<Long, Boolean> lot) throws SQLException {
+        List<Integer> u1s = new ArrayList<>();
+        List<Apprecie.Diff> diffs = new ArrayList<>();
+        try (ConnectionSGBD.Emprunt emp = this.connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            // avant la première écriture : voir Apprecie.verrouCommit
+            Lock verrouCommit = Apprecie.verrouCommit(this.connSGBD);
+            verrouCommit.lock();
+            conn.setAutoCommit(false);
+            try {
+                // tous les utilisateurs du lot d'abord, dans l'ordre des ids
+                int[] concernes = new int[2 * lot.size()];
+                int nc = 0;
+                for (Long couple : lot.keySet()) {
+                    concernes[nc++] = (int) (couple >> 32);
+                    concernes[nc++] = (int) (long) couple;
+                }
+                int[] existants = Apprecie.verrouilleUtilisateurs(this.connSGBD, concernes);
+                this.retireInconnus(lot, existants);
+                TreeMap<Integer, List<long[]>> parU1 = new TreeMap<>();
+                for (Map.Entry<Long, Boolean> e : lot.entrySet()) {
+                    int u1 = (int) (e.getKey() >> 32);
+                    int u2 = (int) (long) e.getKey();
+                    parU1.computeIfAbsent(u1, k -> new ArrayList<>()).add(new long[]{u2, e.getValue() ? 1 : 0});
+                }
+                for (Map.Entry<Integer, List<long[]>> e : parU1.entrySet()) {
+                    int u1 = e.getKey();
+                    Set<Integer> dejaApprecies = new HashSet<>();
+                    for (int u2 : Apprecie.apprecies(this.connSGBD, u1)) {
+                        dejaApprecies.add(u2);
+                    }
+                    int[] ajouts = new int[e.getValue().size()];
+                    int[] suppressions = new int[e.getValue().size()];
+                    int na = 0;
+                    int ns = 0;
+                    for (long[] ev : e.getValue()) {
+                        int u2 = (int) ev[0];
+                        boolean aime = ev[1] == 1;
+                        if (aime && !dejaApprecies.contains(u2)) {
+                            ajouts[na++] = u2;
+                        } else if (!aime && dejaApprecies.contains(u2)) {
+                            suppressions[ns++] = u2;
+                        }
+                    }
+                    ajouts = Arrays.copyOf(ajouts, na);
+                    suppressions = Arrays.copyOf(suppressions, ns);
+                    Arrays.sort(ajouts);
+                    Arrays.sort(suppressions);
+                    Apprecie.Diff diff = new Apprecie.Diff(ajouts, suppressions);
+                    if (!diff.isVide()) {
+                        u1s.add(u1);
+                        diffs.add(Apprecie.appliqueDiff(this.connSGBD, u1, diff));
+                    }
+                }
+                conn.commit();
+                RuntimeException res = null;
+                for (int i = 0; i < u1s.size(); i++) {
+                    try {
+                        Apprecie.apresCommit(this.connSGBD, u1s.get(i), diffs.get(i));
+                    } catch (RuntimeException ex) {
+                        // les diffs suivants sont tout de même reportés
+                        if (res == null) {
+                            res = ex;
+                        } else {
+                            res.addSuppressed(ex);
+                        }
+                    }
+                }
+                return res;
+            } catch (SQLException | RuntimeException ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+                verrouCommit.unlock();
+            }
+        }
+    }
+
+    /**
+     * retire du lot (et abandonne) les événements dont u1 ou u2 n'existe pas :
+     * ils violeraient la clé étrangère et feraient échouer tout le lot.
+     *
+     * @param existants ids existants, triés
+     */
+    private void retireInconnus(Map<Long, Boolean> lot, int[] existants) {
+        Map<Long, Boolean> inconnus = new LinkedHashMap<>();
+        Iterator<Map.Entry<Long, Boolean>> it = lot.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Boolean> e = it.next();
+            if (Arrays.binarySearch(existants, (int) (e.getKey() >> 32)) < 0
+                    || Arrays.binarySearch(existants, (int) (long) e.getKey()) < 0) {
+                inconnus.put(e.getKey(), e.getValue());
+                it.remove();
+            }
+        }
+        if (!inconnus.isEmpty()) {
+            this.rejette(inconnus, new SQLException("utilisateur inexistant"));
+        }
+    }
+
+    /**
+     * n'accepte plus d'événements, et attend que ceux en attente soient
+     * écrits.
+     */
+    @Override
+    public void close() {
+        this.verrou.lock();
+        try {
+            this.ferme = true;
+            this.nonVide.signalAll();
+            this.nonPlein.signalAll();
+        } finally {
+            this.verrou.unlock();
+        }
+        try {
+            this.ecrivain.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.ConsoleFdB;
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import fr.insa.beuvron.utils.database.InsertionParLots;
+import fr.insa.beuvron.utils.list.ListUtils;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Création en masse de données de test (utilisateurs et relation apprecie)
+ * pour les tests de charge.
+ * <p>
+ * Les insertions sont faites par lots ({@link InsertionParLots}), dans des
+ * transactions de taille bornée : on ne paye pas un commit par ligne, et on
+ * ne garde pas une transaction géante ouverte.
+ * </p>
+ *
+ * @author francois
+ */
+public class GenerateurDonnees {
+
+    /**
+     * nombre de lignes par transaction par défaut.
+     */
+    public static final int TAILLE_TRANSACTION = 10000;
+
+    /**
+     * suivi de l'avancement d'un traitement long.
+     */
+    @FunctionalInterface
+    public interface Progression {
+
+        public void avance(String etape, long fait, long total);
+    }
+
+    /**
+     * affiche l'avancement sur la console tous les 10%.
+     */
+    public static Progression progressionConsole() {
+        return new Progression() {
+            private String derniereEtape = null;
+            private long dernierPalier = -1;
+
+            @Override
+            public void avance(String etape, long fait, long total) {
+                long palier = total == 0 ? 10 : (fait * 10) / total;
+                if (!etape.equals(this.derniereEtape) || palier != this.dernierPalier) {
+                    this.derniereEtape = etape;
+                    this.dernierPalier = palier;
+                    System.out.println(etape + " : " + fait + " / " + total);
+                }
+            }
+        };
+    }
+
+    /**
+     * distribution du nombre d'utilisateurs appréciés par chaque utilisateur
+     * (degré sortant).
+     */
+    public enum Distribution {
+        /**
+         * tout le monde apprécie le même nombre d'utilisateurs, choisis
+         * uniformément.
+         */
+        CONSTANTE,
+        /**
+         * degré uniforme entre 0 et deux fois le degré moyen, cibles choisies
+         * uniformément.
+         */
+        UNIFORME,
+        /**
+         * degré suivant une loi de puissance (Pareto d'exposant 2) : beaucoup
+         * d'utilisateurs avec peu de liens, quelques uns avec beaucoup. Les
+         * cibles sont également biaisées : quelques utilisateurs très
+         * populaires concentrent une grande partie des appréciations.
+         */
+        PUISSANCE;
+
+        private int degre(double degreMoyen, int max, Random rand) {
+            double d;
+            if (this == CONSTANTE) {
+                d = degreMoyen;
+            } else if (this == UNIFORME) {
+                d = rand.nextDouble() * 2 * degreMoyen;
+            } else {
+                // Pareto(xm, 2) : moyenne = 2 xm
+                double xm = degreMoyen / 2;
+                d = xm / Math.sqrt(1 - rand.nextDouble());
+            }
+            return (int) Math.min(max, Math.round(d));
+        }
+
+        private int cible(int nbr, Random rand) {
+            if (this == PUISSANCE) {
+                double u = rand.nextDouble();
+                return (int) (nbr * u * u * u);
+            } else {
+                return rand.nextInt(nbr);
+            }
+        }
+    }
+
+    /**
+     * crée nbr utilisateurs de test nommés nomBase1, nomBase2 ... de mot de
+     * passe "pass".
+     *
+     * @return les identificateurs des utilisateurs créés (dans l'ordre)
+     */
+    public static int[] creeUtilisateurs(ConnectionSGBD connSGBD, String nomBase, int nbr,
+            int tailleTransaction, Progression prog) throws SQLException {
+        int[] ids = new int[nbr];
+        int[] nbrIds = new int[1];
+        // un seul hachage (donc un seul sel) pour tous : ce sont des données de
+        // test, et hacher chaque mot de passe prendrait des heures
+        String pass = MoteurLogin.get(connSGBD).hache("pass");
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            conn.setAutoCommit(false);
+            try (InsertionParLots ins = new InsertionParLots(connSGBD, 1000,
+                    id -> ids[nbrIds[0]++] = id,
+                    "utilisateur", "login", "password", "description", "idrole")) {
+                for (int i = 1; i <= nbr; i++) {
+                    ins.ajoute(nomBase + i, pass, "utilisateur test", 2);
+                    if (i % tailleTransaction == 0) {
+                        ins.flush();
+                        conn.commit();
+                        prog.avance("utilisateurs", i, nbr);
+                    }
+                }
+                ins.flush();
+                conn.commit();
+                prog.avance("utilisateurs", nbr, nbr);
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * crée une relation apprecie aléatoire entre les utilisateurs ids.
+     *
+     * @param ids les utilisateurs concernés
+     * @param distribution distribution des degrés sortants
+     * @param degreMoyen nombre moyen d'utilisateurs appréciés
+     * @param graine graine du générateur aléatoire (reproductibilité)
+     * @return le nombre de couples créés
+     */
+    public static long creeApprecies(ConnectionSGBD connSGBD, int[] ids,
+            Distribution distribution, double degreMoyen, long graine,
+            int tailleTransaction, Progression prog) throws SQLException {
+        Random rand = new Random(graine);
+        int nbr = ids.length;
+        // la permutation évite que les plus populaires soient les premiers créés
+        int[] perm = ids.clone();
+        for (int i = nbr - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int t = perm[i];
+            perm[i] = perm[j];
+            perm[j] = t;
+        }
+        long total = 0;
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            conn.setAutoCommit(false);
+            try (InsertionParLots ins = new InsertionParLots(connSGBD, "apprecie", "u1", "u2")) {
+                long dejaCommit = 0;
+                Set<Integer> cibles = new HashSet<>();
+                for (int i = 0; i < nbr; i++) {
+                    int u1 = ids[i];
+                    int degre = distribution.degre(degreMoyen, nbr - 1, rand);
+                    cibles.clear();
+                    // on abandonne après quelques tirages infructueux (degrés proches de nbr)
+                    int essais = 0;
+                    while (cibles.size() < degre && essais < 3 * degre + 10) {
+                        int u2 = perm[distribution.cible(nbr, rand)];
+                        if (u2 != u1 && cibles.add(u2)) {
+                            ins.ajoute(u1, u2);
+                            total++;
+                        }
+                        essais++;
+                    }
+                    if (total - dejaCommit >= tailleTransaction) {
+                        ins.flush();
+                        conn.commit();
+                        dejaCommit = total;
+                        prog.avance("apprecie (utilisateurs traités)", i + 1, nbr);
+                    }
+                }
+                ins.flush();
+                conn.commit();
+                prog.avance("apprecie (utilisateurs traités)", nbr, nbr);
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        Apprecie.apresModificationEnMasse(connSGBD);
+        return total;
+    }
+
+    public static void menuGeneration(ConnectionSGBD connSGBD) throws SQLException {
+        String nomBase = ConsoleFdB.entreeString("nom de base des utilisateurs");
+        int nbr = ConsoleFdB.entreeInt("nombre d'utilisateurs à créer");
+        Distribution distrib = ListUtils.selectOne("--- distribution des degrés",
+                Arrays.asList(Distribution.values()), Distribution::toString);
+        int degreMoyen = ConsoleFdB.entreeInt("nombre moyen d'utilisateurs appréciés");
+        long debut = System.currentTimeMillis();
+        Progression prog = progressionConsole();
+        int[] ids = creeUtilisateurs(connSGBD, nomBase, nbr, TAILLE_TRANSACTION, prog);
+        long nbrApp = creeApprecies(connSGBD, ids, distrib, degreMoyen,
+                System.nanoTime(), TAILLE_TRANSACTION, prog);
+        System.out.println(nbr + " utilisateurs et " + nbrApp + " appréciations créés en "
+                + (System.currentTimeMillis() - debut) + " ms");
+    }
+
+}
@@ -20,10 +20,22 @@ package fr.insa.beuvron.cours.m3.projets.likes.model;
 
 import fr.insa.beuvron.utils.ConsoleFdB;
 import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import fr.insa.beuvron.utils.database.ResultSetUtils;
 import fr.insa.beuvron.utils.exceptions.ExceptionsUtils;
+import fr.insa.beuvron.utils.list.ListUtils;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Paths;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 /**
  *
@@ -46,41 +58,213 @@ public class GestionBdD {
                 "localhost",3306,"test","test","pass");
     }
 
+    /**
+     * taille de la colonne password : assez grande pour les mots de passe
+     * hachés (voir {@link MoteurLogin}).
+     */
+    public static final int TAILLE_PASSWORD = 200;
+
     public static void creeSchema(ConnectionSGBD connSGBD) throws SQLException {
-        Connection conn = connSGBD.getCon();
+        // les statements en cache peuvent référencer l'ancien schéma
+        connSGBD.videCacheRequetes();
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate(
+                        "create table role (\n"
+                        + "  id integer primary key,\n"
+                        + "  nom varchar(20),\n"
+                        + "  description text \n"
+                        + ")");
+                st.executeUpdate(
+                        "create table utilisateur (\n"
+                        + connSGBD.getSgbd().sqlForGeneratedIntPKColumn("id") + ",\n"
+                        + "  login varchar(50),\n"
+                        + "  password varchar(" + TAILLE_PASSWORD + "),\n"
+                        + "  description text, \n"
+                        + "  idrole integer,\n"
+                        + "  " + sqlColonneCompteur("nb_apprecie") + ",\n"
+                        + "  " + sqlColonneCompteur("nb_apprecie_par")
+                        + ")");
+                st.executeUpdate(
+                        "create table apprecie (\n"
+                        + "  u1 integer not null,\n"
+                        + "  u2 integer not null,\n"
+                        + "  constraint pk_apprecie primary key (u1,u2)"
+                        + ")");
+                st.executeUpdate(sqlCreeAmitie());
+                st.executeUpdate(sqlCreeStatistiques());
+                // index créés avant les clés étrangères pour que mysql ne crée
+                // pas ses propres index sur u1 et u2
+                st.executeUpdate(sqlIndexApprecieInverse(connSGBD));
+                st.executeUpdate(sqlIndexLogin(connSGBD));
+                st.executeUpdate(
+                        "alter table utilisateur \n"
+                        + "  add constraint fk_utilisateur_idrole \n"
+                        + "  foreign key (idrole) references role(id)");
+                st.executeUpdate(
+                        "alter table apprecie \n"
+                        + "  add constraint fk_apprecie_u1 \n"
+                        + "  foreign key (u1) references utilisateur(id)");
+                st.executeUpdate(
+                        "alter table apprecie \n"
+                        + "  add constraint fk_apprecie_u2 \n"
+                        + "  foreign key (u2) references utilisateur(id)");
+                creeClesAmitie(st);
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * la relation amitie est symétrique : chaque couple d'amis y est présent
+     * dans les deux sens, la clé primaire (u1,u2) suffit donc pour toutes les
+     * recherches. Elle est tenue à jour par {@link Apprecie}.
+     */
+    private static String sqlCreeAmitie() {
+        return "create table amitie (\n"
+                + "  u1 integer not null,\n"
+                + "  u2 integer not null,\n"
+                + "  constraint pk_amitie primary key (u1,u2)"
+                + ")";
+    }
+
+    /**
+     * compteurs dénormalisés de utilisateur (nombre de lignes de apprecie
+     * par u1 et par u2), tenus à jour par {@link Apprecie}.
+     */
+    private static String sqlColonneCompteur(String nom) {
+        return nom + " integer default 0 not null";
+    }
+
+    /**
+     * résultats de {@link AnalyseGraphe}, entièrement recalculés à chaque
+     * analyse : pas de clé étrangère.
+     */
+    private static String sqlCreeStatistiques() {
+        return "create table statistiques_utilisateur (\n"
+                + "  id integer primary key,\n"
+                + "  nbr_apprecie integer,\n"
+                + "  nbr_apprecie_par integer,\n"
+                + "  pagerank double precision,\n"
+                + "  composante integer"
+                + ")";
+    }
+
+    private static void creeClesAmitie(Statement st) throws SQLException {
+        st.executeUpdate(
+                "alter table amitie \n"
+                + "  add constraint fk_amitie_u1 \n"
+                + "  foreign key (u1) references utilisateur(id)");
+        st.executeUpdate(
+                "alter table amitie \n"
+                + "  add constraint fk_amitie_u2 \n"
+                + "  foreign key (u2) references utilisateur(id)");
+    }
+
+    /**
+     * index (u2,u1) : les recherches par u2 (appreciePar, amis) ; la clé
+     * primaire (u1,u2) sert pour les recherches par u1.
+     */
+    private static String sqlIndexApprecieInverse(ConnectionSGBD connSGBD) {
+        return connSGBD.getSgbd().sqlForCreateIndex("idx_apprecie_u2_u1", "apprecie", "u2,u1", false);
+    }
+
+    private static String sqlIndexLogin(ConnectionSGBD connSGBD) {
+        return connSGBD.getSgbd().sqlForCreateIndex("idx_utilisateur_login", "utilisateur", "login", true);
+    }
+
+    /**
+     * ajoute à un schéma existant (créé par une version précédente de
+     * {@link #creeSchema}) les clés et index manquants, sans perte de
+     * données. Peut être appelée plusieurs fois.
+     * <pre>
+     * . clé primaire (u1,u2) de apprecie (après suppression des doublons)
+     * . index (u2,u1) de apprecie
+     * . index unique sur utilisateur.login (échoue s'il existe des doublons
+     *   de login : ils doivent être corrigés à la main)
+     * . colonne utilisateur.password agrandie pour les mots de passe hachés
+     *   (les mots de passe en clair sont hachés lors du login suivant)
+     * . table amitie, remplie à partir de apprecie
+     * . table statistiques_utilisateur (vide : voir {@link AnalyseGraphe})
+     * . colonnes utilisateur.nb_apprecie et nb_apprecie_par, calculées à
+     *   partir de apprecie
+     * </pre>
+     */
+    public static void migreSchema(ConnectionSGBD connSGBD) throws SQLException {
+        connSGBD.videCacheRequetes();
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            try (Statement st = conn.createStatement()) {
+                if (!aClePrimaire(conn, "apprecie") && !aIndex(conn, "apprecie", "pk_apprecie")) {
+                    supprimeDoublonsApprecie(conn);
+                    for (String col : new String[]{"u1", "u2"}) {
+                        String sql = connSGBD.getSgbd().sqlForSetNotNull("apprecie", col, "integer");
+                        if (sql != null) {
+                            st.executeUpdate(sql);
+                        }
+                    }
+                    st.executeUpdate(connSGBD.getSgbd().sqlForAddPrimaryKey("pk_apprecie", "apprecie", "u1,u2"));
+                }
+                if (!aIndex(conn, "apprecie", "idx_apprecie_u2_u1")) {
+                    st.executeUpdate(sqlIndexApprecieInverse(connSGBD));
+                }
+                if (!aIndex(conn, "utilisateur", "idx_utilisateur_login")) {
+                    st.executeUpdate(sqlIndexLogin(connSGBD));
+                }
+                int taille = tailleColonne(conn, "utilisateur", "password");
+                if (taille >= 0 && taille < TAILLE_PASSWORD) {
+                    String sql = connSGBD.getSgbd().sqlForAlterColumnType(
+                            "utilisateur", "password", "varchar(" + TAILLE_PASSWORD + ")");
+                    if (sql != null) {
+                        st.executeUpdate(sql);
+                    }
+                }
+                if (!aTable(conn, "amitie")) {
+                    st.executeUpdate(sqlCreeAmitie());
+                    creeClesAmitie(st);
+                    Apprecie.reconstruitAmities(connSGBD);
+                }
+                if (!aTable(conn, "statistiques_utilisateur")) {
+                    st.executeUpdate(sqlCreeStatistiques());
+                }
+                boolean compteurs = false;
+                for (String col : new String[]{"nb_apprecie", "nb_apprecie_par"}) {
+                    if (tailleColonne(conn, "utilisateur", col) < 0) {
+                        st.executeUpdate("alter table utilisateur add column " + sqlColonneCompteur(col));
+                        compteurs = true;
+                    }
+                }
+                if (compteurs) {
+                    Apprecie.recalculeCompteurs(connSGBD);
+                }
+            }
+        }
+    }
+
+    private static void supprimeDoublonsApprecie(Connection conn) throws SQLException {
         conn.setAutoCommit(false);
         try (Statement st = conn.createStatement()) {
-            st.executeUpdate(
-                    "create table role (\n"
-                    + "  id integer primary key,\n"
-                    + "  nom varchar(20),\n"
-                    + "  description text \n"
-                    + ")");
-            st.executeUpdate(
-                    "create table utilisateur (\n"
-                    + connSGBD.getSgbd().sqlForGeneratedIntPKColumn("id") + ",\n"
-                    + "  login varchar(50),\n"
-                    + "  password varchar(40),\n"
-                    + "  description text, \n"
-                    + "  idrole integer"
-                    + ")");
-            st.executeUpdate(
-                    "create table apprecie (\n"
-                    + "  u1 integer,\n"
-                    + "  u2 integer"
-                    + ")");
-            st.executeUpdate(
-                    "alter table utilisateur \n"
-                    + "  add constraint fk_utilisateur_idrole \n"
-                    + "  foreign key (idrole) references role(id)");
-            st.executeUpdate(
-                    "alter table apprecie \n"
-                    + "  add constraint fk_apprecie_u1 \n"
-                    + "  foreign key (u1) references utilisateur(id)");
-            st.executeUpdate(
-                    "alter table apprecie \n"
-                    + "  add constraint fk_apprecie_u2 \n"
-                    + "  foreign key (u2) references utilisateur(id)");
+            st.executeUpdate("delete from apprecie where u1 is null or u2 is null");
+            boolean doublons;
+            try (ResultSet res = st.executeQuery(
+                    "select count(*) from (select u1,u2 from apprecie "
+                    + " group by u1,u2 having count(*) > 1) doublons")) {
+                res.next();
+                doublons = res.getInt(1) > 0;
+            }
+            if (doublons) {
+                st.executeUpdate("create table apprecie_sans_doublons as select distinct u1,u2 from apprecie");
+                st.executeUpdate("delete from apprecie");
+                st.executeUpdate("insert into apprecie (u1,u2) select u1,u2 from apprecie_sans_doublons");
+                st.executeUpdate("drop table apprecie_sans_doublons");
+            }
             conn.commit();
         } catch (SQLException ex) {
             conn.rollback();
@@ -90,8 +274,71 @@ public class GestionBdD {
         }
     }
 
+    /**
+     * les SGBD ne stockent pas les noms non quotés avec la même casse
+     * (h2 : majuscules, postgresql : minuscules) : on essaye les trois.
+     */
+    private static String[] casses(String nom) {
+        return new String[]{nom, nom.toUpperCase(), nom.toLowerCase()};
+    }
+
+    private static boolean aClePrimaire(Connection conn, String table) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        for (String t : casses(table)) {
+            try (ResultSet res = meta.getPrimaryKeys(conn.getCatalog(), null, t)) {
+                if (res.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean aTable(Connection conn, String table) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        for (String t : casses(table)) {
+            try (ResultSet res = meta.getTables(conn.getCatalog(), null, t, new String[]{"TABLE"})) {
+                if (res.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean aIndex(Connection conn, String table, String index) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        for (String t : casses(table)) {
+            try (ResultSet res = meta.getIndexInfo(conn.getCatalog(), null, t, false, true)) {
+                while (res.next()) {
+                    if (index.equalsIgnoreCase(res.getString("INDEX_NAME"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return la taille déclarée de la colonne (COLUMN_SIZE des métadonnées),
+     * ou -1 si la colonne n'est pas trouvée
+     */
+    private static int tailleColonne(Connection conn, String table, String colonne) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        for (String t : casses(table)) {
+            for (String c : casses(colonne)) {
+                try (ResultSet res = meta.getColumns(conn.getCatalog(), null, t, c)) {
+                    if (res.next()) {
+                        return res.getInt("COLUMN_SIZE");
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
     public static void initialise(ConnectionSGBD connSGBD) throws SQLException {
-        Connection conn = connSGBD.getCon();
         Role radmin = new Role(1, "admin", "administrateur");
         radmin.sauvegarde(connSGBD);
         Role user = new Role(2, "user", "utilisateur de base");
@@ -106,13 +353,65 @@ public class GestionBdD {
         initialise(connSGBD);
     }
 
+    /**
+     * supprime les tables, et oublie les structures dérivées associées à la
+     * base (index, compteurs, cache des rôles, écritures différées...) : les
+     * identifiants seront réutilisés par le nouveau schéma.
+     */
     public static void supprimeSchema(ConnectionSGBD connSGBD) throws SQLException {
-        Connection conn = connSGBD.getCon();
+        // les écritures différées en attente passent par verrouCommit :
+        // on les vide avant de prendre verrouChargement
+        EcrituresDifferees differees;
+        ModeleAsync async;
+        synchronized (connSGBD) {
+            differees = connSGBD.getExtension(EcrituresDifferees.class);
+            connSGBD.setExtension(EcrituresDifferees.class, null);
+            async = connSGBD.getExtension(ModeleAsync.class);
+            connSGBD.setExtension(ModeleAsync.class, null);
+        }
+        if (differees != null) {
+            differees.close();
+        }
+        if (async != null) {
+            async.close();
+        }
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Lock verrou = Apprecie.verrouChargement(emp);
+            verrou.lock();
+            try {
+                connSGBD.videCacheRequetes();
+                Role.invalideCache(connSGBD);
+                connSGBD.setExtension(GrapheApprecie.class, null);
+                connSGBD.setExtension(CompteursApprecie.class, null);
+                JournalApprecie journal = JournalApprecie.get(connSGBD);
+                if (journal != null) {
+                    try {
+                        journal.efface();
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+                supprimeTables(emp.getCon());
+            } finally {
+                verrou.unlock();
+            }
+        }
+    }
+
+    private static void supprimeTables(Connection conn) throws SQLException {
         try (Statement st = conn.createStatement()) {
             try {
                 st.executeUpdate("alter table utilisateur drop constraint fk_utilisateur_idrole");
             } catch (SQLException ex) {
             }
+            try {
+                st.executeUpdate("alter table amitie drop constraint fk_amitie_u1");
+            } catch (SQLException ex) {
+            }
+            try {
+                st.executeUpdate("alter table amitie drop constraint fk_amitie_u2");
+            } catch (SQLException ex) {
+            }
             try {
                 st.executeUpdate("alter table apprecie drop constraint fk_apprecie_u1");
             } catch (SQLException ex) {
@@ -121,6 +420,14 @@ public class GestionBdD {
                 st.executeUpdate("alter table apprecie drop constraint fk_apprecie_u2");
             } catch (SQLException ex) {
             }
+            try {
+                st.executeUpdate("drop table statistiques_utilisateur");
+            } catch (SQLException ex) {
+            }
+            try {
+                st.executeUpdate("drop table amitie");
+            } catch (SQLException ex) {
+            }
             try {
                 st.executeUpdate("drop table apprecie");
             } catch (SQLException ex) {
@@ -134,7 +441,6 @@ public class GestionBdD {
             } catch (SQLException ex) {
             }
         }
-
     }
 
     public static void menuPrincipal(ConnectionSGBD connSGBD) {
@@ -147,7 +453,16 @@ public class GestionBdD {
             System.out.println((i++) + ") créer schéma");
             System.out.println((i++) + ") initialiser la BdD");
             System.out.println((i++) + ") RAZ de la BdD =  supprime + crée + init");
+            System.out.println((i++) + ") migrer le schéma (ajoute clés et index manquants)");
             System.out.println((i++) + ") menu utilisateur");
+            System.out.println((i++) + ") générer des données de test en masse");
+            System.out.println((i++) + ") charger l'index mémoire de apprecie");
+            System.out.println((i++) + ") charger l'index mémoire depuis un instantané");
+            System.out.println((i++) + ") écrire l'instantané de l'index mémoire");
+            System.out.println((i++) + ") analyser le graphe (degrés, PageRank, composantes)");
+            System.out.println((i++) + ") journal des appréciations");
+            System.out.println((i++) + ") export / import csv des utilisateurs et de apprecie");
+            System.out.println((i++) + ") afficher le contenu d'une table");
             System.out.println("0) Fin");
             rep = ConsoleFdB.entreeEntier("Votre choix : ");
             try {
@@ -160,15 +475,69 @@ public class GestionBdD {
                     initialise(connSGBD);
                 } else if (rep == j++) {
                     razBdD(connSGBD);
+                } else if (rep == j++) {
+                    migreSchema(connSGBD);
                 } else if (rep == j++) {
                     Utilisateur.menuUtilisateur(connSGBD);
+                } else if (rep == j++) {
+                    GenerateurDonnees.menuGeneration(connSGBD);
+                } else if (rep == j++) {
+                    long debut = System.currentTimeMillis();
+                    GrapheApprecie graphe = GrapheApprecie.charge(connSGBD);
+                    System.out.println(graphe.getNbrArcs() + " couples chargés en "
+                            + (System.currentTimeMillis() - debut) + " ms");
+                } else if (rep == j++) {
+                    String nom = ConsoleFdB.entreeString("fichier de l'instantané : ");
+                    System.out.println(InstantaneGraphe.demarre(connSGBD, Paths.get(nom)));
+                } else if (rep == j++) {
+                    String nom = ConsoleFdB.entreeString("fichier de l'instantané : ");
+                    long debut = System.currentTimeMillis();
+                    long taille = InstantaneGraphe.ecrit(connSGBD, Paths.get(nom));
+                    System.out.println(taille + " octets écrits en "
+                            + (System.currentTimeMillis() - debut) + " ms");
+                } else if (rep == j++) {
+                    AnalyseGraphe.menuAnalyse(connSGBD);
+                } else if (rep == j++) {
+                    JournalApprecie.menuJournal(connSGBD);
+                } else if (rep == j++) {
+                    TransfertCSV.menuCSV(connSGBD);
+                } else if (rep == j++) {
+                    String table = ListUtils.selectOne("--- choisissez la table",
+                            List.of("role", "utilisateur", "apprecie", "amitie", "statistiques_utilisateur"), String::toString);
+                    afficheTable(connSGBD, table);
                 }
-            } catch (SQLException ex) {
+            } catch (IOException | SQLException ex) {
                 System.out.println(ExceptionsUtils.messageEtPremiersAppelsDansPackage(ex, "fr.insa", 5));
             }
         }
     }
 
+    /**
+     * affiche le contenu d'une table sur la sortie standard, au fil de la
+     * lecture.
+     */
+    public static void afficheTable(ConnectionSGBD connSGBD, String table) throws SQLException {
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            // postgresql ne lit en flux qu'en dehors du mode autocommit
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                connSGBD.getSgbd().configureLectureEnFlux(st);
+                ResultSet res = st.executeQuery("select * from " + table);
+                Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+                long nbr = ResultSetUtils.formatResultSetAsTxt(res, out, 1000);
+                out.flush();
+                System.out.println(nbr + " lignes");
+            } catch (IOException ex) {
+                throw new Error(ex);
+            } finally {
+                // lecture seule : rien à valider
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
     public static void debut() {
         try {
             ConnectionSGBD connSGBD = defautCon();
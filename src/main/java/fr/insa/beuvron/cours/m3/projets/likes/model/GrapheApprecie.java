@@ -0,0 +1,573 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index en mémoire de la relation apprecie.
+ * <p>
+ * Pour chaque utilisateur (indexé directement par son id), on garde le
+ * tableau trié des utilisateurs qu'il apprécie (sortants) et de ceux qui
+ * l'apprécient (entrants). Les requêtes apprecie/appreciePar/amis deviennent
+ * de simples lectures de tableaux (amis = intersection de deux tableaux
+ * triés).
+ * </p>
+ * <p>
+ * Les mêmes ensembles sont disponibles sous forme de
+ * {@link BitmapCompresse}, construits à la première demande et gardés tant
+ * que l'utilisateur n'est pas modifié : intersections, unions et différences
+ * entre utilisateurs populaires (amis, amis communs, appréciations non
+ * réciproques) se font alors mot à mot.
+ * </p>
+ * <p>
+ * L'index est chargé une fois depuis la table apprecie par
+ * {@link #charge(fr.insa.beuvron.utils.database.ConnectionSGBD)}, puis
+ * associé à la base : les écritures qui passent par {@link Apprecie} le
+ * tiennent à jour après chaque commit. Les lectures de
+ * {@link Utilisateur}, {@link UtilisateurResume} et {@link Profil} passent
+ * alors par l'index.
+ * </p>
+ *
+ * @author francois
+ */
+public class GrapheApprecie {
+
+    private static final int[] VIDE = new int[0];
+
+    /**
+     * degré minimum à partir duquel {@link #amis(int)} passe par les bitmaps.
+     */
+    private static final int SEUIL_BITMAP = 256;
+
+    private int[][] sortants;
+    private int[] nbrSortants;
+    private int[][] entrants;
+    private int[] nbrEntrants;
+    private long nbrArcs;
+    /**
+     * bitmaps déjà construits (null sinon), remis à null quand la liste
+     * correspondante est modifiée.
+     */
+    private BitmapCompresse[] bitmapsSortants;
+    private BitmapCompresse[] bitmapsEntrants;
+
+    /**
+     * dernier instantané construit, null s'il a été modifié depuis.
+     */
+    private volatile GrapheCSR instantane;
+
+    private final ReentrantReadWriteLock verrou = new ReentrantReadWriteLock();
+
+    private GrapheApprecie(int taille) {
+        this.sortants = new int[taille][];
+        this.nbrSortants = new int[taille];
+        this.entrants = new int[taille][];
+        this.nbrEntrants = new int[taille];
+        this.bitmapsSortants = new BitmapCompresse[taille];
+        this.bitmapsEntrants = new BitmapCompresse[taille];
+    }
+
+    /**
+     * @return l'index associé à la base, ou null s'il n'a pas été chargé
+     */
+    public static GrapheApprecie get(ConnectionSGBD connSGBD) {
+        return connSGBD.getExtension(GrapheApprecie.class);
+    }
+
+    /**
+     * charge (ou recharge) l'index depuis la table apprecie et l'associe à la
+     * base. Les commits de {@link Apprecie} attendent la fin du chargement
+     * (voir {@link Apprecie#verrouChargement}) puis sont reportés dans le
+     * nouvel index.
+     */
+    public static GrapheApprecie charge(ConnectionSGBD connSGBD) throws SQLException {
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Lock verrou = Apprecie.verrouChargement(emp);
+            verrou.lock();
+            try {
+                GrapheApprecie res = lit(connSGBD);
+                connSGBD.setExtension(GrapheApprecie.class, res);
+                return res;
+            } finally {
+                verrou.unlock();
+            }
+        }
+    }
+
+    /**
+     * lit la table apprecie en flux, sans associer l'index à la base.
+     */
+    private static GrapheApprecie lit(ConnectionSGBD connSGBD) throws SQLException {
+        int[] u1s = new int[1024];
+        int[] u2s = new int[1024];
+        int n = 0;
+        int maxId = 0;
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            // postgresql ne lit en flux qu'en dehors du mode autocommit
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                connSGBD.getSgbd().configureLectureEnFlux(st);
+                ResultSet res = st.executeQuery("select u1,u2 from apprecie");
+                while (res.next()) {
+                    if (n == u1s.length) {
+                        u1s = Arrays.copyOf(u1s, n * 2);
+                        u2s = Arrays.copyOf(u2s, n * 2);
+                    }
+                    u1s[n] = res.getInt(1);
+                    u2s[n] = res.getInt(2);
+                    maxId = Math.max(maxId, Math.max(u1s[n], u2s[n]));
+                    n++;
+                }
+            } finally {
+                // lecture seule : rien à valider
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }
+        return construit(u1s, u2s, n, maxId);
+    }
+
+    /**
+     * construit un index (non associé à une base) à partir des n couples
+     * (u1s[i],u2s[i]), sans doublons.
+     *
+     * @param maxId le plus grand identificateur des couples
+     */
+    static GrapheApprecie construit(int[] u1s, int[] u2s, int n, int maxId) {
+        GrapheApprecie res = new GrapheApprecie(maxId + 1);
+        // comptage des degrés puis remplissage : pas de réallocation
+        for (int i = 0; i < n; i++) {
+            res.nbrSortants[u1s[i]]++;
+            res.nbrEntrants[u2s[i]]++;
+        }
+        for (int u = 0; u <= maxId; u++) {
+            if (res.nbrSortants[u] > 0) {
+                res.sortants[u] = new int[res.nbrSortants[u]];
+            }
+            if (res.nbrEntrants[u] > 0) {
+                res.entrants[u] = new int[res.nbrEntrants[u]];
+            }
+        }
+        int[] posS = new int[maxId + 1];
+        int[] posE = new int[maxId + 1];
+        for (int i = 0; i < n; i++) {
+            res.sortants[u1s[i]][posS[u1s[i]]++] = u2s[i];
+            res.entrants[u2s[i]][posE[u2s[i]]++] = u1s[i];
+        }
+        for (int u = 0; u <= maxId; u++) {
+            if (res.sortants[u] != null) {
+                Arrays.sort(res.sortants[u]);
+            }
+            if (res.entrants[u] != null) {
+                Arrays.sort(res.entrants[u]);
+            }
+        }
+        res.nbrArcs = n;
+        return res;
+    }
+
+    /**
+     * construit un index (non associé à une base) à partir des listes
+     * triées des utilisateurs appréciés, au format CSR (voir
+     * {@link GrapheCSR}). Les entrants, remplis dans l'ordre des u1, sont
+     * triés sans tri.
+     */
+    static GrapheApprecie depuisCSR(int[] debutsSortants, int[] sortants) {
+        int taille = debutsSortants.length - 1;
+        GrapheApprecie res = new GrapheApprecie(taille);
+        for (int u = 0; u < taille; u++) {
+            int n = debutsSortants[u + 1] - debutsSortants[u];
+            if (n > 0) {
+                res.sortants[u] = Arrays.copyOfRange(sortants, debutsSortants[u], debutsSortants[u + 1]);
+                res.nbrSortants[u] = n;
+            }
+        }
+        for (int v : sortants) {
+            res.nbrEntrants[v]++;
+        }
+        for (int u = 0; u < taille; u++) {
+            if (res.nbrEntrants[u] > 0) {
+                res.entrants[u] = new int[res.nbrEntrants[u]];
+            }
+        }
+        int[] posE = new int[taille];
+        for (int u = 0; u < taille; u++) {
+            for (int i = debutsSortants[u]; i < debutsSortants[u + 1]; i++) {
+                int v = sortants[i];
+                res.entrants[v][posE[v]++] = u;
+            }
+        }
+        res.nbrArcs = sortants.length;
+        return res;
+    }
+
+    private static int[] aplatit(int[][] adj, int[] nbr, int[] debuts) {
+        int taille = nbr.length;
+        for (int u = 0; u < taille; u++) {
+            debuts[u + 1] = debuts[u] + nbr[u];
+        }
+        int[] res = new int[debuts[taille]];
+        for (int u = 0; u < taille; u++) {
+            if (nbr[u] > 0) {
+                System.arraycopy(adj[u], 0, res, debuts[u], nbr[u]);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return un instantané non modifiable de l'index, que l'on peut
+     * parcourir sans verrou (calculs longs, parallèles). L'instantané est
+     * réutilisé tant que l'index n'est pas modifié.
+     */
+    public GrapheCSR instantane() {
+        this.verrou.readLock().lock();
+        try {
+            GrapheCSR res = this.instantane;
+            if (res == null) {
+                int taille = this.sortants.length;
+                int[] debutsS = new int[taille + 1];
+                int[] s = aplatit(this.sortants, this.nbrSortants, debutsS);
+                int[] debutsE = new int[taille + 1];
+                int[] e = aplatit(this.entrants, this.nbrEntrants, debutsE);
+                res = new GrapheCSR(debutsS, s, debutsE, e);
+                // plusieurs lecteurs peuvent le construire en même temps : le
+                // dernier gagne, ils sont identiques
+                this.instantane = res;
+            }
+            return res;
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return les recommandations pour u (voir
+     * {@link Recommandations#pour}), calculées sous le verrou en lecture
+     */
+    List<Recommandations.Recommandation> recommandations(int u, int k, Recommandations.Score score) {
+        this.verrou.readLock().lock();
+        try {
+            return Recommandations.calcule(this.sortants, this.nbrSortants, u, k, score);
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+    private static int[] copie(int[][] adj, int[] nbr, int u) {
+        if (u < 0 || u >= adj.length || nbr[u] == 0) {
+            return VIDE;
+        }
+        return Arrays.copyOf(adj[u], nbr[u]);
+    }
+
+    /**
+     * @return les ids des utilisateurs appréciés par u (triés)
+     */
+    public int[] apprecie(int u) {
+        this.verrou.readLock().lock();
+        try {
+            return copie(this.sortants, this.nbrSortants, u);
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return les ids des utilisateurs qui apprécient u (triés)
+     */
+    public int[] appreciePar(int u) {
+        this.verrou.readLock().lock();
+        try {
+            return copie(this.entrants, this.nbrEntrants, u);
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@code u1 ami u2 <==> u1 apprecie u2 et u2 apprecie u1}
+     *
+     * @return les ids des amis de u (triés)
+     */
+    public int[] amis(int u) {
+        this.verrou.readLock().lock();
+        try {
+            if (u < 0 || u >= this.sortants.length || this.nbrSortants[u] == 0 || this.nbrEntrants[u] == 0) {
+                return VIDE;
+            }
+            if (Math.min(this.nbrSortants[u], this.nbrEntrants[u]) >= SEUIL_BITMAP) {
+                return bitmap(this.sortants, this.nbrSortants, this.bitmapsSortants, u)
+                        .et(bitmap(this.entrants, this.nbrEntrants, this.bitmapsEntrants, u)).versTableau();
+            }
+            int[] s = this.sortants[u];
+            int ns = this.nbrSortants[u];
+            int[] e = this.entrants[u];
+            int ne = this.nbrEntrants[u];
+            int[] res = new int[Math.min(ns, ne)];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < ns && j < ne) {
+                if (s[i] < e[j]) {
+                    i++;
+                } else if (s[i] > e[j]) {
+                    j++;
+                } else {
+                    res[n++] = s[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(res, n);
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+    /**
+     * le bitmap de adj[u], construit au premier appel. Appelé sous le verrou
+     * en lecture : deux threads peuvent le construire en même temps, l'un
+     * des deux (identiques) est gardé.
+     */
+    private static BitmapCompresse bitmap(int[][] adj, int[] nbr, BitmapCompresse[] cache, int u) {
+        if (u < 0 || u >= adj.length || nbr[u] == 0) {
+            return BitmapCompresse.VIDE;
+        }
+        BitmapCompresse res = cache[u];
+        if (res == null) {
+            res = BitmapCompresse.depuisTrie(adj[u], 0, nbr[u]);
+            cache[u] = res;
+        }
+        return res;
+    }
+
+    /**
+     * @return l'ensemble des utilisateurs appréciés par u
+     */
+    public BitmapCompresse bitmapApprecie(int u) {
+        this.verrou.readLock().lock();
+        try {
+            return bitmap(this.sortants, this.nbrSortants, this.bitmapsSortants, u);
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return l'ensemble des utilisateurs qui apprécient u
+     */
+    public BitmapCompresse bitmapAppreciePar(int u) {
+        this.verrou.readLock().lock();
+        try {
+            return bitmap(this.entrants, this.nbrEntrants, this.bitmapsEntrants, u);
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return l'ensemble des amis de u
+     */
+    public BitmapCompresse bitmapAmis(int u) {
+        this.verrou.readLock().lock();
+        try {
+            return bitmap(this.sortants, this.nbrSortants, this.bitmapsSortants, u)
+                    .et(bitmap(this.entrants, this.nbrEntrants, this.bitmapsEntrants, u));
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return les amis communs de u et v (triés)
+     */
+    public int[] amisCommuns(int u, int v) {
+        return this.bitmapAmis(u).et(this.bitmapAmis(v)).versTableau();
+    }
+
+    /**
+     * @return le nombre d'amis communs de u et v
+     */
+    public int nbrAmisCommuns(int u, int v) {
+        return this.bitmapAmis(u).cardinaliteEt(this.bitmapAmis(v));
+    }
+
+    /**
+     * @return les utilisateurs qui apprécient u sans que u les apprécie
+     * (triés)
+     */
+    public int[] nonReciproques(int u) {
+        return this.bitmapAppreciePar(u).sauf(this.bitmapApprecie(u)).versTableau();
+    }
+
+    /**
+     * @return true si u1 apprécie u2
+     */
+    public boolean apprecie(int u1, int u2) {
+        this.verrou.readLock().lock();
+        try {
+            return u1 >= 0 && u1 < this.sortants.length && this.nbrSortants[u1] > 0
+                    && Arrays.binarySearch(this.sortants[u1], 0, this.nbrSortants[u1], u2) >= 0;
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+    public int nbrApprecie(int u) {
+        this.verrou.readLock().lock();
+        try {
+            return u >= 0 && u < this.nbrSortants.length ? this.nbrSortants[u] : 0;
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+    public int nbrAppreciePar(int u) {
+        this.verrou.readLock().lock();
+        try {
+            return u >= 0 && u < this.nbrEntrants.length ? this.nbrEntrants[u] : 0;
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return le nombre de couples (u1,u2) de la relation
+     */
+    public long getNbrArcs() {
+        this.verrou.readLock().lock();
+        try {
+            return this.nbrArcs;
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return 1 + le plus grand id pouvant apparaitre dans l'index
+     */
+    public int getTaille() {
+        this.verrou.readLock().lock();
+        try {
+            return this.sortants.length;
+        } finally {
+            this.verrou.readLock().unlock();
+        }
+    }
+
+    private void assureTaille(int u) {
+        if (u >= this.sortants.length) {
+            int taille = Math.max(u + 1, this.sortants.length * 3 / 2 + 1);
+            this.sortants = Arrays.copyOf(this.sortants, taille);
+            this.nbrSortants = Arrays.copyOf(this.nbrSortants, taille);
+            this.entrants = Arrays.copyOf(this.entrants, taille);
+            this.nbrEntrants = Arrays.copyOf(this.nbrEntrants, taille);
+            this.bitmapsSortants = Arrays.copyOf(this.bitmapsSortants, taille);
+            this.bitmapsEntrants = Arrays.copyOf(this.bitmapsEntrants, taille);
+        }
+    }
+
+    /**
+     * insère v dans le tableau trié adj[u].
+     *
+     * @return false si v y était déjà
+     */
+    private static boolean insere(int[][] adj, int[] nbr, int u, int v) {
+        int[] t = adj[u];
+        int n = nbr[u];
+        int pos = t == null ? -1 : Arrays.binarySearch(t, 0, n, v);
+        if (pos >= 0) {
+            return false;
+        }
+        pos = -pos - 1;
+        if (t == null) {
+            t = new int[4];
+        } else if (n == t.length) {
+            t = Arrays.copyOf(t, n * 2);
+        }
+        System.arraycopy(t, pos, t, pos + 1, n - pos);
+        t[pos] = v;
+        adj[u] = t;
+        nbr[u] = n + 1;
+        return true;
+    }
+
+    private static boolean retire(int[][] adj, int[] nbr, int u, int v) {
+        int[] t = adj[u];
+        int n = nbr[u];
+        int pos = t == null ? -1 : Arrays.binarySearch(t, 0, n, v);
+        if (pos < 0) {
+            return false;
+        }
+        System.arraycopy(t, pos + 1, t, pos, n - pos - 1);
+        nbr[u] = n - 1;
+        return true;
+    }
+
+    private void invalideBitmaps(int u1, int[] u2s) {
+        if (u1 < this.bitmapsSortants.length) {
+            this.bitmapsSortants[u1] = null;
+        }
+        for (int u2 : u2s) {
+            if (u2 < this.bitmapsEntrants.length) {
+                this.bitmapsEntrants[u2] = null;
+            }
+        }
+    }
+
+    /**
+     * reporte dans l'index un diff déjà commité dans la base.
+     */
+    public void appliqueDiff(int u1, Apprecie.Diff diff) {
+        this.verrou.writeLock().lock();
+        try {
+            this.instantane = null;
+            this.invalideBitmaps(u1, diff.getSuppressions());
+            this.invalideBitmaps(u1, diff.getAjouts());
+            for (int u2 : diff.getSuppressions()) {
+                if (u1 < this.sortants.length && u2 < this.sortants.length
+                        && retire(this.sortants, this.nbrSortants, u1, u2)) {
+                    retire(this.entrants, this.nbrEntrants, u2, u1);
+                    this.nbrArcs--;
+                }
+            }
+            for (int u2 : diff.getAjouts()) {
+                this.assureTaille(Math.max(u1, u2));
+                if (insere(this.sortants, this.nbrSortants, u1, u2)) {
+                    insere(this.entrants, this.nbrEntrants, u2, u1);
+                    this.nbrArcs++;
+                }
+            }
+        } finally {
+            this.verrou.writeLock().unlock();
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * Instantané non modifiable de la relation apprecie au format CSR
+ * (compressed sparse row).
+ * <p>
+ * Les utilisateurs appréciés par u sont
+ * {@code getSortants()[getDebutsSortants()[u] .. getDebutsSortants()[u+1]-1]},
+ * triés ; de même pour les entrants. Deux tableaux par sens quel que soit le
+ * nombre d'utilisateurs : pas d'objet par utilisateur, parcours séquentiels
+ * en mémoire. N'étant jamais modifié, un instantané peut être lu par
+ * plusieurs threads sans synchronisation.
+ * </p>
+ *
+ * @author francois
+ */
+public class GrapheCSR {
+
+    private final int[] debutsSortants;
+    private final int[] sortants;
+    private final int[] debutsEntrants;
+    private final int[] entrants;
+
+    /**
+     * les tableaux ne sont pas copiés : ils ne doivent plus être modifiés.
+     *
+     * @param debutsSortants taille = taille du graphe + 1
+     * @param sortants listes triées des utilisateurs appréciés, bout à bout
+     * @param debutsEntrants taille = taille du graphe + 1
+     * @param entrants listes triées des utilisateurs qui apprécient, bout à
+     * bout
+     */
+    public GrapheCSR(int[] debutsSortants, int[] sortants, int[] debutsEntrants, int[] entrants) {
+        this.debutsSortants = debutsSortants;
+        this.sortants = sortants;
+        this.debutsEntrants = debutsEntrants;
+        this.entrants = entrants;
+    }
+
+    /**
+     * lit la table apprecie directement dans un instantané, sans passer par
+     * {@link GrapheApprecie} (calculs par lots sur toute la relation).
+     * <p>
+     * Les couples sont lus en flux dans l'ordre (u1,u2) de la clé primaire :
+     * les sortants arrivent déjà triés et groupés, et les entrants, remplis
+     * dans ce même ordre, le sont aussi. Pas de tri en mémoire, et seulement
+     * quatre tableaux d'entiers (environ 8 octets par couple).
+     * </p>
+     */
+    public static GrapheCSR lit(ConnectionSGBD connSGBD) throws SQLException {
+        // nbr[u+1] : nombre de sortants (puis d'entrants) de u
+        int[] nbrS = new int[1024];
+        int[] sortants = new int[1024];
+        int nbrArcs = 0;
+        int maxId = -1;
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            // postgresql ne lit en flux qu'en dehors du mode autocommit
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                connSGBD.getSgbd().configureLectureEnFlux(st);
+                ResultSet res = st.executeQuery("select u1,u2 from apprecie order by u1,u2");
+                while (res.next()) {
+                    int u1 = res.getInt(1);
+                    int u2 = res.getInt(2);
+                    if (u1 + 2 > nbrS.length) {
+                        nbrS = Arrays.copyOf(nbrS, Math.max(u1 + 2, nbrS.length * 2));
+                    }
+                    if (nbrArcs == sortants.length) {
+                        sortants = Arrays.copyOf(sortants, nbrArcs * 2);
+                    }
+                    nbrS[u1 + 1]++;
+                    sortants[nbrArcs++] = u2;
+                    maxId = Math.max(maxId, Math.max(u1, u2));
+                }
+            } finally {
+                // lecture seule : rien à valider
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }
+        int taille = maxId + 1;
+        int[] debutsS = Arrays.copyOf(nbrS, taille + 1);
+        for (int u = 0; u < taille; u++) {
+            debutsS[u + 1] = debutsS[u + 1] + debutsS[u];
+        }
+        sortants = Arrays.copyOf(sortants, nbrArcs);
+        int[] debutsE = new int[taille + 1];
+        for (int i = 0; i < nbrArcs; i++) {
+            debutsE[sortants[i] + 1]++;
+        }
+        for (int u = 0; u < taille; u++) {
+            debutsE[u + 1] = debutsE[u + 1] + debutsE[u];
+        }
+        int[] entrants = new int[nbrArcs];
+        int[] pos = Arrays.copyOf(debutsE, taille);
+        for (int u = 0; u < taille; u++) {
+            for (int i = debutsS[u]; i < debutsS[u + 1]; i++) {
+                entrants[pos[sortants[i]]++] = u;
+            }
+        }
+        return new GrapheCSR(debutsS, sortants, debutsE, entrants);
+    }
+
+    /**
+     * @return 1 + le plus grand id pouvant apparaitre
+     */
+    public int getTaille() {
+        return this.debutsSortants.length - 1;
+    }
+
+    public long getNbrArcs() {
+        return this.sortants.length;
+    }
+
+    private boolean contient(int u) {
+        return u >= 0 && u < this.getTaille();
+    }
+
+    public int nbrApprecie(int u) {
+        return this.contient(u) ? this.debutsSortants[u + 1] - this.debutsSortants[u] : 0;
+    }
+
+    public int nbrAppreciePar(int u) {
+        return this.contient(u) ? this.debutsEntrants[u + 1] - this.debutsEntrants[u] : 0;
+    }
+
+    public int[] getDebutsSortants() {
+        return debutsSortants;
+    }
+
+    public int[] getSortants() {
+        return sortants;
+    }
+
+    public int[] getDebutsEntrants() {
+        return debutsEntrants;
+    }
+
+    public int[] getEntrants() {
+        return entrants;
+    }
+
+}
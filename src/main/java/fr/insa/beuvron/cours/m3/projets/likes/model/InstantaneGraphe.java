@@ -0,0 +1,476 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
+
+/**
+ * Instantané de la relation apprecie dans un fichier, pour charger l'index
+ * mémoire ({@link GrapheApprecie}) au démarrage sans relire toute la table.
+ * <p>
+ * Format : un en-tête de {@link #TAILLE_ENTETE} octets (marque, version,
+ * taille du graphe, nombre de couples, haute marque, longueur et CRC32 des
+ * données), puis pour chaque utilisateur u (de 0 à taille-1) le nombre
+ * d'utilisateurs qu'il apprécie suivi de leurs ids triés, codés par
+ * différence avec le précédent. Tous ces entiers sont des varints (7 bits par
+ * octet) : un couple prend le plus souvent un ou deux octets au lieu de huit
+ * dans la table.
+ * </p>
+ * <p>
+ * La haute marque est la séquence du {@link JournalApprecie} au moment de
+ * l'écriture (-1 sans journal) : l'instantané contient tous les événements
+ * antérieurs. Au démarrage ({@link #demarre}), on rejoue les événements du
+ * journal qui suivent, puis on compare le nombre d'utilisateurs appréciés de
+ * chacun avec la colonne utilisateur.nb_apprecie (lecture de la seule table
+ * utilisateur) et on relit les listes qui diffèrent. Sans journal, une
+ * modification qui ne change pas le nombre d'utilisateurs appréciés (un
+ * remplacé par un autre) n'est pas vue.
+ * </p>
+ *
+ * @author francois
+ */
+public class InstantaneGraphe {
+
+    private static final long MARQUE = 0x4C494B4553534E50L;
+    private static final int VERSION = 1;
+    public static final int TAILLE_ENTETE = 44;
+
+    private static final int TAILLE_TAMPON = 1 << 20;
+
+    private final int[] debutsSortants;
+    private final int[] sortants;
+    private final long hauteMarque;
+
+    private InstantaneGraphe(int[] debutsSortants, int[] sortants, long hauteMarque) {
+        this.debutsSortants = debutsSortants;
+        this.sortants = sortants;
+        this.hauteMarque = hauteMarque;
+    }
+
+    private static void ecritVarint(ByteBuffer buf, int val) {
+        while ((val & ~0x7F) != 0) {
+            buf.put((byte) ((val & 0x7F) | 0x80));
+            val = val >>> 7;
+        }
+        buf.put((byte) val);
+    }
+
+    private static int litVarint(ByteBuffer buf) {
+        int res = 0;
+        int decalage = 0;
+        byte b;
+        do {
+            b = buf.get();
+            res = res | ((b & 0x7F) << decalage);
+            decalage = decalage + 7;
+        } while (b < 0);
+        return res;
+    }
+
+    private static void vide(FileChannel canal, ByteBuffer buf, CRC32 crc) throws IOException {
+        buf.flip();
+        crc.update(buf.duplicate());
+        while (buf.hasRemaining()) {
+            canal.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * écrit l'instantané dans un fichier temporaire, puis le renomme : le
+     * fichier existant n'est remplacé que par un instantané complet.
+     *
+     * @return la taille du fichier
+     */
+    public static long ecrit(GrapheCSR graphe, long hauteMarque, Path fichier) throws IOException {
+        Path temp = fichier.resolveSibling(fichier.getFileName() + ".tmp");
+        int[] debuts = graphe.getDebutsSortants();
+        int[] sortants = graphe.getSortants();
+        int taille = graphe.getTaille();
+        long longueur;
+        CRC32 crc = new CRC32();
+        try (FileChannel canal = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(TAILLE_TAMPON);
+            canal.position(TAILLE_ENTETE);
+            for (int u = 0; u < taille; u++) {
+                if (buf.remaining() < 5) {
+                    vide(canal, buf, crc);
+                }
+                ecritVarint(buf, debuts[u + 1] - debuts[u]);
+                int prec = 0;
+                for (int i = debuts[u]; i < debuts[u + 1]; i++) {
+                    if (buf.remaining() < 5) {
+                        vide(canal, buf, crc);
+                    }
+                    ecritVarint(buf, sortants[i] - prec);
+                    prec = sortants[i];
+                }
+            }
+            vide(canal, buf, crc);
+            longueur = canal.position() - TAILLE_ENTETE;
+            buf.putLong(MARQUE).putInt(VERSION).putInt(taille).putLong(graphe.getNbrArcs())
+                    .putLong(hauteMarque).putLong(longueur).putInt((int) crc.getValue());
+            buf.flip();
+            canal.write(buf, 0);
+            canal.force(true);
+        }
+        Files.move(temp, fichier, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return TAILLE_ENTETE + longueur;
+    }
+
+    /**
+     * écrit l'instantané de la relation associée à la base : l'index mémoire
+     * s'il est chargé, sinon la table apprecie.
+     */
+    public static long ecrit(ConnectionSGBD connSGBD, Path fichier) throws IOException, SQLException {
+        // haute marque lue avant le graphe : les événements suivants seront
+        // rejoués, même s'ils sont déjà dans l'instantané
+        JournalApprecie journal = JournalApprecie.get(connSGBD);
+        long hauteMarque = journal == null ? -1 : journal.getProchaineSequence();
+        GrapheApprecie index = GrapheApprecie.get(connSGBD);
+        GrapheCSR graphe = index == null ? GrapheCSR.lit(connSGBD) : index.instantane();
+        return ecrit(graphe, hauteMarque, fichier);
+    }
+
+    /**
+     * lit un instantané (fichier projeté en mémoire) et vérifie son CRC.
+     *
+     * @throws IOException si le fichier n'est pas un instantané valide
+     */
+    public static InstantaneGraphe lit(Path fichier) throws IOException {
+        try (FileChannel canal = FileChannel.open(fichier, StandardOpenOption.READ)) {
+            if (canal.size() < TAILLE_ENTETE || canal.size() > Integer.MAX_VALUE) {
+                throw new IOException(fichier + " : taille " + canal.size() + " incorrecte");
+            }
+            MappedByteBuffer buf = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+            if (buf.getLong() != MARQUE || buf.getInt() != VERSION) {
+                throw new IOException(fichier + " n'est pas un instantané (version " + VERSION + ")");
+            }
+            int taille = buf.getInt();
+            long nbrArcs = buf.getLong();
+            long hauteMarque = buf.getLong();
+            long longueur = buf.getLong();
+            int crcAttendu = buf.getInt();
+            if (taille < 0 || nbrArcs < 0 || nbrArcs > Integer.MAX_VALUE
+                    || longueur != canal.size() - TAILLE_ENTETE) {
+                throw new IOException(fichier + " : en-tête incorrect");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buf.duplicate());
+            if ((int) crc.getValue() != crcAttendu) {
+                throw new IOException(fichier + " : CRC incorrect");
+            }
+            int[] debuts = new int[taille + 1];
+            int[] sortants = new int[(int) nbrArcs];
+            int n = 0;
+            try {
+                for (int u = 0; u < taille; u++) {
+                    int nbr = litVarint(buf);
+                    int prec = 0;
+                    for (int i = 0; i < nbr; i++) {
+                        prec = prec + litVarint(buf);
+                        sortants[n++] = prec;
+                    }
+                    debuts[u + 1] = n;
+                }
+            } catch (RuntimeException ex) {
+                throw new IOException(fichier + " : données incorrectes", ex);
+            }
+            if (n != nbrArcs) {
+                throw new IOException(fichier + " : " + n + " couples au lieu de " + nbrArcs);
+            }
+            return new InstantaneGraphe(debuts, sortants, hauteMarque);
+        }
+    }
+
+    /**
+     * résultat de {@link #demarre}.
+     */
+    public static class Chargement {
+
+        private final GrapheApprecie graphe;
+        private final boolean depuisInstantane;
+        private final long nbrEvenementsRejoues;
+        private final int nbrUtilisateursRelus;
+        private final long dureeMs;
+
+        private Chargement(GrapheApprecie graphe, boolean depuisInstantane,
+                long nbrEvenementsRejoues, int nbrUtilisateursRelus, long dureeMs) {
+            this.graphe = graphe;
+            this.depuisInstantane = depuisInstantane;
+            this.nbrEvenementsRejoues = nbrEvenementsRejoues;
+            this.nbrUtilisateursRelus = nbrUtilisateursRelus;
+            this.dureeMs = dureeMs;
+        }
+
+        public GrapheApprecie getGraphe() {
+            return graphe;
+        }
+
+        public boolean isDepuisInstantane() {
+            return depuisInstantane;
+        }
+
+        public long getNbrEvenementsRejoues() {
+            return nbrEvenementsRejoues;
+        }
+
+        public int getNbrUtilisateursRelus() {
+            return nbrUtilisateursRelus;
+        }
+
+        public long getDureeMs() {
+            return dureeMs;
+        }
+
+        @Override
+        public String toString() {
+            return "Chargement{" + "nbrArcs=" + graphe.getNbrArcs() + ", depuisInstantane=" + depuisInstantane
+                    + ", nbrEvenementsRejoues=" + nbrEvenementsRejoues
+                    + ", nbrUtilisateursRelus=" + nbrUtilisateursRelus + ", dureeMs=" + dureeMs + '}';
+        }
+    }
+
+    /**
+     * charge l'index mémoire de la relation apprecie et l'associe à la base :
+     * depuis l'instantané s'il est valide, mis à jour par le journal et la
+     * base, sinon depuis la table apprecie (et l'instantané est alors
+     * réécrit).
+     * <p>
+     * La relecture du journal, le rattrapage et l'association à la base se
+     * font sous {@link Apprecie#verrouChargement} : les commits concurrents
+     * attendent, puis sont reportés dans l'index associé.
+     * </p>
+     */
+    public static Chargement demarre(ConnectionSGBD connSGBD, Path fichier) throws IOException, SQLException {
+        long debut = System.currentTimeMillis();
+        InstantaneGraphe inst = null;
+        if (Files.exists(fichier)) {
+            try {
+                inst = lit(fichier);
+            } catch (IOException ex) {
+                // instantané inutilisable : on relit la table
+            }
+        }
+        GrapheApprecie graphe = null;
+        long[] nbrRejoues = {0};
+        int nbrRelus = 0;
+        boolean depuisInstantane;
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Lock verrou = Apprecie.verrouChargement(emp);
+            verrou.lock();
+            try {
+                JournalApprecie journal = JournalApprecie.get(connSGBD);
+                boolean effacement = false;
+                if (inst != null) {
+                    graphe = GrapheApprecie.depuisCSR(inst.debutsSortants, inst.sortants);
+                    if (journal != null && inst.hauteMarque >= 0
+                            && inst.hauteMarque <= journal.getProchaineSequence()) {
+                        boolean[] eff = {false};
+                        GrapheApprecie g = graphe;
+                        JournalApprecie.lit(journal.getDossier(), inst.hauteMarque, (sequence, date, u1, u2, op) -> {
+                            if (op == JournalApprecie.EFFACEMENT) {
+                                eff[0] = true;
+                            } else if (!eff[0]) {
+                                int[] couple = {u2};
+                                g.appliqueDiff(u1, op == JournalApprecie.AJOUT
+                                        ? new Apprecie.Diff(couple, new int[0])
+                                        : new Apprecie.Diff(new int[0], couple));
+                                nbrRejoues[0]++;
+                            }
+                        });
+                        effacement = eff[0];
+                    }
+                }
+                depuisInstantane = graphe != null && !effacement;
+                if (depuisInstantane) {
+                    nbrRelus = rattrape(connSGBD, graphe);
+                    connSGBD.setExtension(GrapheApprecie.class, graphe);
+                } else {
+                    graphe = GrapheApprecie.charge(connSGBD);
+                    nbrRejoues[0] = 0;
+                }
+            } finally {
+                verrou.unlock();
+            }
+        }
+        if (!depuisInstantane) {
+            // hors du verrou : les commits n'attendent pas l'écriture du fichier
+            ecrit(connSGBD, fichier);
+        }
+        return new Chargement(graphe, depuisInstantane, nbrRejoues[0], nbrRelus,
+                System.currentTimeMillis() - debut);
+    }
+
+    /**
+     * relit dans la base les utilisateurs appréciés par les utilisateurs dont
+     * le nombre dans le graphe diffère de utilisateur.nb_apprecie.
+     *
+     * @return le nombre d'utilisateurs relus
+     */
+    private static int rattrape(ConnectionSGBD connSGBD, GrapheApprecie graphe) throws SQLException {
+        int[] differents = new int[16];
+        int n = 0;
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            // postgresql ne lit en flux qu'en dehors du mode autocommit
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                connSGBD.getSgbd().configureLectureEnFlux(st);
+                ResultSet res = st.executeQuery("select id,nb_apprecie from utilisateur");
+                while (res.next()) {
+                    int u = res.getInt(1);
+                    if (graphe.nbrApprecie(u) != res.getInt(2)) {
+                        if (n == differents.length) {
+                            differents = Arrays.copyOf(differents, n * 2);
+                        }
+                        differents[n++] = u;
+                    }
+                }
+            } finally {
+                // lecture seule : rien à valider
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            for (int i = 0; i < n; i++) {
+                int u = differents[i];
+                graphe.appliqueDiff(u, Apprecie.Diff.entre(graphe.apprecie(u), Apprecie.apprecies(connSGBD, u)));
+            }
+        }
+        return n;
+    }
+
+    /**
+     * écriture périodique de l'instantané de l'index mémoire, associée à la
+     * base (extension de {@link ConnectionSGBD}). L'instantané n'est réécrit
+     * que si l'index a été modifié, et une dernière fois à la fermeture de la
+     * base.
+     */
+    public static class Periodique implements AutoCloseable {
+
+        private final ConnectionSGBD connSGBD;
+        private final Path fichier;
+        private final ScheduledExecutorService planificateur;
+        /**
+         * instantané CSR de l'index au moment de la dernière écriture : le
+         * même objet tant que l'index n'est pas modifié.
+         */
+        private GrapheCSR dernierEcrit;
+
+        private Periodique(ConnectionSGBD connSGBD, Path fichier, long periodeSecondes) {
+            this.connSGBD = connSGBD;
+            this.fichier = fichier;
+            this.planificateur = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "instantane-graphe");
+                t.setDaemon(true);
+                return t;
+            });
+            this.planificateur.scheduleWithFixedDelay(() -> {
+                try {
+                    this.ecritSiModifie();
+                } catch (IOException ex) {
+                    // nouvel essai à la période suivante
+                }
+            }, periodeSecondes, periodeSecondes, TimeUnit.SECONDS);
+        }
+
+        /**
+         * démarre (ou redémarre) l'écriture périodique pour la base.
+         */
+        public static Periodique demarre(ConnectionSGBD connSGBD, Path fichier, long periodeSecondes) {
+            synchronized (connSGBD) {
+                Periodique ancien = connSGBD.getExtension(Periodique.class);
+                if (ancien != null) {
+                    ancien.planificateur.shutdownNow();
+                }
+                Periodique res = new Periodique(connSGBD, fichier, periodeSecondes);
+                connSGBD.setExtension(Periodique.class, res);
+                return res;
+            }
+        }
+
+        /**
+         * @return true si l'instantané a été écrit
+         */
+        public synchronized boolean ecritSiModifie() throws IOException {
+            GrapheApprecie index = GrapheApprecie.get(this.connSGBD);
+            if (index == null) {
+                return false;
+            }
+            JournalApprecie journal = JournalApprecie.get(this.connSGBD);
+            long hauteMarque = journal == null ? -1 : journal.getProchaineSequence();
+            GrapheCSR graphe = index.instantane();
+            if (graphe == this.dernierEcrit) {
+                return false;
+            }
+            ecrit(graphe, hauteMarque, this.fichier);
+            this.dernierEcrit = graphe;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            this.planificateur.shutdown();
+            try {
+                this.planificateur.awaitTermination(1, TimeUnit.MINUTES);
+                this.ecritSiModifie();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ex) {
+                // l'instantané précédent reste valide
+            }
+        }
+    }
+
+    public int[] getDebutsSortants() {
+        return debutsSortants;
+    }
+
+    public int[] getSortants() {
+        return sortants;
+    }
+
+    public long getHauteMarque() {
+        return hauteMarque;
+    }
+
+    public int getTaille() {
+        return debutsSortants.length - 1;
+    }
+
+}
@@ -0,0 +1,710 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.ConsoleFdB;
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import fr.insa.beuvron.utils.database.InsertionParLots;
+import fr.insa.beuvron.utils.exceptions.ExceptionsUtils;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Journal des modifications de la relation apprecie : chaque ajout ou
+ * suppression d'un couple (u1,u2) commité par {@link Apprecie} est ajouté à
+ * la fin d'un fichier, qui n'est jamais réécrit. On garde ainsi l'historique
+ * des appréciations, et on peut reconstruire la relation (dans la base ou en
+ * mémoire) en relisant le journal.
+ * <p>
+ * Le journal est une suite de segments de {@link #ENREGISTREMENTS_PAR_SEGMENT}
+ * enregistrements de taille fixe ({@link #TAILLE_ENREGISTREMENT} octets :
+ * date, u1, u2, opération, contrôle), projetés en mémoire : ajouter un
+ * événement est une simple écriture en mémoire, le système écrit les pages
+ * sur le disque. Le numéro de séquence d'un événement est sa position dans le
+ * journal ; chaque segment est nommé par la séquence de son premier
+ * enregistrement. La fin du journal est le premier enregistrement vide ou
+ * dont le contrôle est faux (écriture interrompue par un arrêt brutal).
+ * </p>
+ * <p>
+ * Le journal commence par l'état de la table au moment de son ouverture
+ * ({@link #amorce}) : un {@link #EFFACEMENT} suivi d'un {@link #AJOUT} par
+ * couple existant. Il en est de même après une modification en masse (voir
+ * {@link Apprecie#apresModificationEnMasse}).
+ * </p>
+ * <p>
+ * Les événements sont écrits après le commit (voir
+ * {@link Apprecie#apresCommit}) : un arrêt entre le commit et l'écriture
+ * perd l'événement, et deux transactions concurrentes sur le même u1
+ * peuvent être journalisées dans un ordre différent de leur commit. Les
+ * données écrites survivent à un arrêt de la jvm ; {@link #force()} les
+ * écrit sur le disque (arrêt du système).
+ * </p>
+ * <p>
+ * Le journal est donc un historique, pas un moyen de reprise après panne :
+ * la base reste la référence. {@link #rejoueDansBase} refuse de remplacer la
+ * table quand elle contient des couples absents de l'état final du journal
+ * (journal en retard sur la table).
+ * </p>
+ * <p>
+ * Une erreur d'écriture après un commit n'est pas propagée à l'appelant (sa
+ * transaction est commitée) : le journal est marqué incomplet
+ * ({@link #getErreur()}), les relectures depuis ce dossier sont refusées, et
+ * le prochain {@link #ouvre} le réamorce.
+ * </p>
+ *
+ * @author francois
+ */
+public class JournalApprecie implements AutoCloseable {
+
+    public static final int AJOUT = 1;
+    public static final int SUPPRESSION = 2;
+    /**
+     * la relation est vidée (tous les couples sont supprimés).
+     */
+    public static final int EFFACEMENT = 3;
+
+    public static final int TAILLE_ENREGISTREMENT = 24;
+    public static final int ENREGISTREMENTS_PAR_SEGMENT = 1 << 20;
+    private static final long TAILLE_SEGMENT = (long) TAILLE_ENREGISTREMENT * ENREGISTREMENTS_PAR_SEGMENT;
+
+    private static final String PREFIXE = "apprecie-";
+    private static final String SUFFIXE = ".journal";
+
+    /**
+     * reçoit les événements lus dans le journal.
+     */
+    @FunctionalInterface
+    public interface Lecteur {
+
+        public void evenement(long sequence, long date, int u1, int u2, int op);
+    }
+
+    private final ConnectionSGBD connSGBD;
+    private final Path dossier;
+    private FileChannel canal;
+    private MappedByteBuffer segment;
+    private long debutSegment;
+    private int position;
+    private boolean ferme = false;
+    private IOException erreur = null;
+
+    private JournalApprecie(ConnectionSGBD connSGBD, Path dossier) throws IOException {
+        this.connSGBD = connSGBD;
+        this.dossier = dossier;
+        Files.createDirectories(dossier);
+        long[] debuts = debutsSegments(dossier);
+        this.ouvreSegment(debuts.length == 0 ? 0 : debuts[debuts.length - 1]);
+    }
+
+    /**
+     * ouvre (ou crée) le journal du dossier et l'associe à la base : les
+     * modifications suivantes y seront ajoutées. Un journal vide est amorcé
+     * par le contenu actuel de la table apprecie.
+     * <p>
+     * Les commits de {@link Apprecie} attendent que le journal soit associé à
+     * la base (voir {@link Apprecie#verrouChargement}) : aucun n'est perdu
+     * entre l'amorce et l'association, ni entre l'ancien journal et le
+     * nouveau.
+     * </p>
+     */
+    public static JournalApprecie ouvre(ConnectionSGBD connSGBD, Path dossier)
+            throws IOException, SQLException {
+        JournalApprecie ancien = get(connSGBD);
+        if (ancien != null) {
+            // hors du verrou : les écritures différées ont besoin de commiter
+            ancien.ecritDifferees();
+        }
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Lock verrou = Apprecie.verrouChargement(emp);
+            verrou.lock();
+            try {
+                ancien = get(connSGBD);
+                boolean incomplet = false;
+                if (ancien != null) {
+                    incomplet = ancien.getErreur() != null;
+                    ancien.ferme();
+                    connSGBD.setExtension(JournalApprecie.class, null);
+                }
+                JournalApprecie res = new JournalApprecie(connSGBD, dossier);
+                try {
+                    // des événements manquent : on repart de l'état de la table
+                    if (res.getProchaineSequence() == 0 || incomplet) {
+                        res.amorce(connSGBD);
+                    }
+                } catch (IOException | SQLException ex) {
+                    res.ferme();
+                    throw ex;
+                }
+                connSGBD.setExtension(JournalApprecie.class, res);
+                return res;
+            } finally {
+                verrou.unlock();
+            }
+        }
+    }
+
+    /**
+     * détache le journal de la base puis le ferme (voir {@link #close()}).
+     * Les commits suivants ne sont plus journalisés.
+     */
+    public static void ferme(ConnectionSGBD connSGBD) throws SQLException {
+        JournalApprecie journal = get(connSGBD);
+        if (journal == null) {
+            return;
+        }
+        // hors du verrou : les écritures différées ont besoin de commiter
+        journal.ecritDifferees();
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Lock verrou = Apprecie.verrouChargement(emp);
+            verrou.lock();
+            try {
+                journal = get(connSGBD);
+                if (journal != null) {
+                    connSGBD.setExtension(JournalApprecie.class, null);
+                    journal.ferme();
+                }
+            } finally {
+                verrou.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return le journal associé à la base, ou null s'il n'a pas été ouvert
+     */
+    public static JournalApprecie get(ConnectionSGBD connSGBD) {
+        return connSGBD.getExtension(JournalApprecie.class);
+    }
+
+    private static Path cheminSegment(Path dossier, long debut) {
+        return dossier.resolve(String.format("%s%020d%s", PREFIXE, debut, SUFFIXE));
+    }
+
+    /**
+     * @return les séquences de début des segments du dossier, triées
+     */
+    private static long[] debutsSegments(Path dossier) throws IOException {
+        long[] res = new long[16];
+        int n = 0;
+        if (!Files.isDirectory(dossier)) {
+            return new long[0];
+        }
+        try (DirectoryStream<Path> fichiers = Files.newDirectoryStream(dossier, PREFIXE + "*" + SUFFIXE)) {
+            for (Path f : fichiers) {
+                String nom = f.getFileName().toString();
+                try {
+                    long debut = Long.parseLong(nom.substring(PREFIXE.length(), nom.length() - SUFFIXE.length()));
+                    if (n == res.length) {
+                        res = Arrays.copyOf(res, n * 2);
+                    }
+                    res[n++] = debut;
+                } catch (NumberFormatException ex) {
+                    // pas un segment
+                }
+            }
+        }
+        res = Arrays.copyOf(res, n);
+        Arrays.sort(res);
+        return res;
+    }
+
+    private void ouvreSegment(long debut) throws IOException {
+        this.canal = FileChannel.open(cheminSegment(this.dossier, debut),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // la projection agrandit le fichier à sa taille définitive (rempli de 0)
+        this.segment = this.canal.map(FileChannel.MapMode.READ_WRITE, 0, TAILLE_SEGMENT);
+        this.debutSegment = debut;
+        this.position = 0;
+        while (this.position < ENREGISTREMENTS_PAR_SEGMENT && valide(this.segment, this.position)) {
+            this.position++;
+        }
+    }
+
+    private static int controle(long date, int u1, int u2, int op) {
+        int h = Long.hashCode(date);
+        h = 31 * h + u1;
+        h = 31 * h + u2;
+        h = 31 * h + op;
+        // un enregistrement vide (que des 0) n'est pas valide
+        return h ^ 0x6a09e667;
+    }
+
+    private static boolean valide(MappedByteBuffer seg, int num) {
+        int pos = num * TAILLE_ENREGISTREMENT;
+        int op = seg.getInt(pos + 16);
+        return op >= AJOUT && op <= EFFACEMENT
+                && seg.getInt(pos + 20) == controle(seg.getLong(pos), seg.getInt(pos + 8), seg.getInt(pos + 12), op);
+    }
+
+    private void ecrit(long date, int u1, int u2, int op) throws IOException {
+        if (this.ferme) {
+            throw new IOException("journal fermé");
+        }
+        if (this.position == ENREGISTREMENTS_PAR_SEGMENT) {
+            this.segment.force();
+            this.canal.close();
+            this.ouvreSegment(this.debutSegment + ENREGISTREMENTS_PAR_SEGMENT);
+        }
+        int pos = this.position * TAILLE_ENREGISTREMENT;
+        this.segment.putLong(pos, date);
+        this.segment.putInt(pos + 8, u1);
+        this.segment.putInt(pos + 12, u2);
+        this.segment.putInt(pos + 16, op);
+        this.segment.putInt(pos + 20, controle(date, u1, u2, op));
+        this.position++;
+    }
+
+    /**
+     * ajoute au journal un diff commité pour u1 : les suppressions puis les
+     * ajouts.
+     */
+    public synchronized void ajoute(int u1, Apprecie.Diff diff) throws IOException {
+        long date = System.currentTimeMillis();
+        for (int u2 : diff.getSuppressions()) {
+            this.ecrit(date, u1, u2, SUPPRESSION);
+        }
+        for (int u2 : diff.getAjouts()) {
+            this.ecrit(date, u1, u2, AJOUT);
+        }
+    }
+
+    /**
+     * note que la relation a été vidée.
+     */
+    public synchronized void efface() throws IOException {
+        this.ecrit(System.currentTimeMillis(), 0, 0, EFFACEMENT);
+    }
+
+    /**
+     * écrit l'état actuel de la table apprecie : un effacement puis un ajout
+     * par couple. Les modifications concurrentes attendent la fin de
+     * l'amorce pour être journalisées.
+     */
+    public synchronized void amorce(ConnectionSGBD connSGBD) throws IOException, SQLException {
+        long date = System.currentTimeMillis();
+        this.ecrit(date, 0, 0, EFFACEMENT);
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            // postgresql ne lit en flux qu'en dehors du mode autocommit
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                connSGBD.getSgbd().configureLectureEnFlux(st);
+                ResultSet res = st.executeQuery("select u1,u2 from apprecie order by u1,u2");
+                while (res.next()) {
+                    this.ecrit(date, res.getInt(1), res.getInt(2), AJOUT);
+                }
+            } finally {
+                // lecture seule : rien à valider
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * marque le journal incomplet : un événement commité n'a pas pu être
+     * écrit. Seule la première erreur est gardée.
+     */
+    synchronized void noteErreur(IOException ex) {
+        if (this.erreur == null) {
+            this.erreur = ex;
+        }
+    }
+
+    /**
+     * @return la première erreur d'écriture d'un événement commité, ou null
+     * si le journal est complet
+     */
+    public synchronized IOException getErreur() {
+        return this.erreur;
+    }
+
+    /**
+     * refuse de relire le dossier du journal associé à la base s'il est
+     * incomplet.
+     */
+    private static void verifieComplet(ConnectionSGBD connSGBD, Path dossier) throws IOException {
+        JournalApprecie journal = get(connSGBD);
+        if (journal != null && journal.getErreur() != null
+                && journal.getDossier().toAbsolutePath().equals(dossier.toAbsolutePath())) {
+            throw new IOException("journal incomplet, à rouvrir : "
+                    + journal.getErreur().getMessage(), journal.getErreur());
+        }
+    }
+
+    /**
+     * @return la séquence du prochain événement (= nombre d'événements du
+     * journal)
+     */
+    public synchronized long getProchaineSequence() {
+        return this.debutSegment + this.position;
+    }
+
+    /**
+     * écrit sur le disque les événements du segment courant.
+     */
+    public synchronized void force() {
+        if (!this.ferme) {
+            this.segment.force();
+        }
+    }
+
+    public Path getDossier() {
+        return dossier;
+    }
+
+    /**
+     * lit les événements du journal à partir de la séquence depuis.
+     *
+     * @return la séquence qui suit le dernier événement lu
+     */
+    public static long lit(Path dossier, long depuis, Lecteur lecteur) throws IOException {
+        long suivant = depuis;
+        for (long debut : debutsSegments(dossier)) {
+            if (debut + ENREGISTREMENTS_PAR_SEGMENT <= depuis) {
+                continue;
+            }
+            try (FileChannel canal = FileChannel.open(cheminSegment(dossier, debut), StandardOpenOption.READ)) {
+                int nbr = (int) (Math.min(canal.size(), TAILLE_SEGMENT) / TAILLE_ENREGISTREMENT);
+                MappedByteBuffer seg = canal.map(FileChannel.MapMode.READ_ONLY, 0,
+                        (long) nbr * TAILLE_ENREGISTREMENT);
+                for (int i = (int) Math.max(0, depuis - debut); i < nbr; i++) {
+                    if (!valide(seg, i)) {
+                        // fin du journal
+                        return suivant;
+                    }
+                    int pos = i * TAILLE_ENREGISTREMENT;
+                    lecteur.evenement(debut + i, seg.getLong(pos), seg.getInt(pos + 8),
+                            seg.getInt(pos + 12), seg.getInt(pos + 16));
+                    suivant = debut + i + 1;
+                }
+            }
+        }
+        return suivant;
+    }
+
+    /**
+     * ensemble de couples (u1 &lt;&lt; 32 | u2) par adressage ouvert : un
+     * couple supprimé garde sa case (état absent), il n'y a jamais de retrait.
+     */
+    private static class EtatCouples {
+
+        private long[] cles = new long[1 << 16];
+        private byte[] etats = new byte[1 << 16];
+        private int nbrCases = 0;
+        private long nbrPresents = 0;
+
+        private void change(long cle, boolean present) {
+            if (2 * (this.nbrCases + 1) > this.cles.length) {
+                this.agrandit();
+            }
+            int masque = this.cles.length - 1;
+            int i = (int) ((cle * 0x9E3779B97F4A7C15L) >>> 40) & masque;
+            while (this.etats[i] != 0 && this.cles[i] != cle) {
+                i = (i + 1) & masque;
+            }
+            if (this.etats[i] == 0) {
+                this.cles[i] = cle;
+                this.nbrCases++;
+            }
+            boolean avant = this.etats[i] == 1;
+            this.etats[i] = (byte) (present ? 1 : 2);
+            if (avant != present) {
+                this.nbrPresents = this.nbrPresents + (present ? 1 : -1);
+            }
+        }
+
+        private void agrandit() {
+            long[] anciennesCles = this.cles;
+            byte[] anciensEtats = this.etats;
+            this.cles = new long[anciennesCles.length * 2];
+            this.etats = new byte[anciennesCles.length * 2];
+            this.nbrCases = 0;
+            this.nbrPresents = 0;
+            for (int i = 0; i < anciennesCles.length; i++) {
+                // les couples absents sont oubliés
+                if (anciensEtats[i] == 1) {
+                    this.change(anciennesCles[i], true);
+                }
+            }
+        }
+
+        private void vide() {
+            this.cles = new long[1 << 16];
+            this.etats = new byte[1 << 16];
+            this.nbrCases = 0;
+            this.nbrPresents = 0;
+        }
+
+        private long[] presents() {
+            long[] res = new long[(int) this.nbrPresents];
+            int n = 0;
+            for (int i = 0; i < this.cles.length; i++) {
+                if (this.etats[i] == 1) {
+                    res[n++] = this.cles[i];
+                }
+            }
+            Arrays.sort(res);
+            return res;
+        }
+    }
+
+    /**
+     * rejoue tout le journal.
+     *
+     * @return les couples (u1 &lt;&lt; 32 | u2) de la relation à la fin du
+     * journal, triés
+     */
+    public static long[] etatFinal(Path dossier) throws IOException {
+        EtatCouples etat = new EtatCouples();
+        lit(dossier, 0, (sequence, date, u1, u2, op) -> {
+            if (op == EFFACEMENT) {
+                etat.vide();
+            } else {
+                etat.change(((long) u1 << 32) | u2, op == AJOUT);
+            }
+        });
+        return etat.presents();
+    }
+
+    /**
+     * reconstruit l'index mémoire de la relation apprecie à partir du journal,
+     * sans lire la base, et l'associe à la base. Les commits attendent la fin
+     * de la relecture (voir {@link Apprecie#verrouChargement}) puis sont
+     * reportés dans le nouvel index. L'index n'a l'état de la table que si le
+     * journal est à jour.
+     */
+    public static GrapheApprecie rejoueEnMemoire(ConnectionSGBD connSGBD, Path dossier)
+            throws IOException, SQLException {
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Lock verrou = Apprecie.verrouChargement(emp);
+            verrou.lock();
+            try {
+                verifieComplet(connSGBD, dossier);
+                GrapheApprecie res = construitIndex(etatFinal(dossier));
+                connSGBD.setExtension(GrapheApprecie.class, res);
+                return res;
+            } finally {
+                verrou.unlock();
+            }
+        }
+    }
+
+    private static GrapheApprecie construitIndex(long[] couples) {
+        int[] u1s = new int[couples.length];
+        int[] u2s = new int[couples.length];
+        int maxId = 0;
+        for (int i = 0; i < couples.length; i++) {
+            u1s[i] = (int) (couples[i] >>> 32);
+            u2s[i] = (int) couples[i];
+            maxId = Math.max(maxId, Math.max(u1s[i], u2s[i]));
+        }
+        return GrapheApprecie.construit(u1s, u2s, couples.length, maxId);
+    }
+
+    /**
+     * remplace le contenu de la table apprecie par l'état final du journal
+     * (en une transaction), puis recalcule les structures dérivées. Les
+     * commits de {@link Apprecie} attendent la fin de la reconstruction (voir
+     * {@link Apprecie#verrouChargement}). Les couples dont un utilisateur
+     * n'existe plus sont ignorés.
+     * <p>
+     * Ce n'est pas une reprise après panne : le journal peut avoir perdu les
+     * derniers événements (voir la description de la classe). La table n'est
+     * donc remplacée que si tous ses couples sont dans l'état final du
+     * journal.
+     * </p>
+     *
+     * @return le nombre de couples insérés
+     * @throws SQLException en particulier si la table contient un couple
+     * absent du journal (rien n'est modifié)
+     */
+    public static long rejoueDansBase(ConnectionSGBD connSGBD, Path dossier) throws IOException, SQLException {
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            // aucun commit entre la relecture de la table et la reconstruction
+            // des structures dérivées
+            Lock verrou = Apprecie.verrouChargement(emp);
+            verrou.lock();
+            try {
+                verifieComplet(connSGBD, dossier);
+                long nbr = remplaceTable(connSGBD, etatFinal(dossier));
+                // la base a l'état du journal : rien de nouveau à journaliser
+                Apprecie.reconstruitDerivees(connSGBD);
+                return nbr;
+            } finally {
+                verrou.unlock();
+            }
+        }
+    }
+
+    private static long remplaceTable(ConnectionSGBD connSGBD, long[] couples) throws SQLException {
+        long nbr = 0;
+        Connection conn = connSGBD.getCon();
+        // postgresql ne lit en flux qu'en dehors du mode autocommit
+        conn.setAutoCommit(false);
+        try {
+            BitSet existants = new BitSet();
+            try (Statement st = conn.createStatement()) {
+                connSGBD.getSgbd().configureLectureEnFlux(st);
+                ResultSet res = st.executeQuery("select id from utilisateur");
+                while (res.next()) {
+                    existants.set(res.getInt(1));
+                }
+            }
+            try (Statement st = conn.createStatement()) {
+                connSGBD.getSgbd().configureLectureEnFlux(st);
+                ResultSet res = st.executeQuery("select u1,u2 from apprecie");
+                while (res.next()) {
+                    int u1 = res.getInt(1);
+                    int u2 = res.getInt(2);
+                    if (Arrays.binarySearch(couples, ((long) u1 << 32) | u2) < 0) {
+                        throw new SQLException("journal en retard sur la table apprecie : "
+                                + u1 + " apprécie " + u2 + " n'est pas dans le journal");
+                    }
+                }
+            }
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate("delete from apprecie");
+            }
+            try (InsertionParLots ins = new InsertionParLots(connSGBD, "apprecie", "u1", "u2")) {
+                for (long couple : couples) {
+                    int u1 = (int) (couple >>> 32);
+                    int u2 = (int) couple;
+                    if (existants.get(u1) && existants.get(u2)) {
+                        ins.ajoute(u1, u2);
+                        nbr++;
+                    }
+                }
+            }
+            conn.commit();
+        } catch (SQLException ex) {
+            conn.rollback();
+            throw ex;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        return nbr;
+    }
+
+    public static void menuJournal(ConnectionSGBD connSGBD) {
+        int rep = -1;
+        while (rep != 0) {
+            int i = 1;
+            JournalApprecie journal = get(connSGBD);
+            System.out.println("Journal des appréciations");
+            System.out.println("==============");
+            if (journal == null) {
+                System.out.println("pas de journal ouvert");
+            } else {
+                System.out.println("journal " + journal.getDossier() + " : "
+                        + journal.getProchaineSequence() + " événements");
+                if (journal.getErreur() != null) {
+                    System.out.println("journal incomplet (à rouvrir) : " + journal.getErreur().getMessage());
+                }
+            }
+            System.out.println((i++) + ") ouvrir le journal");
+            System.out.println((i++) + ") afficher les derniers événements");
+            System.out.println((i++) + ") reconstruire l'index mémoire depuis le journal");
+            System.out.println((i++) + ") reconstruire la table apprecie depuis le journal");
+            System.out.println((i++) + ") fermer le journal");
+            System.out.println("0) Fin");
+            rep = ConsoleFdB.entreeEntier("Votre choix : ");
+            try {
+                int j = 1;
+                if (rep == j++) {
+                    String nom = ConsoleFdB.entreeString("dossier du journal : ");
+                    journal = ouvre(connSGBD, Paths.get(nom));
+                    System.out.println(journal.getProchaineSequence() + " événements");
+                } else if (journal == null) {
+                    if (rep != 0) {
+                        System.out.println("ouvrez d'abord le journal");
+                    }
+                } else if (rep == j++) {
+                    int nbr = ConsoleFdB.entreeInt("nombre d'événements : ");
+                    lit(journal.getDossier(), Math.max(0, journal.getProchaineSequence() - nbr),
+                            (sequence, date, u1, u2, op) -> System.out.println(sequence + " "
+                            + Instant.ofEpochMilli(date) + " : "
+                            + (op == EFFACEMENT ? "effacement" : u1 + (op == AJOUT ? " apprécie " : " n'apprécie plus ") + u2)));
+                } else if (rep == j++) {
+                    long debut = System.currentTimeMillis();
+                    GrapheApprecie graphe = rejoueEnMemoire(connSGBD, journal.getDossier());
+                    System.out.println(graphe.getNbrArcs() + " couples en "
+                            + (System.currentTimeMillis() - debut) + " ms");
+                } else if (rep == j++) {
+                    long debut = System.currentTimeMillis();
+                    long nbr = rejoueDansBase(connSGBD, journal.getDossier());
+                    System.out.println(nbr + " couples en "
+                            + (System.currentTimeMillis() - debut) + " ms");
+                } else if (rep == j++) {
+                    ferme(connSGBD);
+                }
+            } catch (IOException | SQLException ex) {
+                System.out.println(ExceptionsUtils.messageEtPremiersAppelsDansPackage(ex, "fr.insa", 5));
+            }
+        }
+    }
+
+    /**
+     * écrit les événements sur le disque et ferme le fichier. Les écritures
+     * différées en attente sont d'abord écrites, pour être journalisées.
+     */
+    @Override
+    public void close() {
+        this.ecritDifferees();
+        this.ferme();
+    }
+
+    private void ecritDifferees() {
+        EcrituresDifferees differees = this.connSGBD.getExtension(EcrituresDifferees.class);
+        if (differees != null) {
+            try {
+                differees.flush();
+            } catch (SQLException ex) {
+                // ces événements ne sont pas dans la base non plus
+            }
+        }
+    }
+
+    private synchronized void ferme() {
+        if (!this.ferme) {
+            this.ferme = true;
+            this.segment.force();
+            try {
+                this.canal.close();
+            } catch (IOException ex) {
+                // les données sont déjà dans le fichier projeté
+            }
+        }
+    }
+
+}
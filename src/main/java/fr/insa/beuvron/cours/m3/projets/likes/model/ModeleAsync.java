@@ -0,0 +1,220 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Version asynchrone des accès au modèle : chaque méthode retourne
+ * immédiatement un {@link CompletableFuture}, complété par le résultat de la
+ * méthode synchrone correspondante, ou exceptionnellement par une
+ * {@link CompletionException} dont la cause est la {@link SQLException}.
+ * <p>
+ * Utile depuis l'interface graphique, pour ne pas bloquer le thread de
+ * l'interface, et pour lancer en même temps des requêtes indépendantes :
+ * </p>
+ * <pre>
+ * ModeleAsync async = ModeleAsync.get(connSGBD);
+ * CompletableFuture&lt;List&lt;Utilisateur&gt;&gt; apprecie = async.apprecie(u);
+ * CompletableFuture&lt;List&lt;Utilisateur&gt;&gt; appreciePar = async.appreciePar(u);
+ * CompletableFuture&lt;List&lt;Utilisateur&gt;&gt; amis = async.amis(u);
+ * CompletableFuture.allOf(apprecie, appreciePar, amis).thenRun(() -&gt; ... join() ...);
+ * </pre>
+ * <p>
+ * Les traitements sont exécutés par des threads virtuels si la jvm en
+ * dispose (java 21 et plus), sinon par un pool borné de threads (démons)
+ * dont la file d'attente est elle aussi bornée. Dans les deux cas, un sémaphore limite le nombre de traitements
+ * qui utilisent la base en même temps à
+ * {@link ConnectionSGBD#getMaxEmpruntsSimultanes()} : les autres attendent
+ * leur tour (sans bloquer l'appelant), au lieu d'échouer faute de connection
+ * libre dans le pool.
+ * </p>
+ *
+ * @author francois
+ */
+public class ModeleAsync implements AutoCloseable {
+
+    /**
+     * un traitement synchrone sur la base.
+     */
+    @FunctionalInterface
+    public interface Traitement<T> {
+
+        public T execute() throws SQLException;
+    }
+
+    /**
+     * nombre maximum de traitements en attente quand la jvm ne dispose pas
+     * des threads virtuels : au delà, les traitements soumis échouent
+     * ({@link RejectedExecutionException}).
+     */
+    private static final int TAILLE_FILE = 10000;
+
+    private final ConnectionSGBD connSGBD;
+    private final ExecutorService executeur;
+    private final Semaphore limite;
+
+    /**
+     * @param connSGBD la base
+     * @param maxSimultanes nombre maximum de traitements en cours sur la base
+     */
+    public ModeleAsync(ConnectionSGBD connSGBD, int maxSimultanes) {
+        this.connSGBD = connSGBD;
+        this.executeur = creeExecuteur(Math.max(1, maxSimultanes));
+        this.limite = new Semaphore(Math.max(1, maxSimultanes), true);
+    }
+
+    /**
+     * @return la facade associée à la base (créée au premier appel)
+     */
+    public static ModeleAsync get(ConnectionSGBD connSGBD) {
+        synchronized (connSGBD) {
+            ModeleAsync res = connSGBD.getExtension(ModeleAsync.class);
+            if (res == null) {
+                res = new ModeleAsync(connSGBD, connSGBD.getMaxEmpruntsSimultanes());
+                connSGBD.setExtension(ModeleAsync.class, res);
+            }
+            return res;
+        }
+    }
+
+    /**
+     * un thread virtuel par traitement si possible. Le projet se compile en
+     * java 17 : la méthode java 21 est cherchée par réflexion. Sinon, au plus
+     * maxSimultanes threads (un thread de plus ne ferait qu'attendre le
+     * sémaphore) et une file bornée.
+     */
+    private static ExecutorService creeExecuteur(int maxSimultanes) {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            ThreadPoolExecutor res = new ThreadPoolExecutor(maxSimultanes, maxSimultanes,
+                    60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(TAILLE_FILE), r -> {
+                        Thread t = new Thread(r, "modele-async");
+                        t.setDaemon(true);
+                        return t;
+                    });
+            res.allowCoreThreadTimeOut(true);
+            return res;
+        }
+    }
+
+    /**
+     * exécute un traitement quelconque de façon asynchrone, en respectant la
+     * limite de traitements simultanés.
+     */
+    public <T> CompletableFuture<T> soumet(Traitement<T> traitement) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        try {
+            this.executeur.execute(() -> {
+                try {
+                    this.limite.acquire();
+                    try {
+                        res.complete(traitement.execute());
+                    } finally {
+                        this.limite.release();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    res.completeExceptionally(new CompletionException(ex));
+                } catch (SQLException | RuntimeException ex) {
+                    res.completeExceptionally(new CompletionException(ex));
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // facade fermée, ou file d'attente pleine (sans threads virtuels)
+            res.completeExceptionally(new CompletionException(ex));
+        }
+        return res;
+    }
+
+    /**
+     * voir
+     * {@link Utilisateur#login(fr.insa.beuvron.utils.database.ConnectionSGBD, java.lang.String, java.lang.String)}
+     */
+    public CompletableFuture<Optional<Utilisateur>> login(String login, String pass) {
+        return this.soumet(() -> Utilisateur.login(this.connSGBD, login, pass));
+    }
+
+    /**
+     * voir
+     * {@link Utilisateur#apprecie(fr.insa.beuvron.utils.database.ConnectionSGBD)}
+     */
+    public CompletableFuture<List<Utilisateur>> apprecie(Utilisateur u) {
+        return this.soumet(() -> u.apprecie(this.connSGBD));
+    }
+
+    /**
+     * voir
+     * {@link Utilisateur#appreciePar(fr.insa.beuvron.utils.database.ConnectionSGBD)}
+     */
+    public CompletableFuture<List<Utilisateur>> appreciePar(Utilisateur u) {
+        return this.soumet(() -> u.appreciePar(this.connSGBD));
+    }
+
+    /**
+     * voir
+     * {@link Utilisateur#amis(fr.insa.beuvron.utils.database.ConnectionSGBD)}
+     */
+    public CompletableFuture<List<Utilisateur>> amis(Utilisateur u) {
+        return this.soumet(() -> u.amis(this.connSGBD));
+    }
+
+    /**
+     * voir
+     * {@link Profil#charge(fr.insa.beuvron.utils.database.ConnectionSGBD, int)}
+     * : les trois relations en une seule requête.
+     */
+    public CompletableFuture<Profil> profil(Utilisateur u) {
+        return this.soumet(() -> Profil.charge(this.connSGBD, u.getId()));
+    }
+
+    /**
+     * voir
+     * {@link Utilisateur#saveApprecies(fr.insa.beuvron.utils.database.ConnectionSGBD, java.util.List)}
+     */
+    public CompletableFuture<Void> saveApprecies(Utilisateur u, List<Utilisateur> apprecies) {
+        return this.soumet(() -> {
+            u.saveApprecies(this.connSGBD, apprecies);
+            return null;
+        });
+    }
+
+    /**
+     * n'accepte plus de nouveaux traitements ; ceux déjà soumis se terminent.
+     */
+    @Override
+    public void close() {
+        this.executeur.shutdown();
+    }
+
+}
@@ -0,0 +1,291 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Hachage et vérification des mots de passe.
+ * <p>
+ * Les mots de passe sont stockés hachés par PBKDF2 (HMAC-SHA256) avec un sel
+ * aléatoire, sous la forme {@code pbkdf2$<iterations>$<sel>$<hash>} (sel et
+ * hash en base64). Le hachage est volontairement coûteux : les calculs sont
+ * faits par un pool borné de threads, avec une file d'attente bornée. En cas
+ * de rafale, les vérifications en trop sont refusées
+ * ({@link SQLTransientException}) au lieu d'occuper tous les processeurs.
+ * </p>
+ * <p>
+ * Pour les comptes utilisés souvent, on garde (LRU) après une vérification
+ * réussie une empreinte rapide (HMAC avec une clé propre au processus) du
+ * couple login/mot de passe, associée à la valeur stockée en base. Un login
+ * ultérieur avec le même mot de passe, et la même valeur en base, ne refait
+ * pas le PBKDF2. Les échecs ne sont jamais mis en cache. Toutes les
+ * comparaisons sont en temps constant.
+ * </p>
+ * <p>
+ * Les anciens mots de passe en clair (ne commençant pas par
+ * {@code pbkdf2$}) sont encore acceptés : voir {@link #aRehacher}.
+ * </p>
+ *
+ * @author francois
+ */
+public class MoteurLogin implements AutoCloseable {
+
+    public static final String PREFIXE = "pbkdf2$";
+    public static final int ITERATIONS = 100000;
+    private static final int TAILLE_SEL = 16;
+    private static final int TAILLE_HASH = 32;
+
+    /**
+     * nombre de comptes dont on garde l'empreinte rapide.
+     */
+    public static final int TAILLE_CACHE = 10000;
+
+    /**
+     * nombre de calculs en attente par thread de calcul au delà duquel les
+     * demandes sont refusées.
+     */
+    public static final int ATTENTE_MAX_PAR_THREAD = 16;
+
+    private static final SecureRandom ALEA = new SecureRandom();
+
+    /**
+     * utilisée pour {@link #verifieFactice} : un login inconnu coûte autant
+     * qu'un mauvais mot de passe.
+     */
+    private static final String HASH_FACTICE = hacheDirect("factice", ITERATIONS);
+
+    private static class Empreinte {
+
+        private final String stocke;
+        private final byte[] hmac;
+
+        private Empreinte(String stocke, byte[] hmac) {
+            this.stocke = stocke;
+            this.hmac = hmac;
+        }
+    }
+
+    private final ThreadPoolExecutor calculs;
+    private final SecretKeySpec cleProcessus;
+    private final Map<String, Empreinte> cache;
+
+    /**
+     * @param nbrThreads nombre maximum de hachages simultanés
+     */
+    public MoteurLogin(int nbrThreads) {
+        this.calculs = new ThreadPoolExecutor(nbrThreads, nbrThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(nbrThreads * ATTENTE_MAX_PAR_THREAD),
+                r -> {
+                    Thread t = new Thread(r, "moteur-login");
+                    t.setDaemon(true);
+                    return t;
+                });
+        byte[] cle = new byte[32];
+        ALEA.nextBytes(cle);
+        this.cleProcessus = new SecretKeySpec(cle, "HmacSHA256");
+        this.cache = new LinkedHashMap<String, Empreinte>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Empreinte> eldest) {
+                return size() > TAILLE_CACHE;
+            }
+        };
+    }
+
+    /**
+     * @return le moteur associé à la base (créé au premier appel, un thread
+     * de calcul par processeur)
+     */
+    public static MoteurLogin get(ConnectionSGBD connSGBD) {
+        synchronized (connSGBD) {
+            MoteurLogin res = connSGBD.getExtension(MoteurLogin.class);
+            if (res == null) {
+                res = new MoteurLogin(Runtime.getRuntime().availableProcessors());
+                connSGBD.setExtension(MoteurLogin.class, res);
+            }
+            return res;
+        }
+    }
+
+    private static byte[] pbkdf2(String pass, byte[] sel, int iterations) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(pass.toCharArray(), sel, iterations, TAILLE_HASH * 8);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException ex) {
+            // PBKDF2WithHmacSHA256 fait partie des algorithmes obligatoires du jdk
+            throw new Error(ex);
+        }
+    }
+
+    private static String hacheDirect(String pass, int iterations) {
+        byte[] sel = new byte[TAILLE_SEL];
+        ALEA.nextBytes(sel);
+        Base64.Encoder b64 = Base64.getEncoder();
+        return PREFIXE + iterations + "$" + b64.encodeToString(sel) + "$"
+                + b64.encodeToString(pbkdf2(pass, sel, iterations));
+    }
+
+    private static boolean verifieDirect(String pass, String stocke) {
+        if (!stocke.startsWith(PREFIXE)) {
+            // ancien mot de passe en clair
+            return MessageDigest.isEqual(pass.getBytes(StandardCharsets.UTF_8),
+                    stocke.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parties = stocke.split("\\$");
+        if (parties.length != 4) {
+            return false;
+        }
+        try {
+            int iterations = Integer.parseInt(parties[1]);
+            Base64.Decoder b64 = Base64.getDecoder();
+            byte[] sel = b64.decode(parties[2]);
+            byte[] attendu = b64.decode(parties[3]);
+            return MessageDigest.isEqual(attendu, pbkdf2(pass, sel, iterations));
+        } catch (IllegalArgumentException ex) {
+            // iterations ou base64 invalides
+            return false;
+        }
+    }
+
+    /**
+     * exécute un calcul dans le pool borné.
+     *
+     * @throws SQLTransientException si trop de calculs sont déjà en attente
+     */
+    private <T> T calcule(Callable<T> calcul) throws SQLException {
+        try {
+            return this.calculs.submit(calcul).get();
+        } catch (RejectedExecutionException ex) {
+            throw new SQLTransientException("trop de vérifications de mots de passe en cours", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientException("interrompu", ex);
+        } catch (ExecutionException ex) {
+            throw new Error(ex.getCause());
+        }
+    }
+
+    private byte[] hmac(String login, String pass) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(this.cleProcessus);
+            mac.update(login.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(pass.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException ex) {
+            throw new Error(ex);
+        }
+    }
+
+    /**
+     * @return la valeur à stocker en base pour le mot de passe pass
+     */
+    public String hache(String pass) throws SQLException {
+        return this.calcule(() -> hacheDirect(pass, ITERATIONS));
+    }
+
+    /**
+     * vérifie un mot de passe.
+     *
+     * @param login le login (clé du cache)
+     * @param pass le mot de passe donné par l'utilisateur
+     * @param stocke la valeur stockée en base pour ce login
+     * @return true si pass correspond à stocke
+     */
+    public boolean verifie(String login, String pass, String stocke) throws SQLException {
+        if (stocke == null) {
+            return false;
+        }
+        byte[] hmac = this.hmac(login, pass);
+        Empreinte connue;
+        synchronized (this.cache) {
+            connue = this.cache.get(login);
+        }
+        if (connue != null && connue.stocke.equals(stocke)
+                && MessageDigest.isEqual(connue.hmac, hmac)) {
+            return true;
+        }
+        boolean ok = this.calcule(() -> verifieDirect(pass, stocke));
+        if (ok) {
+            synchronized (this.cache) {
+                this.cache.put(login, new Empreinte(stocke, hmac));
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * fait le même calcul qu'une vérification, pour un login inconnu : la
+     * durée de réponse ne révèle pas si le login existe.
+     */
+    public void verifieFactice(String pass) throws SQLException {
+        this.calcule(() -> verifieDirect(pass, HASH_FACTICE));
+    }
+
+    /**
+     * @return true si la valeur stockée doit être remplacée par
+     * {@link #hache} après une vérification réussie : mot de passe en clair,
+     * ou haché avec moins d'itérations que {@link #ITERATIONS}
+     */
+    public boolean aRehacher(String stocke) {
+        if (!stocke.startsWith(PREFIXE)) {
+            return true;
+        }
+        String[] parties = stocke.split("\\$");
+        try {
+            return parties.length != 4 || Integer.parseInt(parties[1]) < ITERATIONS;
+        } catch (NumberFormatException ex) {
+            return true;
+        }
+    }
+
+    /**
+     * oublie l'empreinte rapide d'un login (changement de mot de passe).
+     */
+    public void oublie(String login) {
+        synchronized (this.cache) {
+            this.cache.remove(login);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.calculs.shutdown();
+    }
+
+}
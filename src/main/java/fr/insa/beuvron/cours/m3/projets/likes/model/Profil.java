@@ -0,0 +1,168 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Les trois relations d'un utilisateur (ceux qu'il apprécie, ceux qui
+ * l'apprécient, ses amis), chargées en une seule requête.
+ * <p>
+ * Les trois selects sont réunis par un {@code union all} (portable sur tous
+ * les SGBD connus, contrairement aux résultats multiples) ; une première
+ * colonne constante indique la relation de chaque ligne. Un seul aller-retour
+ * avec la base au lieu de trois, et seulement id et login de chaque
+ * utilisateur ({@link UtilisateurResume}).
+ * </p>
+ * <p>
+ * Si {@link GrapheApprecie} est chargé, les trois relations y sont lues, et
+ * la base ne donne que les logins (par clé primaire, sans jointure).
+ * </p>
+ *
+ * @author francois
+ */
+public class Profil {
+
+    private static final int APPRECIE = 1;
+    private static final int APPRECIE_PAR = 2;
+    private static final int AMI = 3;
+
+    private static final String SQL
+            = "select " + APPRECIE + " as relation, utilisateur.id, utilisateur.login"
+            + UtilisateurResume.FROM_APPRECIE
+            + " union all"
+            + " select " + APPRECIE_PAR + ", utilisateur.id, utilisateur.login"
+            + UtilisateurResume.FROM_APPRECIE_PAR
+            + " union all"
+            + " select " + AMI + ", utilisateur.id, utilisateur.login"
+            + UtilisateurResume.FROM_AMIS
+            + " order by 1, 3";
+
+    private final int id;
+    private final List<UtilisateurResume> apprecie;
+    private final List<UtilisateurResume> appreciePar;
+    private final List<UtilisateurResume> amis;
+
+    private Profil(int id, List<UtilisateurResume> apprecie, List<UtilisateurResume> appreciePar,
+            List<UtilisateurResume> amis) {
+        this.id = id;
+        this.apprecie = apprecie;
+        this.appreciePar = appreciePar;
+        this.amis = amis;
+    }
+
+    /**
+     * @param id l'id de l'utilisateur
+     * @return son profil (chaque liste triée par login)
+     */
+    public static Profil charge(ConnectionSGBD connSGBD, int id) throws SQLException {
+        GrapheApprecie graphe = GrapheApprecie.get(connSGBD);
+        if (graphe != null) {
+            return depuisGraphe(connSGBD, graphe, id);
+        }
+        List<UtilisateurResume> apprecie = new ArrayList<>();
+        List<UtilisateurResume> appreciePar = new ArrayList<>();
+        List<UtilisateurResume> amis = new ArrayList<>();
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte();
+                PreparedStatement st = emp.prepare(SQL)) {
+            st.setInt(1, id);
+            st.setInt(2, id);
+            st.setInt(3, id);
+            ResultSet res = st.executeQuery();
+            while (res.next()) {
+                int relation = res.getInt(1);
+                UtilisateurResume u = new UtilisateurResume(res.getInt(2), res.getString(3));
+                if (relation == APPRECIE) {
+                    apprecie.add(u);
+                } else if (relation == APPRECIE_PAR) {
+                    appreciePar.add(u);
+                } else {
+                    amis.add(u);
+                }
+            }
+        }
+        return new Profil(id, apprecie, appreciePar, amis);
+    }
+
+    private static Profil depuisGraphe(ConnectionSGBD connSGBD, GrapheApprecie graphe, int id)
+            throws SQLException {
+        int[] apprecie = graphe.apprecie(id);
+        int[] appreciePar = graphe.appreciePar(id);
+        int[] amis = graphe.amis(id);
+        // les amis sont parmi les appréciés : une seule lecture des logins
+        int[] tous = new int[apprecie.length + appreciePar.length];
+        System.arraycopy(apprecie, 0, tous, 0, apprecie.length);
+        System.arraycopy(appreciePar, 0, tous, apprecie.length, appreciePar.length);
+        Map<Integer, UtilisateurResume> parId = UtilisateurResume.parIds(connSGBD, tous).stream()
+                .collect(Collectors.toMap(UtilisateurResume::getId, Function.identity(), (u1, u2) -> u1));
+        return new Profil(id, parLogin(parId, apprecie), parLogin(parId, appreciePar), parLogin(parId, amis));
+    }
+
+    private static List<UtilisateurResume> parLogin(Map<Integer, UtilisateurResume> parId, int[] ids) {
+        List<UtilisateurResume> res = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            UtilisateurResume u = parId.get(id);
+            if (u != null) {
+                res.add(u);
+            }
+        }
+        res.sort(Comparator.comparing(UtilisateurResume::getLogin));
+        return res;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return les utilisateurs appréciés
+     */
+    public List<UtilisateurResume> getApprecie() {
+        return apprecie;
+    }
+
+    /**
+     * @return les utilisateurs qui apprécient
+     */
+    public List<UtilisateurResume> getAppreciePar() {
+        return appreciePar;
+    }
+
+    /**
+     * @return les amis (appréciés qui apprécient en retour)
+     */
+    public List<UtilisateurResume> getAmis() {
+        return amis;
+    }
+
+    @Override
+    public String toString() {
+        return "Profil{" + "id=" + id + ", apprecie=" + apprecie + ", appreciePar=" + appreciePar + ", amis=" + amis + '}';
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Recommandations "utilisateurs que vous pourriez apprécier" : les
+ * utilisateurs appréciés par ceux que u apprécie (amis d'amis), que u
+ * n'apprécie pas encore, classés par score.
+ * <p>
+ * {@link #pour} calcule directement sur les listes d'adjacence triées de
+ * {@link GrapheApprecie}, sans accès à la base : seul le voisinage à deux
+ * pas de u est parcouru. Les candidats sont triés (chaque occurrence d'un
+ * candidat porte le poids de l'intermédiaire), les poids d'un même candidat
+ * sommés, et seuls les k meilleurs sont gardés dans un tas borné.
+ * </p>
+ *
+ * @author francois
+ */
+public class Recommandations {
+
+    public enum Score {
+        /**
+         * nombre d'utilisateurs w tels que u apprécie w et w apprécie v.
+         */
+        VOISINS_COMMUNS,
+        /**
+         * Adamic-Adar : somme des 1/log(1 + nbrApprecie(w)) sur ces mêmes w. Un
+         * intermédiaire qui apprécie peu de monde compte plus qu'un
+         * utilisateur qui apprécie tout le monde.
+         */
+        ADAMIC_ADAR;
+
+        private double poids(int degreIntermediaire) {
+            return this == VOISINS_COMMUNS ? 1 : 1 / Math.log(1 + degreIntermediaire);
+        }
+    }
+
+    /**
+     * un utilisateur recommandé.
+     */
+    public static class Recommandation {
+
+        private final int id;
+        private final double score;
+
+        public Recommandation(int id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        @Override
+        public String toString() {
+            return "Recommandation{" + "id=" + id + ", score=" + score + '}';
+        }
+    }
+
+    /**
+     * du moins bon au meilleur (à score égal, le plus petit id est le
+     * meilleur) : la tête d'un tas borné est l'élément à éliminer.
+     */
+    private static final Comparator<Recommandation> DU_MOINS_BON
+            = Comparator.comparingDouble(Recommandation::getScore)
+                    .thenComparing(Comparator.comparingInt(Recommandation::getId).reversed());
+
+    private static void ajoute(PriorityQueue<Recommandation> tas, int k, Recommandation r) {
+        if (tas.size() < k) {
+            tas.add(r);
+        } else if (DU_MOINS_BON.compare(r, tas.peek()) > 0) {
+            tas.poll();
+            tas.add(r);
+        }
+    }
+
+    /**
+     * trie les couples (candidat, numéro du poids) et somme les poids de
+     * chaque candidat ; garde les k meilleurs candidats qui ne sont ni u ni
+     * dans apprecies[debutA,finA) (les utilisateurs déjà appréciés par u,
+     * triés).
+     */
+    private static PriorityQueue<Recommandation> regroupe(long[] candidats, double[] poids, int n, int k,
+            int u, int[] apprecies, int debutA, int finA) {
+        Arrays.sort(candidats, 0, n);
+        PriorityQueue<Recommandation> res = new PriorityQueue<>(k + 1, DU_MOINS_BON);
+        int i = 0;
+        while (i < n) {
+            int v = (int) (candidats[i] >>> 32);
+            double s = 0;
+            while (i < n && (int) (candidats[i] >>> 32) == v) {
+                s = s + poids[(int) candidats[i]];
+                i++;
+            }
+            if (v != u && Arrays.binarySearch(apprecies, debutA, finA, v) < 0) {
+                ajoute(res, k, new Recommandation(v, s));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * calcul sur les listes d'adjacence triées de {@link GrapheApprecie},
+     * appelé sous son verrou en lecture : seuls les sortants de u et ceux de
+     * ses sortants w sont parcourus.
+     *
+     * @param sortants sortants[w][0..nbrSortants[w]) : les ids appréciés par
+     * w, triés
+     */
+    static List<Recommandation> calcule(int[][] sortants, int[] nbrSortants, int u, int k, Score score) {
+        if (k <= 0 || u < 0 || u >= sortants.length || nbrSortants[u] == 0) {
+            return new ArrayList<>();
+        }
+        int[] su = sortants[u];
+        int nu = nbrSortants[u];
+        int total = 0;
+        for (int i = 0; i < nu; i++) {
+            total = total + nbrSortants[su[i]];
+        }
+        long[] candidats = new long[total];
+        double[] poids = new double[total];
+        int n = 0;
+        for (int i = 0; i < nu; i++) {
+            int w = su[i];
+            int[] sw = sortants[w];
+            int nw = nbrSortants[w];
+            double p = score.poids(nw);
+            for (int j = 0; j < nw; j++) {
+                candidats[n] = ((long) sw[j] << 32) | n;
+                poids[n] = p;
+                n++;
+            }
+        }
+        List<Recommandation> res = new ArrayList<>(regroupe(candidats, poids, n, k, u, su, 0, nu));
+        res.sort(DU_MOINS_BON.reversed());
+        return res;
+    }
+
+    /**
+     * recommandations pour u, calculées sur {@link GrapheApprecie} (chargé
+     * s'il ne l'est pas encore). Le calcul ne porte que sur le voisinage à
+     * deux pas de u : il ne reconstruit pas l'instantané, invalidé à chaque
+     * écriture.
+     */
+    public static List<Recommandation> pour(ConnectionSGBD connSGBD, int u, int k, Score score)
+            throws SQLException {
+        GrapheApprecie graphe = GrapheApprecie.get(connSGBD);
+        if (graphe == null) {
+            graphe = GrapheApprecie.charge(connSGBD);
+        }
+        return graphe.recommandations(u, k, score);
+    }
+
+}
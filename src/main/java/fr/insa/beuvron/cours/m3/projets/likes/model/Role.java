@@ -19,12 +19,18 @@ along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
 package fr.insa.beuvron.cours.m3.projets.likes.model;
 
 import fr.insa.beuvron.utils.database.ConnectionSGBD;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  *
@@ -48,18 +54,120 @@ public class Role {
     }
 
     public void sauvegarde(ConnectionSGBD connSGBD) throws SQLException {
-        try (PreparedStatement st = connSGBD.getCon().prepareStatement(
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte();
+                PreparedStatement st = emp.prepare(
                 "insert into role (id,nom,description) values (?,?,?)")) {
             st.setInt(1, this.id);
             st.setString(2, this.nom);
             st.setString(3, this.description);
             st.executeUpdate();
         }
+        invalideCache(connSGBD);
     }
 
-    public static List<Role> tousLesRoles(ConnectionSGBD connSGBD) throws SQLException {
+    /**
+     * durée de validité du cache des rôles : au delà, il est rechargé pour
+     * voir les modifications faites par d'autres applications.
+     */
+    public static final long DUREE_CACHE_MS = 60000;
+
+    /**
+     * cache des rôles. La table role est minuscule et ne change presque
+     * jamais : on la garde entièrement en mémoire. Le contenu est remplacé en
+     * bloc à chaque rechargement, les lectures n'ont donc pas besoin de
+     * synchronisation. Les ids cherchés et absents de la table (idrole null
+     * lu comme 0 ...) sont aussi gardés jusqu'à l'expiration.
+     */
+    private static class Cache {
+
+        private final Map<Integer, Role> parId;
+        private final Set<Integer> absents = ConcurrentHashMap.newKeySet();
+        private final List<Role> tous;
+        private final long expiration;
+
+        private Cache(List<Role> tous) {
+            this(tous, System.nanoTime() + DUREE_CACHE_MS * 1000000);
+        }
+
+        private Cache(List<Role> tous, long expiration) {
+            this.tous = Collections.unmodifiableList(tous);
+            Map<Integer, Role> m = new HashMap<>();
+            for (Role r : tous) {
+                m.put(r.getId(), r);
+            }
+            this.parId = m;
+            this.expiration = expiration;
+        }
+
+        /**
+         * @return un cache vide déjà expiré : à relire à la prochaine
+         * utilisation
+         */
+        private static Cache perime() {
+            return new Cache(Collections.emptyList(), System.nanoTime() - 1);
+        }
+
+        private boolean isExpire() {
+            return System.nanoTime() - this.expiration > 0;
+        }
+    }
+
+    /**
+     * le cache courant, associé à la base (voir
+     * {@link ConnectionSGBD#getExtension(java.lang.Class)}). Il n'est jamais
+     * null : une invalidation y met un nouveau cache {@link Cache#perime()}.
+     * Un rechargement ne remplace donc (compareAndSet) que le cache qu'il a vu
+     * avant de relire la table : la lecture d'un rechargement commencé avant
+     * une invalidation n'est jamais publiée après elle.
+     */
+    private static class Courant extends AtomicReference<Cache> {
+
+        private Courant() {
+            super(Cache.perime());
+        }
+    }
+
+    private static Courant courant(ConnectionSGBD connSGBD) {
+        synchronized (connSGBD) {
+            Courant res = connSGBD.getExtension(Courant.class);
+            if (res == null) {
+                res = new Courant();
+                connSGBD.setExtension(Courant.class, res);
+            }
+            return res;
+        }
+    }
+
+    /**
+     * relit la table, et publie le résultat s'il n'y a eu ni invalidation ni
+     * autre rechargement depuis que vu a été lu.
+     */
+    private static Cache recharge(ConnectionSGBD connSGBD, Courant courant, Cache vu) throws SQLException {
+        Cache res = new Cache(litTous(connSGBD));
+        courant.compareAndSet(vu, res);
+        return res;
+    }
+
+    private static Cache cache(ConnectionSGBD connSGBD, Courant courant) throws SQLException {
+        Cache res = courant.get();
+        if (res.isExpire()) {
+            res = recharge(connSGBD, courant, res);
+        }
+        return res;
+    }
+
+    /**
+     * oublie les rôles en cache : ils seront relus à la prochaine
+     * utilisation.
+     */
+    public static void invalideCache(ConnectionSGBD connSGBD) {
+        courant(connSGBD).set(Cache.perime());
+    }
+
+    private static List<Role> litTous(ConnectionSGBD connSGBD) throws SQLException {
         List<Role> alls = new ArrayList<>();
-        try (PreparedStatement st = connSGBD.getCon().prepareStatement(
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte();
+                PreparedStatement st = emp.prepare(
                 "select id,nom,description from role")) {
             ResultSet res = st.executeQuery();
             while (res.next()) {
@@ -72,6 +180,36 @@ public class Role {
         return alls;
     }
 
+    /**
+     * tous les rôles, lus dans le cache (la base n'est interrogée qu'au
+     * premier appel, après {@link #sauvegarde} et après expiration).
+     * Les rôles retournés sont partagés : ne pas les modifier sans les
+     * sauvegarder.
+     */
+    public static List<Role> tousLesRoles(ConnectionSGBD connSGBD) throws SQLException {
+        return new ArrayList<>(cache(connSGBD, courant(connSGBD)).tous);
+    }
+
+    /**
+     * le rôle d'identificateur id, lu dans le cache. Si id n'y est pas (rôle
+     * créé par ailleurs depuis le chargement), le cache est relu une fois ;
+     * s'il n'y est toujours pas, l'absence est gardée jusqu'à l'expiration
+     * du cache : pas de requête par utilisateur sans rôle.
+     */
+    public static Optional<Role> parId(ConnectionSGBD connSGBD, int id) throws SQLException {
+        Courant courant = courant(connSGBD);
+        Cache cache = cache(connSGBD, courant);
+        Role res = cache.parId.get(id);
+        if (res == null && !cache.absents.contains(id)) {
+            cache = recharge(connSGBD, courant, cache);
+            res = cache.parId.get(id);
+            if (res == null) {
+                cache.absents.add(id);
+            }
+        }
+        return Optional.ofNullable(res);
+    }
+
     /**
      * @return the id
      */
@@ -0,0 +1,259 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.ConsoleFdB;
+import fr.insa.beuvron.utils.EcrivainCSV;
+import fr.insa.beuvron.utils.LecteurCSV;
+import fr.insa.beuvron.utils.StringFormatException;
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import fr.insa.beuvron.utils.database.InsertionParLots;
+import fr.insa.beuvron.utils.exceptions.ExceptionsUtils;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Export et import des tables utilisateur et apprecie en csv (format de
+ * {@link fr.insa.beuvron.utils.StringUtil#encodeEscapedCSV(java.util.List, char, char)},
+ * séparateur {@link #SEP}, échappement {@link #ESC}), avec une première
+ * ligne donnant les noms des colonnes.
+ * <p>
+ * Tout se fait en flux : les lignes sont lues dans la base en mode flux et
+ * écrites par {@link EcrivainCSV}, ou lues par {@link LecteurCSV} et
+ * envoyées à la base par {@link InsertionParLots}, dans des transactions de
+ * taille bornée. La mémoire utilisée ne dépend pas du nombre de lignes.
+ * </p>
+ * <p>
+ * Les ids des utilisateurs sont conservés : l'import se fait dans des tables
+ * qui ne contiennent pas déjà ces ids (typiquement après création du
+ * schéma), puis la génération des ids repart après le plus grand id importé.
+ * Une erreur arrête l'import : les transactions déjà validées restent. Un
+ * item vide est importé comme null pour la description (les valeurs null
+ * sont exportées comme des items vides).
+ * </p>
+ *
+ * @author francois
+ */
+public class TransfertCSV {
+
+    public static final char SEP = ',';
+    public static final char ESC = '\\';
+
+    private static final String[] COLONNES_UTILISATEUR = {"id", "login", "password", "description", "idrole"};
+    private static final String[] COLONNES_APPRECIE = {"u1", "u2"};
+
+    private static void enTete(EcrivainCSV out, String[] colonnes) throws IOException {
+        for (String col : colonnes) {
+            out.item(col);
+        }
+        out.finLigne();
+    }
+
+    private static void verifieEnTete(LecteurCSV in, String[] colonnes) throws IOException, StringFormatException {
+        boolean ok = in.ligneSuivante() && in.nbrItems() == colonnes.length;
+        for (int i = 0; ok && i < colonnes.length; i++) {
+            ok = in.item(i).equalsIgnoreCase(colonnes[i]);
+        }
+        if (!ok) {
+            throw new StringFormatException("première ligne attendue : " + String.join("" + SEP, colonnes));
+        }
+    }
+
+    /**
+     * écrit dans le fichier le résultat de la requête, dont les colonnes sont
+     * des entiers (type entier dans la base) ou des chaînes.
+     *
+     * @return le nombre de lignes exportées
+     */
+    private static long exporte(ConnectionSGBD connSGBD, String sql, String[] colonnes,
+            boolean[] entiers, Path fichier) throws IOException, SQLException {
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte();
+                EcrivainCSV out = EcrivainCSV.cree(fichier, SEP, ESC)) {
+            enTete(out, colonnes);
+            Connection conn = emp.getCon();
+            // postgresql ne lit en flux qu'en dehors du mode autocommit
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                connSGBD.getSgbd().configureLectureEnFlux(st);
+                ResultSet res = st.executeQuery(sql);
+                while (res.next()) {
+                    for (int i = 0; i < colonnes.length; i++) {
+                        if (entiers[i]) {
+                            out.item(res.getLong(i + 1));
+                        } else {
+                            out.item(res.getString(i + 1));
+                        }
+                    }
+                    out.finLigne();
+                }
+            } finally {
+                // lecture seule : rien à valider
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            return out.getNbrLignes() - 1;
+        }
+    }
+
+    public static long exporteUtilisateurs(ConnectionSGBD connSGBD, Path fichier) throws IOException, SQLException {
+        return exporte(connSGBD, "select id,login,password,description,idrole from utilisateur order by id",
+                COLONNES_UTILISATEUR, new boolean[]{true, false, false, false, true}, fichier);
+    }
+
+    public static long exporteApprecie(ConnectionSGBD connSGBD, Path fichier) throws IOException, SQLException {
+        return exporte(connSGBD, "select u1,u2 from apprecie order by u1,u2",
+                COLONNES_APPRECIE, new boolean[]{true, true}, fichier);
+    }
+
+    /**
+     * importe des utilisateurs exportés par
+     * {@link #exporteUtilisateurs(fr.insa.beuvron.utils.database.ConnectionSGBD, java.nio.file.Path)}.
+     *
+     * @return le nombre d'utilisateurs importés
+     */
+    public static long importeUtilisateurs(ConnectionSGBD connSGBD, Path fichier, int tailleTransaction,
+            GenerateurDonnees.Progression prog) throws IOException, SQLException, StringFormatException {
+        long nbr = 0;
+        int maxId = 0;
+        try (FileChannel canal = FileChannel.open(fichier, StandardOpenOption.READ);
+                LecteurCSV in = new LecteurCSV(canal, SEP, ESC);
+                ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            verifieEnTete(in, COLONNES_UTILISATEUR);
+            Connection conn = emp.getCon();
+            conn.setAutoCommit(false);
+            try (InsertionParLots ins = new InsertionParLots(connSGBD, "utilisateur", COLONNES_UTILISATEUR)
+                    .identiteExplicite()) {
+                while (in.ligneSuivante()) {
+                    int id = in.itemInt(0);
+                    maxId = Math.max(maxId, id);
+                    ins.ajoute(id, in.item(1), in.item(2),
+                            in.isItemVide(3) ? null : in.item(3), in.itemInt(4));
+                    nbr++;
+                    if (nbr % tailleTransaction == 0) {
+                        ins.flush();
+                        conn.commit();
+                        prog.avance("utilisateur (octets lus)", canal.position(), canal.size());
+                    }
+                }
+                ins.flush();
+                conn.commit();
+                prog.avance("utilisateur (octets lus)", canal.size(), canal.size());
+            } catch (IOException | SQLException | StringFormatException | RuntimeException ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            String redemarre = connSGBD.getSgbd().sqlForRedemarreIdentite("utilisateur", "id", maxId + 1);
+            if (nbr > 0 && redemarre != null) {
+                try (Statement st = conn.createStatement()) {
+                    st.executeUpdate(redemarre);
+                }
+            }
+        }
+        connSGBD.videCacheRequetes();
+        return nbr;
+    }
+
+    /**
+     * importe des couples exportés par
+     * {@link #exporteApprecie(fr.insa.beuvron.utils.database.ConnectionSGBD, java.nio.file.Path)}
+     * (les utilisateurs doivent exister), puis recalcule les structures
+     * dérivées (voir {@link Apprecie#apresModificationEnMasse}).
+     *
+     * @return le nombre de couples importés
+     */
+    public static long importeApprecie(ConnectionSGBD connSGBD, Path fichier, int tailleTransaction,
+            GenerateurDonnees.Progression prog) throws IOException, SQLException, StringFormatException {
+        long nbr = 0;
+        try (FileChannel canal = FileChannel.open(fichier, StandardOpenOption.READ);
+                LecteurCSV in = new LecteurCSV(canal, SEP, ESC);
+                ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            verifieEnTete(in, COLONNES_APPRECIE);
+            Connection conn = emp.getCon();
+            conn.setAutoCommit(false);
+            try (InsertionParLots ins = new InsertionParLots(connSGBD, "apprecie", COLONNES_APPRECIE)) {
+                while (in.ligneSuivante()) {
+                    ins.ajoute(in.itemInt(0), in.itemInt(1));
+                    nbr++;
+                    if (nbr % tailleTransaction == 0) {
+                        ins.flush();
+                        conn.commit();
+                        prog.avance("apprecie (octets lus)", canal.position(), canal.size());
+                    }
+                }
+                ins.flush();
+                conn.commit();
+                prog.avance("apprecie (octets lus)", canal.size(), canal.size());
+            } catch (IOException | SQLException | StringFormatException | RuntimeException ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        Apprecie.apresModificationEnMasse(connSGBD);
+        return nbr;
+    }
+
+    public static void menuCSV(ConnectionSGBD connSGBD) {
+        int rep = -1;
+        while (rep != 0) {
+            int i = 1;
+            System.out.println("Export / import csv");
+            System.out.println("==============");
+            System.out.println((i++) + ") exporter les utilisateurs");
+            System.out.println((i++) + ") exporter la relation apprecie");
+            System.out.println((i++) + ") importer des utilisateurs");
+            System.out.println((i++) + ") importer la relation apprecie");
+            System.out.println("0) Fin");
+            rep = ConsoleFdB.entreeEntier("Votre choix : ");
+            try {
+                int j = 1;
+                if (rep >= 1 && rep <= 4) {
+                    Path fichier = Paths.get(ConsoleFdB.entreeString("fichier : "));
+                    long debut = System.currentTimeMillis();
+                    long nbr = 0;
+                    if (rep == j++) {
+                        nbr = exporteUtilisateurs(connSGBD, fichier);
+                    } else if (rep == j++) {
+                        nbr = exporteApprecie(connSGBD, fichier);
+                    } else if (rep == j++) {
+                        nbr = importeUtilisateurs(connSGBD, fichier, GenerateurDonnees.TAILLE_TRANSACTION,
+                                GenerateurDonnees.progressionConsole());
+                    } else if (rep == j++) {
+                        nbr = importeApprecie(connSGBD, fichier, GenerateurDonnees.TAILLE_TRANSACTION,
+                                GenerateurDonnees.progressionConsole());
+                    }
+                    System.out.println(nbr + " lignes en " + (System.currentTimeMillis() - debut) + " ms");
+                }
+            } catch (IOException | SQLException | StringFormatException ex) {
+                System.out.println(ExceptionsUtils.messageEtPremiersAppelsDansPackage(ex, "fr.insa", 5));
+            }
+        }
+    }
+
+}
@@ -26,11 +26,12 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Stream;
 
 /**
@@ -57,12 +58,19 @@ public class Utilisateur {
         this(-1, login, password, description, idrole);
     }
 
+    /**
+     * insère l'utilisateur. Le mot de passe est haché (voir
+     * {@link MoteurLogin}) : après la sauvegarde, {@link #getPassword()}
+     * retourne la valeur hachée.
+     */
     public void sauvegarde(ConnectionSGBD connSGBD) throws SQLException {
-        try (PreparedStatement st = connSGBD.getCon().prepareStatement(
+        String stocke = MoteurLogin.get(connSGBD).hache(this.password);
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte();
+                PreparedStatement st = emp.prepare(
                 "insert into utilisateur (login,password,description,idrole) values (?,?,?,?)",
                 PreparedStatement.RETURN_GENERATED_KEYS)) {
             st.setString(1, this.login);
-            st.setString(2, this.password);
+            st.setString(2, stocke);
             st.setString(3, this.description);
             st.setInt(4, this.idrole);
             st.executeUpdate();
@@ -71,33 +79,70 @@ public class Utilisateur {
                 this.id = ids.getInt(1);
             }
         }
+        this.password = stocke;
     }
 
     public void delete(ConnectionSGBD connSGBD) throws SQLException {
-        try (PreparedStatement st = connSGBD.getCon().prepareStatement(
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte();
+                PreparedStatement st = emp.prepare(
                 "delete from utilisateur where id = ?")) {
             st.setInt(1, this.id);
             st.executeUpdate();
         }
     }
 
+    /**
+     * recherche l'utilisateur par son login (index unique), puis vérifie le
+     * mot de passe dans l'application (voir {@link MoteurLogin}) : le mot de
+     * passe n'est jamais envoyé au SGBD. Un ancien mot de passe en clair est
+     * remplacé par sa version hachée au premier login réussi.
+     *
+     * @throws java.sql.SQLTransientException si trop de logins sont en cours
+     */
     public static Optional<Utilisateur> login(ConnectionSGBD connSGBD, String login, String pass)
             throws SQLException {
-        try (PreparedStatement st = connSGBD.getCon().prepareStatement(
-                "select id,description,idrole from utilisateur "
-                + " where login = ? and password = ?")) {
+        MoteurLogin moteur = MoteurLogin.get(connSGBD);
+        boolean trouve;
+        int id = 0;
+        String stocke = null;
+        String description = null;
+        int idrole = 0;
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte();
+                PreparedStatement st = emp.prepare(
+                "select id,password,description,idrole from utilisateur "
+                + " where login = ?")) {
             st.setString(1, login);
-            st.setString(2, pass);
             ResultSet res = st.executeQuery();
-            if (res.next()) {
-                int id = res.getInt("id");
-                String description = res.getString("description");
-                int idrole = res.getInt("idrole");
-                return Optional.of(new Utilisateur(id, login, pass, description, idrole));
-            } else {
-                return Optional.empty();
+            trouve = res.next();
+            if (trouve) {
+                id = res.getInt("id");
+                stocke = res.getString("password");
+                description = res.getString("description");
+                idrole = res.getInt("idrole");
             }
         }
+        // pas de connection empruntée pendant le hachage
+        if (!trouve) {
+            moteur.verifieFactice(pass);
+            return Optional.empty();
+        }
+        if (!moteur.verifie(login, pass, stocke)) {
+            return Optional.empty();
+        }
+        if (moteur.aRehacher(stocke)) {
+            String nouveau = moteur.hache(pass);
+            try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte();
+                    PreparedStatement st = emp.prepare(
+                    "update utilisateur set password = ? where id = ? and password = ?")) {
+                st.setString(1, nouveau);
+                st.setInt(2, id);
+                st.setString(3, stocke);
+                if (st.executeUpdate() == 1) {
+                    stocke = nouveau;
+                }
+            }
+        }
+        return Optional.of(new Utilisateur(id, login, stocke, description, idrole));
     }
 
     public static Utilisateur demande(ConnectionSGBD connSGBD) throws SQLException {
@@ -108,9 +153,15 @@ public class Utilisateur {
         return new Utilisateur(login, pass, description, choix.getId());
     }
 
+    /**
+     * charge toute la table utilisateur en mémoire : à réserver aux petites
+     * bases. Voir {@link #page(fr.insa.beuvron.utils.database.ConnectionSGBD, int, int, java.lang.String)}
+     * pour un parcours par pages.
+     */
     public static List<Utilisateur> tousLesUtilisateurs(ConnectionSGBD connSGBD) throws SQLException {
         List<Utilisateur> alls = new ArrayList<>();
-        try (PreparedStatement st = connSGBD.getCon().prepareStatement(
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte();
+                PreparedStatement st = emp.prepare(
                 "select id,login,password,description,idrole from utilisateur")) {
             ResultSet res = st.executeQuery();
             while (res.next()) {
@@ -125,9 +176,257 @@ public class Utilisateur {
         return alls;
     }
 
+    /**
+     * @return les utilisateurs d'ids donnés, dans l'ordre de ids (les ids
+     * inexistants sont ignorés)
+     */
+    public static List<Utilisateur> parIds(ConnectionSGBD connSGBD, int[] ids) throws SQLException {
+        Map<Integer, Utilisateur> trouves = new HashMap<>();
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            for (int debut = 0; debut < ids.length; debut = debut + MAX_PROPOSES) {
+                int nbr = Math.min(MAX_PROPOSES, ids.length - debut);
+                StringBuilder sql = new StringBuilder(
+                        "select id,login,password,description,idrole from utilisateur where id in (");
+                for (int i = 0; i < nbr; i++) {
+                    sql.append(i == 0 ? "?" : ",?");
+                }
+                sql.append(")");
+                try (PreparedStatement st = emp.getCon().prepareStatement(sql.toString())) {
+                    for (int i = 0; i < nbr; i++) {
+                        st.setInt(i + 1, ids[debut + i]);
+                    }
+                    ResultSet rs = st.executeQuery();
+                    while (rs.next()) {
+                        Utilisateur u = new Utilisateur(rs.getInt("id"), rs.getString("login"),
+                                rs.getString("password"), rs.getString("description"), rs.getInt("idrole"));
+                        trouves.put(u.getId(), u);
+                    }
+                }
+            }
+        }
+        List<Utilisateur> res = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            Utilisateur u = trouves.get(id);
+            if (u != null) {
+                res.add(u);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * nombre d'utilisateurs par page par défaut.
+     */
+    public static final int TAILLE_PAGE = 20;
+
+    /**
+     * nombre maximum d'utilisateurs proposés au choix dans les menus.
+     */
+    public static final int MAX_PROPOSES = 100;
+
+    /**
+     * caractère d'échappement pour les like : les % et _ d'un préfixe
+     * doivent être pris littéralement.
+     */
+    private static final char ECHAPPEMENT_LIKE = '!';
+
+    private static String echappeLike(String s) {
+        StringBuilder res = new StringBuilder(s.length() + 1);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '%' || c == '_' || c == ECHAPPEMENT_LIKE) {
+                res.append(ECHAPPEMENT_LIKE);
+            }
+            res.append(c);
+        }
+        return res.toString();
+    }
+
+    /**
+     * ordre de parcours des utilisateurs par
+     * {@link #page(fr.insa.beuvron.utils.database.ConnectionSGBD, fr.insa.beuvron.cours.m3.projets.likes.model.Utilisateur.Ordre, java.lang.Object, int, java.lang.String)}.
+     * Les deux colonnes sont uniques et indexées.
+     */
+    public enum Ordre {
+        ID_CROISSANT("id", true),
+        ID_DECROISSANT("id", false),
+        LOGIN_CROISSANT("login", true),
+        LOGIN_DECROISSANT("login", false);
+
+        private final String colonne;
+        private final boolean croissant;
+
+        private Ordre(String colonne, boolean croissant) {
+            this.colonne = colonne;
+            this.croissant = croissant;
+        }
+
+        /**
+         * @return la clé de u pour cet ordre (Integer pour l'id, String pour
+         * le login), à passer comme apresCle pour obtenir la page suivante
+         */
+        public Object cle(Utilisateur u) {
+            return this.colonne.equals("id") ? (Object) u.getId() : u.getLogin();
+        }
+    }
+
+    /**
+     * un utilisateur et ses compteurs (colonnes nb_apprecie et
+     * nb_apprecie_par), lus dans la même requête : voir
+     * {@link #pageAvecCompteurs}.
+     */
+    public static class AvecCompteurs {
+
+        private final Utilisateur utilisateur;
+        private final int nbrApprecie;
+        private final int nbrAppreciePar;
+
+        public AvecCompteurs(Utilisateur utilisateur, int nbrApprecie, int nbrAppreciePar) {
+            this.utilisateur = utilisateur;
+            this.nbrApprecie = nbrApprecie;
+            this.nbrAppreciePar = nbrAppreciePar;
+        }
+
+        public Utilisateur getUtilisateur() {
+            return utilisateur;
+        }
+
+        public int getNbrApprecie() {
+            return nbrApprecie;
+        }
+
+        public int getNbrAppreciePar() {
+            return nbrAppreciePar;
+        }
+
+        @Override
+        public String toString() {
+            return "AvecCompteurs{" + "utilisateur=" + utilisateur + ", nbrApprecie=" + nbrApprecie
+                    + ", nbrAppreciePar=" + nbrAppreciePar + '}';
+        }
+    }
+
+    @FunctionalInterface
+    private interface LecteurLigne<T> {
+
+        public T lit(ResultSet rs) throws SQLException;
+    }
+
+    private static Utilisateur litUtilisateur(ResultSet rs) throws SQLException {
+        return new Utilisateur(rs.getInt("id"), rs.getString("login"),
+                rs.getString("password"), rs.getString("description"), rs.getInt("idrole"));
+    }
+
+    /**
+     * une page d'utilisateurs. La pagination se fait par clé
+     * (clé &gt; apresCle) et non par offset : le SGBD descend directement dans
+     * l'index de la clé, le coût d'une page ne dépend pas de sa position.
+     *
+     * @param ordre ordre des utilisateurs
+     * @param apresCle clé (voir {@link Ordre#cle}) du dernier utilisateur de
+     * la page précédente, null pour la première page
+     * @param limite nombre maximum d'utilisateurs retournés
+     * @param prefixeLogin si non null et non vide, seuls les utilisateurs dont
+     * le login commence par prefixeLogin sont retournés
+     */
+    public static List<Utilisateur> page(ConnectionSGBD connSGBD, Ordre ordre, Object apresCle,
+            int limite, String prefixeLogin) throws SQLException {
+        return page(connSGBD, ordre, apresCle, limite, prefixeLogin,
+                "id,login,password,description,idrole", Utilisateur::litUtilisateur);
+    }
+
+    /**
+     * comme
+     * {@link #page(fr.insa.beuvron.utils.database.ConnectionSGBD, fr.insa.beuvron.cours.m3.projets.likes.model.Utilisateur.Ordre, java.lang.Object, int, java.lang.String)},
+     * avec les compteurs de chaque utilisateur lus dans la même requête : ni
+     * {@link CompteursApprecie} ni une seconde requête ne sont nécessaires.
+     */
+    public static List<AvecCompteurs> pageAvecCompteurs(ConnectionSGBD connSGBD, Ordre ordre, Object apresCle,
+            int limite, String prefixeLogin) throws SQLException {
+        return page(connSGBD, ordre, apresCle, limite, prefixeLogin,
+                "id,login,password,description,idrole,nb_apprecie,nb_apprecie_par",
+                rs -> new AvecCompteurs(litUtilisateur(rs), rs.getInt("nb_apprecie"), rs.getInt("nb_apprecie_par")));
+    }
+
+    private static <T> List<T> page(ConnectionSGBD connSGBD, Ordre ordre, Object apresCle,
+            int limite, String prefixeLogin, String colonnes, LecteurLigne<T> lecteur) throws SQLException {
+        boolean filtre = prefixeLogin != null && !prefixeLogin.isEmpty();
+        List<String> conditions = new ArrayList<>(2);
+        if (apresCle != null) {
+            conditions.add(ordre.colonne + (ordre.croissant ? " > ?" : " < ?"));
+        }
+        if (filtre) {
+            conditions.add("login like ? escape '" + ECHAPPEMENT_LIKE + "'");
+        }
+        String sql = "select " + colonnes + " from utilisateur"
+                + (conditions.isEmpty() ? "" : " where " + String.join(" and ", conditions))
+                + " order by " + ordre.colonne + (ordre.croissant ? "" : " desc");
+        List<T> res = new ArrayList<>(Math.min(limite, 1000));
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte();
+                PreparedStatement st = emp.prepare(connSGBD.getSgbd().sqlForLimite(sql))) {
+            int num = 1;
+            if (apresCle != null) {
+                st.setObject(num++, apresCle);
+            }
+            if (filtre) {
+                st.setString(num++, echappeLike(prefixeLogin) + "%");
+            }
+            st.setInt(num++, limite);
+            ResultSet rs = st.executeQuery();
+            while (rs.next()) {
+                res.add(lecteur.lit(rs));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * une page d'utilisateurs, par ordre d'id.
+     * <pre>
+     * int apres = 0;
+     * List&lt;Utilisateur&gt; page;
+     * do {
+     *     page = Utilisateur.page(connSGBD, apres, 1000, null);
+     *     ... traitement de la page ...
+     *     apres = page.isEmpty() ? apres : page.get(page.size() - 1).getId();
+     * } while (page.size() == 1000);
+     * </pre>
+     *
+     * @param apresId seuls les utilisateurs d'id &gt; apresId sont retournés
+     * (0 pour la première page)
+     * @param limite nombre maximum d'utilisateurs retournés
+     * @param prefixeLogin si non null et non vide, seuls les utilisateurs dont
+     * le login commence par prefixeLogin sont retournés
+     */
+    public static List<Utilisateur> page(ConnectionSGBD connSGBD, int apresId, int limite,
+            String prefixeLogin) throws SQLException {
+        return page(connSGBD, Ordre.ID_CROISSANT, apresId, limite, prefixeLogin);
+    }
+
+    /**
+     * affiche les utilisateurs page par page.
+     */
+    public static void listeParPages(ConnectionSGBD connSGBD) throws SQLException {
+        String prefixe = ConsoleFdB.entreeString("début du login (vide pour tous) : ");
+        int apres = 0;
+        int num = 1;
+        List<Utilisateur> page;
+        do {
+            page = Utilisateur.page(connSGBD, apres, TAILLE_PAGE, prefixe);
+            if (page.isEmpty() && num == 1) {
+                System.out.println("AUCUN");
+            } else if (!page.isEmpty()) {
+                System.out.println(ListUtils.enumerateList(page, "  ", num, " : ", "\n", Utilisateur::toString));
+                num = num + page.size();
+                apres = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == TAILLE_PAGE && ConsoleFdB.entreeBooleanON("page suivante (o/n) ? "));
+    }
+
     private List<Utilisateur> cherche(ConnectionSGBD connSGBD,String requeteSQL) throws SQLException {
         List<Utilisateur> alls = new ArrayList<>();
-        try (PreparedStatement st = connSGBD.getCon().prepareStatement(
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte();
+                PreparedStatement st = emp.prepare(
                 requeteSQL)) {
             st.setInt(1, this.id);
             ResultSet res = st.executeQuery();
@@ -143,30 +442,55 @@ public class Utilisateur {
         return alls;
     }
 
+    /**
+     * utilisateurs complets : voir {@link UtilisateurResume#apprecie} et
+     * {@link Apprecie#apprecies} si l'on n'a besoin que des logins ou des
+     * ids. Si {@link GrapheApprecie} est chargé, les ids y sont lus et seuls
+     * les utilisateurs sont lus dans la base (par clé primaire).
+     */
     public List<Utilisateur> apprecie(ConnectionSGBD connSGBD) throws SQLException {
-        return cherche(connSGBD, "select id,login,password,description,idrole from utilisateur "
-                + " join apprecie on apprecie.u2 = utilisateur.id "
-                + " where apprecie.u1 = ?");
+        GrapheApprecie graphe = GrapheApprecie.get(connSGBD);
+        if (graphe != null) {
+            return parIds(connSGBD, graphe.apprecie(this.id));
+        }
+        return cherche(connSGBD, "select id,login,password,description,idrole"
+                + UtilisateurResume.FROM_APPRECIE);
     }
 
+    /**
+     * utilisateurs complets : voir {@link UtilisateurResume#appreciePar} et
+     * {@link Apprecie#appreciateurs} si l'on n'a besoin que des logins ou des
+     * ids. Lu dans {@link GrapheApprecie} s'il est chargé, comme
+     * {@link #apprecie(fr.insa.beuvron.utils.database.ConnectionSGBD)}.
+     */
     public List<Utilisateur> appreciePar(ConnectionSGBD connSGBD) throws SQLException {
-        return cherche(connSGBD, "select id,login,password,description,idrole from utilisateur "
-                + " join apprecie on apprecie.u1 = utilisateur.id "
-                + " where apprecie.u2 = ?");
+        GrapheApprecie graphe = GrapheApprecie.get(connSGBD);
+        if (graphe != null) {
+            return parIds(connSGBD, graphe.appreciePar(this.id));
+        }
+        return cherche(connSGBD, "select id,login,password,description,idrole"
+                + UtilisateurResume.FROM_APPRECIE_PAR);
     }
 
     /**
      * {@code u1 ami u2 <==> u1 apprecie u2 et u2 apprecie u1}
+     * <p>
+     * calculé dans {@link GrapheApprecie} s'il est chargé, sinon lu dans la
+     * table amitie, tenue à jour par {@link Apprecie} : pas d'auto-jointure
+     * de apprecie. Voir aussi {@link UtilisateurResume#amis} et
+     * {@link Apprecie#amis}.
+     * </p>
      * @param connSGBD
      * @return
      * @throws SQLException 
      */
     public List<Utilisateur> amis(ConnectionSGBD connSGBD) throws SQLException {
+        GrapheApprecie graphe = GrapheApprecie.get(connSGBD);
+        if (graphe != null) {
+            return parIds(connSGBD, graphe.amis(this.id));
+        }
         return cherche(connSGBD, "select id,login,password,description,idrole"
-                + " from apprecie as a1  "
-                + "    join apprecie as a2 on a1.u2 = a2.u1"
-                + "    join utilisateur on utilisateur.id = a1.u2"
-                + " where a1.u1 = ? and a1.u1 = a2.u2");
+                + UtilisateurResume.FROM_AMIS);
     }
 
     public static List<Utilisateur> utilisateursPourTest(String nomBase, int nbr) {
@@ -176,11 +500,14 @@ public class Utilisateur {
                 .toList();
     }
 
+    /**
+     * crée nbr utilisateurs test par insertions en masse (voir
+     * {@link GenerateurDonnees}).
+     */
     public static void creeUtilisateursTest(ConnectionSGBD connSGBD, String nomBase, int nbr)
             throws SQLException {
-        for (Utilisateur u : utilisateursPourTest(nomBase, nbr)) {
-            u.sauvegarde(connSGBD);
-        }
+        GenerateurDonnees.creeUtilisateurs(connSGBD, nomBase, nbr,
+                GenerateurDonnees.TAILLE_TRANSACTION, GenerateurDonnees.progressionConsole());
     }
 
     public static void menuUtilisateur(ConnectionSGBD connSGBD) {
@@ -189,7 +516,7 @@ public class Utilisateur {
             int i = 1;
             System.out.println("Menu Utilisateur");
             System.out.println("==============");
-            System.out.println((i++) + ") lister tous les utilisateurs");
+            System.out.println((i++) + ") lister les utilisateurs");
             System.out.println((i++) + ") créer un nouvel utilisateur");
             System.out.println((i++) + ") créer des utilisateurs test");
             System.out.println((i++) + ") supprimer un utilisateur");
@@ -199,7 +526,7 @@ public class Utilisateur {
             try {
                 int j = 1;
                 if (rep == j++) {
-                    System.out.println(ListUtils.enumerateList(Utilisateur.tousLesUtilisateurs(connSGBD)));
+                    Utilisateur.listeParPages(connSGBD);
                 } else if (rep == j++) {
                     Utilisateur nouveau = Utilisateur.demande(connSGBD);
                     nouveau.sauvegarde(connSGBD);
@@ -209,9 +536,10 @@ public class Utilisateur {
                     int nbr = ConsoleFdB.entreeInt("nombre d'utilisateur à créer");
                     Utilisateur.creeUtilisateursTest(connSGBD, noms, nbr);
                 } else if (rep == j++) {
+                    String prefixe = ConsoleFdB.entreeString("début du login (vide pour tous) : ");
                     Optional<Utilisateur> choix = ListUtils.selectOneOrCancel(
                             "--- selectionnez un utilisateur à supprimer",
-                            Utilisateur.tousLesUtilisateurs(connSGBD),
+                            Utilisateur.page(connSGBD, 0, MAX_PROPOSES, prefixe),
                             Utilisateur::toString);
                     if (choix.isPresent()) {
                         choix.get().delete(connSGBD);
@@ -237,18 +565,41 @@ public class Utilisateur {
         int rep = -1;
         while (rep != 0) {
             int i = 1;
-            System.out.println("Utilisateur " + this.login);
+            int[] moi = new int[]{this.id};
+            try {
+                System.out.println("Utilisateur " + this.login
+                        + " (apprécie " + Apprecie.nbrApprecie(connSGBD, moi)[0]
+                        + ", apprécié par " + Apprecie.nbrAppreciePar(connSGBD, moi)[0] + ")");
+            } catch (SQLException ex) {
+                System.out.println("Utilisateur " + this.login);
+            }
             System.out.println("=========================");
+            System.out.println((i++) + ") afficher mon profil (appréciés, qui m'apprécient, amis)");
             System.out.println((i++) + ") afficher les utilisateur appréciés");
             System.out.println((i++) + ") définir les utilisateurs appréciés");
+            System.out.println((i++) + ") apprécier / ne plus apprécier un utilisateur (écriture différée)");
             System.out.println((i++) + ") afficher les utilisateurs qui m'apprecient");
             System.out.println((i++) + ") afficher mes amis");
+            System.out.println((i++) + ") afficher nos amis communs avec un autre utilisateur");
+            System.out.println((i++) + ") utilisateurs qui m'apprécient sans que je les apprécie");
+            System.out.println((i++) + ") utilisateurs que je pourrais apprécier");
             System.out.println("0) Fin");
             rep = ConsoleFdB.entreeEntier("Votre choix : ");
             try {
                 int j = 1;
                 if (rep == j++) {
-                    List<Utilisateur> apprecies = this.apprecie(connSGBD);
+                    Profil profil = Profil.charge(connSGBD, this.id);
+                    System.out.println("---- utilisateurs appréciés");
+                    System.out.println(profil.getApprecie().isEmpty() ? "AUCUN"
+                            : ListUtils.enumerateList(profil.getApprecie()));
+                    System.out.println("---- utilisateurs qui m'apprecient");
+                    System.out.println(profil.getAppreciePar().isEmpty() ? "AUCUN"
+                            : ListUtils.enumerateList(profil.getAppreciePar()));
+                    System.out.println("---- mes amis");
+                    System.out.println(profil.getAmis().isEmpty() ? "AUCUN"
+                            : ListUtils.enumerateList(profil.getAmis()));
+                } else if (rep == j++) {
+                    List<UtilisateurResume> apprecies = UtilisateurResume.apprecie(connSGBD, this.id);
                     System.out.println("---- utilisateurs appréciés");
                     if (apprecies.isEmpty()) {
                         System.out.println("AUCUN");
@@ -257,16 +608,34 @@ public class Utilisateur {
                     }
                 } else if (rep == j++) {
                     List<Utilisateur> cur = this.apprecie(connSGBD);
-                    List<Utilisateur> tous = Utilisateur.tousLesUtilisateurs(connSGBD);
-                    tous.removeAll(cur);
+                    String prefixe = ConsoleFdB.entreeString("début du login des utilisateurs proposés (vide pour tous) : ");
+                    List<Utilisateur> proposes = Utilisateur.page(connSGBD, 0, MAX_PROPOSES, prefixe);
+                    BitmapCompresse deja = BitmapCompresse.depuis(
+                            cur.stream().mapToInt(Utilisateur::getId).toArray());
+                    proposes.removeIf(p -> deja.contient(p.getId()));
                     List<Utilisateur> apprecies = ListUtils.selectMultiple(
                             "----- choisissez les utilisateurs que vous appreciez",
-                            this.apprecie(connSGBD),
-                            tous,
+                            cur,
+                            proposes,
                             Utilisateur::toString);
                     this.saveApprecies(connSGBD, apprecies);
                 } else if (rep == j++) {
-                    List<Utilisateur> appreciePar = this.appreciePar(connSGBD);
+                    String prefixe = ConsoleFdB.entreeString("début du login (vide pour tous) : ");
+                    List<Utilisateur> proposes = Utilisateur.page(connSGBD, 0, MAX_PROPOSES, prefixe);
+                    proposes.remove(this);
+                    if (proposes.isEmpty()) {
+                        System.out.println("AUCUN");
+                    } else {
+                        Utilisateur autre = ListUtils.selectOne("--- choisissez l'utilisateur",
+                                proposes, Utilisateur::toString);
+                        if (ConsoleFdB.entreeBooleanON("l'apprécier (o) ou ne plus l'apprécier (n) ? ")) {
+                            EcrituresDifferees.get(connSGBD).aime(this.id, autre.getId());
+                        } else {
+                            EcrituresDifferees.get(connSGBD).naimePlus(this.id, autre.getId());
+                        }
+                    }
+                } else if (rep == j++) {
+                    List<UtilisateurResume> appreciePar = UtilisateurResume.appreciePar(connSGBD, this.id);
                     System.out.println("---- utilisateurs qui m'apprecient");
                     if (appreciePar.isEmpty()) {
                         System.out.println("AUCUN");
@@ -274,13 +643,56 @@ public class Utilisateur {
                         System.out.println(ListUtils.enumerateList(appreciePar));
                     }
                 } else if (rep == j++) {
-                    List<Utilisateur> amis = this.amis(connSGBD);
+                    List<UtilisateurResume> amis = UtilisateurResume.amis(connSGBD, this.id);
                     System.out.println("---- mes amis");
                     if (amis.isEmpty()) {
                         System.out.println("AUCUN");
                     } else {
                         System.out.println(ListUtils.enumerateList(amis));
                     }
+                } else if (rep == j++) {
+                    String prefixe = ConsoleFdB.entreeString("début du login (vide pour tous) : ");
+                    List<Utilisateur> proposes = Utilisateur.page(connSGBD, 0, MAX_PROPOSES, prefixe);
+                    proposes.remove(this);
+                    if (proposes.isEmpty()) {
+                        System.out.println("AUCUN");
+                    } else {
+                        Utilisateur autre = ListUtils.selectOne("--- choisissez l'utilisateur",
+                                proposes, Utilisateur::toString);
+                        List<UtilisateurResume> communs = UtilisateurResume.amisCommuns(connSGBD, this.id, autre.getId());
+                        System.out.println("---- amis communs avec " + autre.getLogin());
+                        if (communs.isEmpty()) {
+                            System.out.println("AUCUN");
+                        } else {
+                            System.out.println(ListUtils.enumerateList(communs));
+                        }
+                    }
+                } else if (rep == j++) {
+                    GrapheApprecie graphe = GrapheApprecie.get(connSGBD);
+                    if (graphe == null) {
+                        graphe = GrapheApprecie.charge(connSGBD);
+                    }
+                    List<Utilisateur> us = Utilisateur.parIds(connSGBD, graphe.nonReciproques(this.id));
+                    System.out.println("---- utilisateurs qui m'apprécient sans que je les apprécie");
+                    if (us.isEmpty()) {
+                        System.out.println("AUCUN");
+                    } else {
+                        System.out.println(ListUtils.enumerateList(us));
+                    }
+                } else if (rep == j++) {
+                    List<Recommandations.Recommandation> recos = Recommandations.pour(
+                            connSGBD, this.id, 10, Recommandations.Score.ADAMIC_ADAR);
+                    List<Utilisateur> us = Utilisateur.parIds(connSGBD,
+                            recos.stream().mapToInt(Recommandations.Recommandation::getId).toArray());
+                    System.out.println("---- utilisateurs que je pourrais apprécier");
+                    if (us.isEmpty()) {
+                        System.out.println("AUCUN");
+                    } else {
+                        // l'index a été chargé par Recommandations.pour
+                        GrapheApprecie graphe = GrapheApprecie.get(connSGBD);
+                        System.out.println(ListUtils.enumerateList(us, u -> u
+                                + " (" + graphe.nbrAmisCommuns(this.id, u.getId()) + " amis communs)"));
+                    }
                 }
             } catch (SQLException ex) {
                 System.out.println(ExceptionsUtils.messageEtPremiersAppelsDansPackage(ex, "fr.insa", 5));
@@ -288,31 +700,31 @@ public class Utilisateur {
         }
     }
 
+    /**
+     * enregistre la liste des utilisateurs appréciés. Seules les différences
+     * avec l'état actuel de la BdD sont envoyées (voir {@link Apprecie}).
+     */
     public void saveApprecies(ConnectionSGBD connSGBD, List<Utilisateur> apprecies)
             throws SQLException {
-        Connection conn = connSGBD.getCon();
-        conn.setAutoCommit(false);
-        try (Statement st = conn.createStatement()) {
-            //...
-            try (PreparedStatement supp = conn.prepareStatement(
-                    "delete from apprecie where u1 = ?")) {
-                supp.setInt(1, this.id);
-                supp.executeUpdate();
-            }
-            try (PreparedStatement ajout = conn.prepareStatement(
-                    "insert into apprecie (u1,u2) values (?,?)")) {
-                for (Utilisateur u2 : apprecies) {
-                    ajout.setInt(1, this.id);
-                    ajout.setInt(2, u2.id);
-                    ajout.executeUpdate();
-                }
+        int[] voulus = apprecies.stream().mapToInt(Utilisateur::getId).toArray();
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            Connection conn = emp.getCon();
+            // avant la première écriture : voir Apprecie.verrouCommit
+            Lock verrou = Apprecie.verrouCommit(connSGBD);
+            verrou.lock();
+            conn.setAutoCommit(false);
+            try {
+                Apprecie.Diff diff = Apprecie.Diff.entre(
+                        Apprecie.apprecies(connSGBD, this.id), voulus);
+                diff = Apprecie.appliqueDiff(connSGBD, this.id, diff);
+                Apprecie.valide(connSGBD, this.id, diff);
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+                verrou.unlock();
             }
-            conn.commit();
-        } catch (SQLException ex) {
-            conn.rollback();
-            throw ex;
-        } finally {
-            conn.setAutoCommit(true);
         }
     }
 
@@ -406,6 +818,14 @@ public class Utilisateur {
         return idrole;
     }
 
+    /**
+     * @return le rôle de l'utilisateur, lu dans le cache des rôles (pas de
+     * requête par utilisateur pour afficher une liste)
+     */
+    public Optional<Role> getRole(ConnectionSGBD connSGBD) throws SQLException {
+        return Role.parId(connSGBD, this.idrole);
+    }
+
     /**
      * @param idrole the idrole to set
      */
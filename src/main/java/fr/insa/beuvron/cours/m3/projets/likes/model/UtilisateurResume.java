@@ -0,0 +1,201 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Projection non modifiable d'un utilisateur : seulement l'id et le login,
+ * pour les listes où l'on n'a besoin ni du mot de passe, ni de la
+ * description.
+ * <p>
+ * Les méthodes statiques sont les équivalents de
+ * {@link Utilisateur#apprecie}, {@link Utilisateur#appreciePar} et
+ * {@link Utilisateur#amis} qui ne lisent que ces deux colonnes. Pour les
+ * seuls ids, voir {@link Apprecie#apprecies}, {@link Apprecie#appreciateurs}
+ * et {@link Apprecie#amis}. Si {@link GrapheApprecie} est chargé, les ids
+ * y sont lus, et seuls les logins sont lus dans la base (par clé primaire).
+ * </p>
+ *
+ * @author francois
+ */
+public final class UtilisateurResume {
+
+    /**
+     * jointures des relations, terminées par le paramètre (id de
+     * l'utilisateur dont on cherche les relations). Partagées avec
+     * {@link Profil}.
+     */
+    static final String FROM_APPRECIE
+            = " from apprecie join utilisateur on utilisateur.id = apprecie.u2"
+            + " where apprecie.u1 = ?";
+    static final String FROM_APPRECIE_PAR
+            = " from apprecie join utilisateur on utilisateur.id = apprecie.u1"
+            + " where apprecie.u2 = ?";
+    static final String FROM_AMIS
+            = " from amitie join utilisateur on utilisateur.id = amitie.u2"
+            + " where amitie.u1 = ?";
+    private static final String FROM_AMIS_COMMUNS
+            = " from amitie join amitie autre on autre.u2 = amitie.u2"
+            + " join utilisateur on utilisateur.id = amitie.u2"
+            + " where amitie.u1 = ? and autre.u1 = ?";
+
+    private final int id;
+    private final String login;
+
+    public UtilisateurResume(int id, String login) {
+        this.id = id;
+        this.login = login;
+    }
+
+    private static List<UtilisateurResume> cherche(ConnectionSGBD connSGBD, String from, int... ids)
+            throws SQLException {
+        List<UtilisateurResume> res = new ArrayList<>();
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte();
+                PreparedStatement st = emp.prepare(
+                        "select utilisateur.id, utilisateur.login" + from)) {
+            for (int i = 0; i < ids.length; i++) {
+                st.setInt(i + 1, ids[i]);
+            }
+            ResultSet rs = st.executeQuery();
+            while (rs.next()) {
+                res.add(new UtilisateurResume(rs.getInt(1), rs.getString(2)));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return les utilisateurs d'ids donnés, dans l'ordre de ids (les ids
+     * inexistants sont ignorés)
+     */
+    public static List<UtilisateurResume> parIds(ConnectionSGBD connSGBD, int[] ids) throws SQLException {
+        Map<Integer, UtilisateurResume> trouves = new HashMap<>();
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+            for (int debut = 0; debut < ids.length; debut = debut + Utilisateur.MAX_PROPOSES) {
+                int nbr = Math.min(Utilisateur.MAX_PROPOSES, ids.length - debut);
+                StringBuilder sql = new StringBuilder("select id,login from utilisateur where id in (");
+                for (int i = 0; i < nbr; i++) {
+                    sql.append(i == 0 ? "?" : ",?");
+                }
+                sql.append(")");
+                try (PreparedStatement st = emp.getCon().prepareStatement(sql.toString())) {
+                    for (int i = 0; i < nbr; i++) {
+                        st.setInt(i + 1, ids[debut + i]);
+                    }
+                    ResultSet rs = st.executeQuery();
+                    while (rs.next()) {
+                        UtilisateurResume u = new UtilisateurResume(rs.getInt(1), rs.getString(2));
+                        trouves.put(u.getId(), u);
+                    }
+                }
+            }
+        }
+        List<UtilisateurResume> res = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            UtilisateurResume u = trouves.get(id);
+            if (u != null) {
+                res.add(u);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return les utilisateurs appréciés par l'utilisateur id
+     */
+    public static List<UtilisateurResume> apprecie(ConnectionSGBD connSGBD, int id) throws SQLException {
+        GrapheApprecie graphe = GrapheApprecie.get(connSGBD);
+        if (graphe != null) {
+            return parIds(connSGBD, graphe.apprecie(id));
+        }
+        return cherche(connSGBD, FROM_APPRECIE, id);
+    }
+
+    /**
+     * @return les utilisateurs qui apprécient l'utilisateur id
+     */
+    public static List<UtilisateurResume> appreciePar(ConnectionSGBD connSGBD, int id) throws SQLException {
+        GrapheApprecie graphe = GrapheApprecie.get(connSGBD);
+        if (graphe != null) {
+            return parIds(connSGBD, graphe.appreciePar(id));
+        }
+        return cherche(connSGBD, FROM_APPRECIE_PAR, id);
+    }
+
+    /**
+     * @return les amis de l'utilisateur id
+     */
+    public static List<UtilisateurResume> amis(ConnectionSGBD connSGBD, int id) throws SQLException {
+        GrapheApprecie graphe = GrapheApprecie.get(connSGBD);
+        if (graphe != null) {
+            return parIds(connSGBD, graphe.amis(id));
+        }
+        return cherche(connSGBD, FROM_AMIS, id);
+    }
+
+    /**
+     * @return les amis communs des utilisateurs id et autre
+     */
+    public static List<UtilisateurResume> amisCommuns(ConnectionSGBD connSGBD, int id, int autre)
+            throws SQLException {
+        GrapheApprecie graphe = GrapheApprecie.get(connSGBD);
+        if (graphe != null) {
+            return parIds(connSGBD, graphe.amisCommuns(id, autre));
+        }
+        return cherche(connSGBD, FROM_AMIS_COMMUNS, id, autre);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getLogin() {
+        return login;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.id;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        return this.id == ((UtilisateurResume) obj).id;
+    }
+
+    @Override
+    public String toString() {
+        return "UtilisateurResume{" + "id=" + id + ", login=" + login + '}';
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+    Copyright 2000-2014 Francois de Bertrand de Beuvron
+
+    This file is part of UtilsBeuvron.
+
+    UtilsBeuvron is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    UtilsBeuvron is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with UtilsBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Écriture en flux d'un fichier csv au format de
+ * {@link StringUtil#encodeEscapedCSV(java.util.List, char, char)} : une ligne
+ * par enregistrement, les caractères sep et esc des items précédés de esc.
+ * Un passage à la ligne dans un item est également précédé de esc (voir
+ * {@link LecteurCSV}).
+ * <p>
+ * Les caractères sont écrits dans un tampon réutilisé, encodés en UTF-8 par
+ * blocs et envoyés au canal : pas de String ni de StringBuilder par ligne,
+ * et les nombres sont écrits chiffre par chiffre.
+ * </p>
+ * <pre>
+ * try (EcrivainCSV out = EcrivainCSV.cree(fichier, ',', '/')) {
+ *     out.item(12);
+ *     out.item("pi,3");
+ *     out.finLigne();      // 12,pi/,3
+ * }
+ * </pre>
+ *
+ * @author francois
+ */
+public class EcrivainCSV implements AutoCloseable {
+
+    private static final int TAILLE_TAMPON = 1 << 16;
+
+    private final WritableByteChannel canal;
+    private final char sep;
+    private final char esc;
+    private final CharsetEncoder encodeur = StandardCharsets.UTF_8.newEncoder();
+    private final CharBuffer car = CharBuffer.allocate(TAILLE_TAMPON);
+    private final ByteBuffer octets = ByteBuffer.allocateDirect(4 * TAILLE_TAMPON);
+    private final char[] chiffres = new char[20];
+    private boolean debutLigne = true;
+    private long nbrLignes = 0;
+
+    public EcrivainCSV(WritableByteChannel canal, char sep, char esc) {
+        if (sep == esc || sep == '\n' || esc == '\n') {
+            throw new IllegalArgumentException("sep, esc et \\n doivent être différents");
+        }
+        this.canal = canal;
+        this.sep = sep;
+        this.esc = esc;
+    }
+
+    /**
+     * crée (ou remplace) le fichier.
+     */
+    public static EcrivainCSV cree(Path fichier, char sep, char esc) throws IOException {
+        return new EcrivainCSV(FileChannel.open(fichier, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), sep, esc);
+    }
+
+    private void put(char c) throws IOException {
+        if (!this.car.hasRemaining()) {
+            this.encode(false);
+        }
+        this.car.put(c);
+    }
+
+    private void separe() throws IOException {
+        if (this.debutLigne) {
+            this.debutLigne = false;
+        } else {
+            this.put(this.sep);
+        }
+    }
+
+    /**
+     * item suivant de la ligne ; null est écrit comme un item vide.
+     */
+    public void item(CharSequence s) throws IOException {
+        this.separe();
+        if (s == null) {
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == this.sep || c == this.esc || c == '\n') {
+                this.put(this.esc);
+            }
+            this.put(c);
+        }
+    }
+
+    public void item(long v) throws IOException {
+        this.separe();
+        if (v < 0) {
+            this.put('-');
+        }
+        int n = 0;
+        do {
+            // chiffre par chiffre en négatif : Long.MIN_VALUE n'a pas d'opposé
+            this.chiffres[n++] = (char) ('0' - (v < 0 ? v % 10 : -(v % 10)));
+            v = v / 10;
+        } while (v != 0);
+        while (n > 0) {
+            this.put(this.chiffres[--n]);
+        }
+    }
+
+    public void finLigne() throws IOException {
+        this.put('\n');
+        this.debutLigne = true;
+        this.nbrLignes++;
+    }
+
+    /**
+     * encode les caractères du tampon, et envoie les octets au canal.
+     */
+    private void encode(boolean fin) throws IOException {
+        this.car.flip();
+        CoderResult res;
+        do {
+            res = this.encodeur.encode(this.car, this.octets, fin);
+            if (res.isError()) {
+                res.throwException();
+            }
+            this.ecritOctets();
+        } while (res.isOverflow());
+        if (fin) {
+            while (this.encodeur.flush(this.octets).isOverflow()) {
+                this.ecritOctets();
+            }
+            this.ecritOctets();
+        }
+        this.car.compact();
+    }
+
+    private void ecritOctets() throws IOException {
+        this.octets.flip();
+        while (this.octets.hasRemaining()) {
+            this.canal.write(this.octets);
+        }
+        this.octets.clear();
+    }
+
+    /**
+     * envoie au canal tout ce qui a été écrit.
+     */
+    public void flush() throws IOException {
+        this.encode(false);
+    }
+
+    /**
+     * @return le nombre de lignes terminées
+     */
+    public long getNbrLignes() {
+        return nbrLignes;
+    }
+
+    /**
+     * termine l'encodage, puis ferme le canal.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.encode(true);
+        } finally {
+            this.canal.close();
+        }
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+    Copyright 2000-2014 Francois de Bertrand de Beuvron
+
+    This file is part of UtilsBeuvron.
+
+    UtilsBeuvron is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    UtilsBeuvron is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with UtilsBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Lecture en flux d'un fichier csv au format de
+ * {@link StringUtil#decodeEscapedCSV(java.lang.String, char, char)}, écrit
+ * par exemple par {@link EcrivainCSV}.
+ * <p>
+ * Le fichier est lu par blocs depuis un canal et décodé (UTF-8) dans un
+ * tampon de caractères réutilisé. Un seul automate parcourt chaque
+ * caractère une fois : esc suivi de sep, esc ou d'un passage à la ligne
+ * donne ce caractère dans l'item, sep termine l'item, un passage à la ligne
+ * non précédé de esc termine la ligne. Une ligne sans passage à la ligne
+ * dans l'item est donc lue exactement comme par decodeEscapedCSV.
+ * </p>
+ * <p>
+ * Les items de la ligne courante sont mis bout à bout dans un tableau de
+ * caractères réutilisé : {@link #itemInt(int)} et {@link #itemLong(int)} les
+ * lisent sans créer de String ; seul {@link #item(int)} en crée une.
+ * </p>
+ * <pre>
+ * try (LecteurCSV in = LecteurCSV.ouvre(fichier, ',', '/')) {
+ *     while (in.ligneSuivante()) {
+ *         int id = in.itemInt(0);
+ *         String nom = in.item(1);
+ *     }
+ * }
+ * </pre>
+ *
+ * @author francois
+ */
+public class LecteurCSV implements AutoCloseable {
+
+    private static final int TAILLE_TAMPON = 1 << 16;
+
+    private final ReadableByteChannel canal;
+    private final char sep;
+    private final char esc;
+    private final CharsetDecoder decodeur = StandardCharsets.UTF_8.newDecoder();
+    private final ByteBuffer octets = ByteBuffer.allocateDirect(4 * TAILLE_TAMPON);
+    private final CharBuffer car = CharBuffer.allocate(TAILLE_TAMPON);
+    private boolean finEntree = false;
+    /**
+     * le décodeur a été vidé : il ne doit plus être appelé.
+     */
+    private boolean finDecodage = false;
+
+    /**
+     * items de la ligne courante, bout à bout : l'item i va de fins[i-1]
+     * (0 pour le premier) à fins[i].
+     */
+    private char[] ligne = new char[256];
+    private int[] fins = new int[16];
+    private int nbrItems = 0;
+    private long numLigne = 0;
+
+    public LecteurCSV(ReadableByteChannel canal, char sep, char esc) {
+        if (sep == esc || sep == '\n' || esc == '\n') {
+            throw new IllegalArgumentException("sep, esc et \\n doivent être différents");
+        }
+        this.canal = canal;
+        this.sep = sep;
+        this.esc = esc;
+        this.car.flip();
+    }
+
+    public static LecteurCSV ouvre(Path fichier, char sep, char esc) throws IOException {
+        return new LecteurCSV(FileChannel.open(fichier, StandardOpenOption.READ), sep, esc);
+    }
+
+    /**
+     * remplit le tampon de caractères (vide) depuis le canal.
+     *
+     * @return false à la fin du fichier
+     */
+    private boolean remplit() throws IOException {
+        this.car.clear();
+        if (this.finDecodage) {
+            this.car.flip();
+            return false;
+        }
+        while (true) {
+            this.octets.flip();
+            CoderResult res = this.decodeur.decode(this.octets, this.car, this.finEntree);
+            this.octets.compact();
+            if (res.isError()) {
+                res.throwException();
+            }
+            if (this.finEntree) {
+                this.decodeur.flush(this.car);
+                this.finDecodage = true;
+                break;
+            }
+            if (this.car.position() > 0) {
+                break;
+            }
+            if (this.canal.read(this.octets) < 0) {
+                this.finEntree = true;
+            }
+        }
+        this.car.flip();
+        return this.car.hasRemaining();
+    }
+
+    private void finItem(int n) {
+        if (this.nbrItems == this.fins.length) {
+            this.fins = Arrays.copyOf(this.fins, this.nbrItems * 2);
+        }
+        this.fins[this.nbrItems++] = n;
+    }
+
+    /**
+     * lit la ligne suivante.
+     *
+     * @return false s'il n'y a plus de ligne
+     * @throws StringFormatException si esc est suivi d'un autre caractère
+     * que sep, esc ou un passage à la ligne
+     */
+    public boolean ligneSuivante() throws IOException, StringFormatException {
+        this.nbrItems = 0;
+        if (!this.car.hasRemaining() && !this.remplit()) {
+            return false;
+        }
+        this.numLigne++;
+        char[] cs = this.car.array();
+        int pos = this.car.position();
+        int lim = this.car.limit();
+        char[] l = this.ligne;
+        int n = 0;
+        boolean modeEscape = false;
+        while (true) {
+            if (pos == lim) {
+                this.car.position(pos);
+                if (!this.remplit()) {
+                    // dernière ligne sans passage à la ligne final
+                    if (modeEscape) {
+                        throw new StringFormatException("ligne " + this.numLigne
+                                + " : " + this.esc + " en fin de fichier");
+                    }
+                    this.ligne = l;
+                    this.finItem(n);
+                    return true;
+                }
+                pos = this.car.position();
+                lim = this.car.limit();
+            }
+            char c = cs[pos++];
+            if (modeEscape) {
+                if (c != this.sep && c != this.esc && c != '\n') {
+                    this.car.position(pos);
+                    throw new StringFormatException("ligne " + this.numLigne + " : Escape error : "
+                            + this.esc + c + " est illégal");
+                }
+                modeEscape = false;
+            } else if (c == this.esc) {
+                modeEscape = true;
+                continue;
+            } else if (c == this.sep) {
+                this.ligne = l;
+                this.finItem(n);
+                continue;
+            } else if (c == '\n') {
+                this.car.position(pos);
+                this.ligne = l;
+                this.finItem(n);
+                return true;
+            }
+            if (n == l.length) {
+                l = Arrays.copyOf(l, n * 2);
+            }
+            l[n++] = c;
+        }
+    }
+
+    /**
+     * @return le nombre d'items de la ligne courante
+     */
+    public int nbrItems() {
+        return this.nbrItems;
+    }
+
+    private int debut(int i) {
+        if (i < 0 || i >= this.nbrItems) {
+            throw new IndexOutOfBoundsException("item " + i + " sur " + this.nbrItems
+                    + " à la ligne " + this.numLigne);
+        }
+        return i == 0 ? 0 : this.fins[i - 1];
+    }
+
+    public String item(int i) {
+        int debut = this.debut(i);
+        return new String(this.ligne, debut, this.fins[i] - debut);
+    }
+
+    public boolean isItemVide(int i) {
+        return this.debut(i) == this.fins[i];
+    }
+
+    public long itemLong(int i) throws StringFormatException {
+        int pos = this.debut(i);
+        int fin = this.fins[i];
+        boolean negatif = pos < fin && this.ligne[pos] == '-';
+        if (negatif) {
+            pos++;
+        }
+        if (pos == fin) {
+            throw new StringFormatException("ligne " + this.numLigne + " : item " + i + " : entier attendu");
+        }
+        long res = 0;
+        for (; pos < fin; pos++) {
+            int chiffre = this.ligne[pos] - '0';
+            // accumulé en négatif : Long.MIN_VALUE n'a pas d'opposé
+            if (chiffre < 0 || chiffre > 9 || res < (Long.MIN_VALUE + chiffre) / 10) {
+                throw new StringFormatException("ligne " + this.numLigne + " : item " + i
+                        + " : \"" + this.item(i) + "\" n'est pas un entier");
+            }
+            res = res * 10 - chiffre;
+        }
+        if (!negatif && res == Long.MIN_VALUE) {
+            throw new StringFormatException("ligne " + this.numLigne + " : item " + i + " : trop grand");
+        }
+        return negatif ? res : -res;
+    }
+
+    public int itemInt(int i) throws StringFormatException {
+        long res = this.itemLong(i);
+        if (res < Integer.MIN_VALUE || res > Integer.MAX_VALUE) {
+            throw new StringFormatException("ligne " + this.numLigne + " : item " + i + " : " + res
+                    + " n'est pas un int");
+        }
+        return (int) res;
+    }
+
+    /**
+     * @return le numéro de la ligne courante (à partir de 1)
+     */
+    public long getNumLigne() {
+        return numLigne;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.canal.close();
+    }
+
+}
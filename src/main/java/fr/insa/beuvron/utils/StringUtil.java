@@ -339,6 +339,8 @@ public class StringUtil implements java.io.Serializable {
      * Le codage consiste donc à remplacer d'abord tous les / par // puis
      * toutes les , par /,
      * </pre>
+     * Pour lire ou écrire des fichiers entiers dans ce format sans passer par
+     * des String intermédiaires, voir {@link LecteurCSV} et {@link EcrivainCSV}.
      *
      * @param items
      * @param sep
@@ -0,0 +1,269 @@
+/*
+    Copyright 2000-2014 Francois de Bertrand de Beuvron
+
+    This file is part of UtilsBeuvron.
+
+    UtilsBeuvron is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    UtilsBeuvron is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with UtilsBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.utils.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache LRU des {@link PreparedStatement} d'une connection physique, indexé
+ * par l'ordre sql.
+ * <p>
+ * On n'utilise pas directement cette classe, mais
+ * {@link ConnectionSGBD#prepare(java.lang.String)} : le statement retourné
+ * s'utilise comme un statement normal dans un try-with-resources, mais son
+ * close le rend au cache (paramètres effacés, ResultSet fermés) au lieu de
+ * le fermer. Le SGBD n'a ainsi à analyser et planifier la requête qu'une
+ * fois par connection.
+ * </p>
+ * <p>
+ * Un statement est sorti du cache pendant son utilisation : si le même ordre
+ * est préparé une deuxième fois avant le close du premier (requêtes
+ * imbriquées, ou plusieurs threads sur une connection unique), on crée un
+ * nouveau statement. Il n'y a donc jamais deux utilisateurs d'un même
+ * statement.
+ * </p>
+ *
+ * @author francois
+ */
+public class CacheRequetes {
+
+    /**
+     * compteurs communs à tous les caches d'un {@link ConnectionSGBD}.
+     */
+    public static class Stats {
+
+        private final LongAdder succes = new LongAdder();
+        private final LongAdder echecs = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        /**
+         * @return nombre de statements trouvés dans le cache
+         */
+        public long getSucces() {
+            return succes.sum();
+        }
+
+        /**
+         * @return nombre de statements qu'il a fallu préparer
+         */
+        public long getEchecs() {
+            return echecs.sum();
+        }
+
+        /**
+         * @return nombre de statements fermés pour faire de la place
+         */
+        public long getEvictions() {
+            return evictions.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{" + "succes=" + getSucces() + ", echecs=" + getEchecs()
+                    + ", evictions=" + getEvictions() + '}';
+        }
+    }
+
+    private final Connection con;
+    private final Stats stats;
+    private final LinkedHashMap<String, PreparedStatement> libres;
+    private int generation;
+
+    /**
+     * @param con la connection physique
+     * @param capacite nombre maximum de statements conservés
+     * @param stats compteurs à mettre à jour
+     * @param generation voir {@link #prepare(java.lang.String, int, int)}
+     */
+    CacheRequetes(Connection con, int capacite, Stats stats, int generation) {
+        this.con = con;
+        this.stats = stats;
+        this.generation = generation;
+        this.libres = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > capacite) {
+                    ferme(eldest.getValue());
+                    stats.evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private static void ferme(PreparedStatement st) {
+        try {
+            st.close();
+        } catch (SQLException ex) {
+            // le statement est abandonné de toute façon
+        }
+    }
+
+    /**
+     * @param sql l'ordre sql
+     * @param autoGeneratedKeys {@link Statement#RETURN_GENERATED_KEYS} ou
+     * {@link Statement#NO_GENERATED_KEYS}
+     * @param generation si elle diffère de celle du cache (le schéma a changé
+     * : voir {@link ConnectionSGBD#videCacheRequetes()}), le cache est vidé
+     * @return un statement dont le close le rend au cache
+     */
+    PreparedStatement prepare(String sql, int autoGeneratedKeys, int generation) throws SQLException {
+        String cle = autoGeneratedKeys + ":" + sql;
+        PreparedStatement st;
+        synchronized (this) {
+            if (generation != this.generation) {
+                this.vide();
+                this.generation = generation;
+            }
+            st = this.libres.remove(cle);
+        }
+        if (st == null || st.isClosed()) {
+            this.stats.echecs.increment();
+            st = this.con.prepareStatement(sql, autoGeneratedKeys);
+        } else {
+            this.stats.succes.increment();
+        }
+        return (PreparedStatement) Proxy.newProxyInstance(CacheRequetes.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new Emprunte(cle, st));
+    }
+
+    /**
+     * remet le statement dans l'état où l'emprunteur suivant l'attend :
+     * paramètres et lot vides (un lot qui a échoué peut ne pas avoir été
+     * vidé), réglages d'origine.
+     *
+     * @param reglages fetch size, max rows et query timeout d'origine, null
+     * s'ils n'ont pas été modifiés
+     */
+    private void rend(String cle, PreparedStatement st, int[] reglages) {
+        try {
+            st.clearParameters();
+            st.clearBatch();
+            if (reglages != null) {
+                // max rows d'abord : certains drivers refusent fetch size > max rows
+                st.setMaxRows(reglages[1]);
+                st.setFetchSize(reglages[0]);
+                st.setQueryTimeout(reglages[2]);
+            }
+        } catch (SQLException ex) {
+            ferme(st);
+            return;
+        }
+        synchronized (this) {
+            if (this.libres.containsKey(cle)) {
+                // un doublon créé pendant que st était sorti : on n'en garde qu'un
+                ferme(st);
+            } else {
+                this.libres.put(cle, st);
+            }
+        }
+    }
+
+    /**
+     * ferme tous les statements du cache.
+     */
+    synchronized void vide() {
+        for (Iterator<PreparedStatement> it = this.libres.values().iterator(); it.hasNext();) {
+            ferme(it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * @return le nombre de statements actuellement dans le cache
+     */
+    synchronized int getTaille() {
+        return this.libres.size();
+    }
+
+    /**
+     * intercepte le close (et les ResultSet produits, pour les fermer au
+     * close) ; tout le reste est délégué au vrai statement.
+     */
+    private class Emprunte implements InvocationHandler {
+
+        private final String cle;
+        private final PreparedStatement st;
+        private final List<ResultSet> resultats = new ArrayList<>(1);
+        private boolean rendu = false;
+        /**
+         * réglages du statement avant leur première modification, null s'ils
+         * n'ont pas été modifiés.
+         */
+        private int[] reglages;
+
+        private Emprunte(String cle, PreparedStatement st) {
+            this.cle = cle;
+            this.st = st;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String nom = method.getName();
+            if (nom.equals("close")) {
+                if (!this.rendu) {
+                    this.rendu = true;
+                    for (ResultSet rs : this.resultats) {
+                        rs.close();
+                    }
+                    rend(this.cle, this.st, this.reglages);
+                }
+                return null;
+            } else if (nom.equals("isClosed")) {
+                return this.rendu || this.st.isClosed();
+            } else if (nom.equals("equals")) {
+                return proxy == args[0];
+            } else if (nom.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (nom.equals("toString")) {
+                return "cache : " + this.st;
+            } else if (this.rendu) {
+                throw new SQLException("statement fermé");
+            } else if (this.reglages == null && (nom.equals("setFetchSize") || nom.equals("setMaxRows")
+                    || nom.equals("setLargeMaxRows") || nom.equals("setQueryTimeout"))) {
+                this.reglages = new int[]{this.st.getFetchSize(), this.st.getMaxRows(), this.st.getQueryTimeout()};
+            }
+            try {
+                Object res = method.invoke(this.st, args);
+                if (res instanceof ResultSet) {
+                    this.resultats.add((ResultSet) res);
+                }
+                return res;
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+}
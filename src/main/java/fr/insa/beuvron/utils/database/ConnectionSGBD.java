@@ -22,12 +22,29 @@ import fr.insa.beuvron.utils.ConsoleFdB;
 import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Une classe qui contient une {@link java.sql.Connection} avec en plus des
  * informations spécifiques au type de SGBD (postgres, mysql ...).
+ * <pre>
+ * Deux modes :
+ * . connection unique : une seule {@link java.sql.Connection} partagée
+ *   (voir {@link #connect})
+ * . pool : un {@link PoolConnections} borné (voir {@link #pool}). Chaque
+ *   traitement emprunte alors une connection pour sa durée :
+ *   try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte()) {
+ *       ... emp.getCon() ... emp.prepare(sql) ...
+ *   }
+ * </pre>
+ * Dans les deux modes, {@link #getCon()} retourne la connection empruntée
+ * par le thread courant (les emprunts imbriqués dans un même thread
+ * partagent la même connection, ce qui permet de garder une transaction).
  *
  * @author francois
  */
@@ -35,9 +52,23 @@ public class ConnectionSGBD implements AutoCloseable {
     
     @Override
     public void close() throws SQLException {
+        // les extensions qui ont des ressources (threads ...) sont fermées
+        for (Object ext : this.extensions.values()) {
+            if (ext instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) ext).close();
+                } catch (Exception ex) {
+                    // on ferme quand même la suite
+                }
+            }
+        }
+        this.extensions.clear();
         if (this.con != null) {
             this.con.close();
         }
+        if (this.pool != null) {
+            this.pool.close();
+        }
     }
 
     /**
@@ -125,6 +156,129 @@ public class ConnectionSGBD implements AutoCloseable {
         public String sqlForGeneratedIntPKColumn(String columnName);
         
         public String sqlForConcat(String sqlForS1, String sqlForS2);
+
+        /**
+         * nombre maximum de lignes par ordre insert pour les insertions en
+         * masse (voir {@link InsertionParLots}).
+         * <pre>
+         * . 1 : insert mono-ligne envoyés par lots jdbc (addBatch/executeBatch).
+         *   C'est le plus efficace pour les drivers qui optimisent eux-même
+         *   les lots (postgresql, h2)
+         * . n &gt; 1 : insert multi-lignes insert into t (...) values (...),(...)...
+         *   pour les drivers qui envoient un aller-retour par élément du lot
+         *   (mysql, mariadb sans rewriteBatchedStatements)
+         * </pre>
+         */
+        public default int nbrMaxLignesParInsert() {
+            return 1;
+        }
+
+        /**
+         * création d'un index.
+         *
+         * @param nomIndex nom de l'index
+         * @param table table indexée
+         * @param colonnes liste des colonnes indexées séparées par des ,
+         * @param unique true pour un index unique
+         */
+        public default String sqlForCreateIndex(String nomIndex, String table,
+                String colonnes, boolean unique) {
+            return "create " + (unique ? "unique " : "") + "index " + nomIndex
+                    + " on " + table + " (" + colonnes + ")";
+        }
+
+        /**
+         * ajout d'une clé primaire à une table existante.
+         *
+         * @param nomContrainte nom de la contrainte
+         * @param table la table
+         * @param colonnes liste des colonnes de la clé séparées par des ,
+         */
+        public default String sqlForAddPrimaryKey(String nomContrainte, String table,
+                String colonnes) {
+            return "alter table " + table + " add constraint " + nomContrainte
+                    + " primary key (" + colonnes + ")";
+        }
+
+        /**
+         * ajoute la contrainte not null à une colonne existante.
+         *
+         * @param table la table
+         * @param colonne la colonne
+         * @param type le type sql de la colonne (nécessaire pour mysql)
+         * @return l'ordre sql, ou null si le SGBD ne permet pas de le faire
+         */
+        public default String sqlForSetNotNull(String table, String colonne, String type) {
+            return "alter table " + table + " alter column " + colonne + " set not null";
+        }
+
+        /**
+         * change le type d'une colonne existante (typiquement pour agrandir un
+         * varchar).
+         *
+         * @param table la table
+         * @param colonne la colonne
+         * @param type le nouveau type sql
+         * @return l'ordre sql, ou null si le SGBD ne permet pas de le faire
+         */
+        public default String sqlForAlterColumnType(String table, String colonne, String type) {
+            return "alter table " + table + " alter column " + colonne + " set data type " + type;
+        }
+
+        /**
+         * configure un statement pour que le driver transmette les lignes du
+         * résultat au fur et à mesure au lieu de tout charger en mémoire.
+         * Pour postgresql, il faut en plus que la connection ne soit pas en
+         * autocommit.
+         */
+        public default void configureLectureEnFlux(Statement st) throws SQLException {
+            st.setFetchSize(1000);
+        }
+
+        /**
+         * limite le nombre de lignes retournées par un select. Le nombre
+         * maximum de lignes est un paramètre (?) ajouté à la fin de la
+         * requête : il doit être fixé après tous les autres paramètres.
+         *
+         * @param select un select complet (avec son order by)
+         */
+        public default String sqlForLimite(String select) {
+            return select + " limit ?";
+        }
+
+        /**
+         * texte à placer entre la liste des colonnes et values dans un insert
+         * qui donne lui-même la valeur de la colonne identité (import de
+         * données). Vide par défaut ; postgresql l'exige pour une colonne
+         * generated always.
+         */
+        public default String sqlForInsertIdentiteExplicite() {
+            return "";
+        }
+
+        /**
+         * fait repartir la génération de la colonne identité à prochain,
+         * après des insertions qui ont donné elles-mêmes les valeurs.
+         *
+         * @return l'ordre sql, ou null si le SGBD suit seul les valeurs
+         * insérées
+         */
+        public default String sqlForRedemarreIdentite(String table, String colonne, int prochain) {
+            return "alter table " + table + " alter column " + colonne + " restart with " + prochain;
+        }
+
+        /**
+         * select qui verrouille les lignes lues jusqu'à la fin de la
+         * transaction (et lit leur dernière version validée).
+         *
+         * @param select un select complet
+         * @return le select modifié, ou select lui-même si le SGBD n'a pas
+         * de verrou de ligne (les écritures y sont de toute façon
+         * sérialisées)
+         */
+        public default String sqlForVerrouLignes(String select) {
+            return select + " for update";
+        }
     }
     
     public interface SGBDDef extends InfosPourConnection, SQLSpecificSGBD {
@@ -161,6 +315,11 @@ public class ConnectionSGBD implements AutoCloseable {
             public String sqlForConcat(String sqlForS1, String sqlForS2) {
                 return sqlForS1 + " || " + sqlForS2;
             }
+
+            @Override
+            public String sqlForInsertIdentiteExplicite() {
+                return "overriding system value";
+            }
         },
         MARIADB() {
             @Override
@@ -193,6 +352,26 @@ public class ConnectionSGBD implements AutoCloseable {
             public String sqlForConcat(String sqlForS1, String sqlForS2) {
                 return "CONCAT(" + sqlForS1 + " , " + sqlForS2 + ")";
             }
+            
+            @Override
+            public int nbrMaxLignesParInsert() {
+                return 500;
+            }
+            
+            @Override
+            public String sqlForSetNotNull(String table, String colonne, String type) {
+                return "alter table " + table + " modify " + colonne + " " + type + " not null";
+            }
+
+            @Override
+            public String sqlForAlterColumnType(String table, String colonne, String type) {
+                return "alter table " + table + " modify " + colonne + " " + type;
+            }
+
+            @Override
+            public String sqlForRedemarreIdentite(String table, String colonne, int prochain) {
+                return "alter table " + table + " auto_increment = " + prochain;
+            }
         },
         MYSQL() {
             @Override
@@ -225,6 +404,32 @@ public class ConnectionSGBD implements AutoCloseable {
             public String sqlForConcat(String sqlForS1, String sqlForS2) {
                 return "CONCAT(" + sqlForS1 + " , " + sqlForS2 + ")";
             }
+            
+            @Override
+            public int nbrMaxLignesParInsert() {
+                return 500;
+            }
+            
+            @Override
+            public String sqlForSetNotNull(String table, String colonne, String type) {
+                return "alter table " + table + " modify " + colonne + " " + type + " not null";
+            }
+
+            @Override
+            public String sqlForAlterColumnType(String table, String colonne, String type) {
+                return "alter table " + table + " modify " + colonne + " " + type;
+            }
+
+            @Override
+            public String sqlForRedemarreIdentite(String table, String colonne, int prochain) {
+                return "alter table " + table + " auto_increment = " + prochain;
+            }
+            
+            @Override
+            public void configureLectureEnFlux(Statement st) throws SQLException {
+                // seule valeur qui active le mode flux du driver mysql
+                st.setFetchSize(Integer.MIN_VALUE);
+            }
         },
         SQLITE() {
             @Override
@@ -257,6 +462,36 @@ public class ConnectionSGBD implements AutoCloseable {
             public String sqlForConcat(String sqlForS1, String sqlForS2) {
                 return "CONCAT(" + sqlForS1 + " , " + sqlForS2 + ")";
             }
+            
+            @Override
+            public String sqlForAddPrimaryKey(String nomContrainte, String table, String colonnes) {
+                // pas d'ajout de contrainte par alter table en sqlite :
+                // un index unique est équivalent
+                return this.sqlForCreateIndex(nomContrainte, table, colonnes, true);
+            }
+            
+            @Override
+            public String sqlForSetNotNull(String table, String colonne, String type) {
+                return null;
+            }
+
+            @Override
+            public String sqlForAlterColumnType(String table, String colonne, String type) {
+                // sqlite ne vérifie pas la taille des varchar
+                return null;
+            }
+
+            @Override
+            public String sqlForRedemarreIdentite(String table, String colonne, int prochain) {
+                // autoincrement repart toujours après le plus grand id inséré
+                return null;
+            }
+
+            @Override
+            public String sqlForVerrouLignes(String select) {
+                // un seul écrivain à la fois sur toute la base
+                return select;
+            }
         },
         H2LocalFile() {
             @Override
@@ -441,14 +676,110 @@ public class ConnectionSGBD implements AutoCloseable {
         
     }
     
+    /**
+     * l'emprunt d'une connection par le thread courant. A utiliser dans un
+     * try-with-resources : la connection est rendue au pool à la fermeture
+     * du plus externe des emprunts imbriqués.
+     */
+    public class Emprunt implements AutoCloseable {
+
+        private final PoolConnections.Entree entree;
+        private final Connection conEmpruntee;
+        private int profondeur;
+
+        private Emprunt(PoolConnections.Entree entree, Connection conEmpruntee) {
+            this.entree = entree;
+            this.conEmpruntee = conEmpruntee;
+            this.profondeur = 1;
+        }
+
+        /**
+         * @return la connection empruntée
+         */
+        public Connection getCon() {
+            return conEmpruntee;
+        }
+
+        /**
+         * @return la base dont la connection est empruntée
+         */
+        public ConnectionSGBD getConnectionSGBD() {
+            return ConnectionSGBD.this;
+        }
+
+        /**
+         * {@link ConnectionSGBD#prepare(java.lang.String)} sur la connection
+         * empruntée.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return this.prepare(sql, Statement.NO_GENERATED_KEYS);
+        }
+
+        /**
+         * {@link ConnectionSGBD#prepare(java.lang.String, int)} sur la
+         * connection empruntée.
+         */
+        public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            if (tailleCacheRequetes == 0) {
+                return this.conEmpruntee.prepareStatement(sql, autoGeneratedKeys);
+            }
+            return this.getCacheRequetes().prepare(sql, autoGeneratedKeys, generationCache.get());
+        }
+
+        /**
+         * @return le cache des statements de la connection empruntée
+         */
+        private CacheRequetes getCacheRequetes() {
+            if (this.entree == null) {
+                synchronized (ConnectionSGBD.this) {
+                    if (cacheUnique == null) {
+                        cacheUnique = new CacheRequetes(this.conEmpruntee, tailleCacheRequetes,
+                                statsCache, generationCache.get());
+                    }
+                    return cacheUnique;
+                }
+            }
+            // l'entrée n'est utilisée que par le thread qui l'a empruntée
+            if (this.entree.cacheRequetes == null) {
+                this.entree.cacheRequetes = new CacheRequetes(this.conEmpruntee,
+                        tailleCacheRequetes, statsCache, generationCache.get());
+            }
+            return this.entree.cacheRequetes;
+        }
+
+        @Override
+        public void close() {
+            this.profondeur--;
+            if (this.profondeur == 0) {
+                empruntCourant.remove();
+                if (this.entree != null) {
+                    pool.rend(this.entree);
+                }
+            }
+        }
+    }
+
     private SGBDDef sgbd;
     private Connection con;
+    private PoolConnections pool;
+    private final ThreadLocal<Emprunt> empruntCourant = new ThreadLocal<>();
+    private final ConcurrentHashMap<Class<?>, Object> extensions = new ConcurrentHashMap<>();
+
+    private volatile int tailleCacheRequetes = 64;
+    private final CacheRequetes.Stats statsCache = new CacheRequetes.Stats();
+    private final AtomicInteger generationCache = new AtomicInteger();
+    private CacheRequetes cacheUnique;
     
     public ConnectionSGBD(SGBDDef sgbd, Connection con) {
         this.sgbd = sgbd;
         this.con = con;
     }
     
+    public ConnectionSGBD(SGBDDef sgbd, PoolConnections pool) {
+        this.sgbd = sgbd;
+        this.pool = pool;
+    }
+    
     public static ConnectionSGBD connect(SGBDDef sgbd,
             String host, int port,
             String database,
@@ -456,6 +787,169 @@ public class ConnectionSGBD implements AutoCloseable {
         return new ConnectionSGBD(sgbd, sgbd.connect(host, port, database, user, pass));
     }
 
+    /**
+     * crée un ConnectionSGBD en mode pool.
+     *
+     * @param min nombre de connections conservées même inactives
+     * @param max nombre maximum de connections simultanées
+     * @param attenteMaxMs attente maximum pour un emprunt
+     * @param inactiviteMaxMs délai après lequel une connection inactive (au
+     * delà de min) est fermée
+     */
+    public static ConnectionSGBD pool(SGBDDef sgbd,
+            String host, int port,
+            String database,
+            String user, String pass,
+            int min, int max, long attenteMaxMs, long inactiviteMaxMs) throws SQLException {
+        return new ConnectionSGBD(sgbd, new PoolConnections(
+                () -> sgbd.connect(host, port, database, user, pass),
+                min, max, attenteMaxMs, inactiviteMaxMs));
+    }
+
+    /**
+     * {@code pool(sgbd, host, port, database, user, pass, min, max, 30000, 300000)}
+     */
+    public static ConnectionSGBD pool(SGBDDef sgbd,
+            String host, int port,
+            String database,
+            String user, String pass,
+            int min, int max) throws SQLException {
+        return pool(sgbd, host, port, database, user, pass, min, max, 30000, 300000);
+    }
+
+    /**
+     * emprunte une connection pour le thread courant. Si le thread a déjà un
+     * emprunt en cours, c'est le même emprunt (et la même connection) qui est
+     * retourné.
+     *
+     * @return l'emprunt, à fermer par un try-with-resources
+     * @throws SQLException si aucune connection n'est disponible (mode pool)
+     */
+    public Emprunt emprunte() throws SQLException {
+        Emprunt cur = this.empruntCourant.get();
+        if (cur != null) {
+            cur.profondeur++;
+            return cur;
+        }
+        if (this.pool == null) {
+            cur = new Emprunt(null, this.con);
+        } else {
+            PoolConnections.Entree entree = this.pool.emprunte();
+            cur = new Emprunt(entree, entree.getCon());
+        }
+        this.empruntCourant.set(cur);
+        return cur;
+    }
+
+    /**
+     * @return le nombre maximum d'emprunts simultanés par des threads
+     * différents : la taille maximum du pool, ou 1 en connection unique (une
+     * seule transaction à la fois sur la connection partagée)
+     */
+    public int getMaxEmpruntsSimultanes() {
+        return this.pool == null ? 1 : this.pool.getMax();
+    }
+
+    /**
+     * prépare un ordre sql en passant par le cache de statements de la
+     * connection empruntée par le thread courant. A utiliser comme
+     * {@code getCon().prepareStatement(sql)}, dans un try-with-resources : le
+     * close rend le statement au cache (voir {@link CacheRequetes}).
+     * <p>
+     * Réservé aux ordres constants (ou peu nombreux) : un ordre construit à
+     * la volée avec des valeurs remplirait le cache pour rien.
+     * </p>
+     *
+     * @throws IllegalStateException en mode pool si le thread courant n'a pas
+     * d'emprunt en cours
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        return this.prepare(sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    /**
+     * comme {@link #prepare(java.lang.String)}, en précisant si l'on veut
+     * récupérer les clés générées.
+     *
+     * @param autoGeneratedKeys {@link Statement#RETURN_GENERATED_KEYS} ou
+     * {@link Statement#NO_GENERATED_KEYS}
+     */
+    public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        Emprunt cur = this.empruntCourant.get();
+        if (cur == null && this.pool != null) {
+            throw new IllegalStateException("mode pool : prepare() doit être appelé pendant un emprunt");
+        }
+        if (cur == null) {
+            // connection unique sans emprunt
+            try (Emprunt emp = this.emprunte()) {
+                return emp.prepare(sql, autoGeneratedKeys);
+            }
+        }
+        return cur.prepare(sql, autoGeneratedKeys);
+    }
+
+    /**
+     * ferme tous les statements en cache. A appeler après une modification du
+     * schéma : certains SGBD invalident (ou pire, gardent des plans faux
+     * pour) les statements préparés sur des tables modifiées. Les caches des
+     * connections du pool sont vidés lors de leur prochaine utilisation.
+     */
+    public void videCacheRequetes() {
+        this.generationCache.incrementAndGet();
+    }
+
+    /**
+     * @param taille nombre maximum de statements conservés par connection
+     * (0 : pas de cache). Ne s'applique qu'aux caches créés ensuite : à
+     * appeler avant toute utilisation.
+     */
+    public void setTailleCacheRequetes(int taille) {
+        this.tailleCacheRequetes = taille;
+    }
+
+    /**
+     * @return les compteurs de tous les caches de statements de la base
+     */
+    public CacheRequetes.Stats getStatsCacheRequetes() {
+        return statsCache;
+    }
+
+    /**
+     * permet d'associer à la base des structures en mémoire (index, caches
+     * ...), une par type. Les extensions {@link AutoCloseable} sont fermées
+     * avec la base.
+     *
+     * @return l'extension de ce type associée à la base, ou null
+     */
+    public <T> T getExtension(Class<T> type) {
+        return type.cast(this.extensions.get(type));
+    }
+
+    /**
+     * associe (ou remplace) l'extension de ce type ; null pour la retirer.
+     */
+    public <T> void setExtension(Class<T> type, T extension) {
+        if (extension == null) {
+            this.extensions.remove(type);
+        } else {
+            this.extensions.put(type, extension);
+        }
+    }
+
+    /**
+     * @return true si en mode pool
+     */
+    public boolean isPool() {
+        return this.pool != null;
+    }
+
+    /**
+     * @return le pool (null en mode connection unique)
+     */
+    public PoolConnections getPool() {
+        return pool;
+    }
+
     /**
      * @return the sgbd
      */
@@ -464,9 +958,19 @@ public class ConnectionSGBD implements AutoCloseable {
     }
 
     /**
-     * @return the con
+     * @return la connection empruntée par le thread courant, ou à défaut la
+     * connection unique
+     * @throws IllegalStateException en mode pool si le thread courant n'a pas
+     * d'emprunt en cours
      */
     public Connection getCon() {
+        Emprunt cur = this.empruntCourant.get();
+        if (cur != null) {
+            return cur.getCon();
+        }
+        if (this.pool != null) {
+            throw new IllegalStateException("mode pool : getCon() doit être appelé pendant un emprunt");
+        }
         return con;
     }
     
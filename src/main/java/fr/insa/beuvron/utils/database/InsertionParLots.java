@@ -0,0 +1,263 @@
+/*
+    Copyright 2000-2014 Francois de Bertrand de Beuvron
+
+    This file is part of UtilsBeuvron.
+
+    UtilsBeuvron is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    UtilsBeuvron is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with UtilsBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.utils.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.IntConsumer;
+
+/**
+ * Insertion en masse de lignes dans une table.
+ * <p>
+ * Les lignes ajoutées par {@link #ajoute(java.lang.Object...)} sont
+ * accumulées puis envoyées par lots, soit par lots jdbc d'insert mono-ligne,
+ * soit par insert multi-lignes suivant
+ * {@link ConnectionSGBD.SQLSpecificSGBD#nbrMaxLignesParInsert()}.
+ * </p>
+ * <p>
+ * La connection utilisée est celle empruntée par le thread courant lors de
+ * la création : l'objet doit donc être utilisé pendant un emprunt, et ne gère
+ * pas les transactions (c'est à l'appelant de le faire).
+ * </p>
+ * <pre>
+ * try (InsertionParLots ins = new InsertionParLots(connSGBD, "apprecie", "u1", "u2")) {
+ *     ins.ajoute(1, 2);
+ *     ins.ajoute(1, 3);
+ * }   // le close envoie les lignes restantes
+ * </pre>
+ * <p>
+ * Si l'on a besoin des clés générées (colonne identité), on fournit un
+ * {@link IntConsumer} qui les reçoit dans l'ordre des lignes ajoutées. On
+ * utilise alors toujours des lots jdbc d'insert mono-ligne, seul moyen
+ * portable d'obtenir toutes les clés d'un lot.
+ * </p>
+ *
+ * @author francois
+ */
+public class InsertionParLots implements AutoCloseable {
+
+    private final ConnectionSGBD connSGBD;
+    private final Connection con;
+    private final String table;
+    private final String[] colonnes;
+    private final int lignesParInsert;
+    private final int tailleLot;
+
+    private final IntConsumer recepteurCles;
+
+    /**
+     * entre la liste des colonnes et values (voir
+     * {@link #identiteExplicite()}).
+     */
+    private String avantValues = "";
+
+    private final Object[] tampon;
+    private int nbrEnAttente;
+    private long nbrEnvoyees;
+
+    /**
+     * l'insert d'un lot complet, pris dans le cache de statements (les
+     * InsertionParLots successives sur une même table le réutilisent).
+     */
+    private PreparedStatement insertPlein;
+
+    /**
+     *
+     * @param connSGBD la connection (empruntée par le thread courant)
+     * @param tailleLot nombre de lignes accumulées avant envoi
+     * @param recepteurCles reçoit les clés générées (int) de chaque ligne, ou
+     * null si on n'a pas besoin des clés
+     * @param table nom de la table
+     * @param colonnes noms des colonnes
+     */
+    public InsertionParLots(ConnectionSGBD connSGBD, int tailleLot, IntConsumer recepteurCles,
+            String table, String... colonnes) {
+        this.connSGBD = connSGBD;
+        this.con = connSGBD.getCon();
+        this.table = table;
+        this.colonnes = colonnes;
+        this.recepteurCles = recepteurCles;
+        if (recepteurCles != null) {
+            this.lignesParInsert = 1;
+        } else {
+            this.lignesParInsert = Math.max(1, Math.min(tailleLot,
+                    connSGBD.getSgbd().nbrMaxLignesParInsert()));
+        }
+        // en multi-lignes, un lot est un insert complet
+        this.tailleLot = this.lignesParInsert > 1 ? this.lignesParInsert : Math.max(1, tailleLot);
+        this.tampon = new Object[this.tailleLot * colonnes.length];
+    }
+
+    /**
+     * {@code InsertionParLots(connSGBD, tailleLot, null, table, colonnes)}
+     */
+    public InsertionParLots(ConnectionSGBD connSGBD, int tailleLot, String table, String... colonnes) {
+        this(connSGBD, tailleLot, null, table, colonnes);
+    }
+
+    /**
+     * {@code InsertionParLots(connSGBD, 1000, table, colonnes)}
+     */
+    public InsertionParLots(ConnectionSGBD connSGBD, String table, String... colonnes) {
+        this(connSGBD, 1000, table, colonnes);
+    }
+
+    private String sqlInsert(int nbrLignes) {
+        StringBuilder res = new StringBuilder();
+        res.append("insert into ").append(this.table).append(" (");
+        res.append(String.join(",", this.colonnes));
+        res.append(") ").append(this.avantValues).append(" values ");
+        StringBuilder une = new StringBuilder("(");
+        for (int j = 0; j < this.colonnes.length; j++) {
+            if (j > 0) {
+                une.append(",");
+            }
+            une.append("?");
+        }
+        une.append(")");
+        for (int i = 0; i < nbrLignes; i++) {
+            if (i > 0) {
+                res.append(",");
+            }
+            res.append(une);
+        }
+        return res.toString();
+    }
+
+    /**
+     * les lignes donnent la valeur de la colonne identité de la table (import
+     * de données) : voir
+     * {@link ConnectionSGBD.SQLSpecificSGBD#sqlForInsertIdentiteExplicite()}.
+     * À appeler avant le premier ajout.
+     *
+     * @return this
+     */
+    public InsertionParLots identiteExplicite() {
+        if (this.insertPlein != null) {
+            throw new IllegalStateException("lignes déjà envoyées");
+        }
+        this.avantValues = this.connSGBD.getSgbd().sqlForInsertIdentiteExplicite();
+        return this;
+    }
+
+    /**
+     * ajoute une ligne. Les lignes sont envoyées au SGBD lorsque le lot est
+     * plein.
+     *
+     * @param valeurs une valeur par colonne, dans l'ordre des colonnes
+     */
+    public void ajoute(Object... valeurs) throws SQLException {
+        if (valeurs.length != this.colonnes.length) {
+            throw new IllegalArgumentException("attendu " + this.colonnes.length
+                    + " valeurs, reçu " + valeurs.length);
+        }
+        System.arraycopy(valeurs, 0, this.tampon, this.nbrEnAttente * this.colonnes.length, valeurs.length);
+        this.nbrEnAttente++;
+        if (this.nbrEnAttente == this.tailleLot) {
+            this.flush();
+        }
+    }
+
+    /**
+     * envoie les lignes en attente.
+     */
+    public void flush() throws SQLException {
+        if (this.nbrEnAttente == 0) {
+            return;
+        }
+        int nbrCol = this.colonnes.length;
+        if (this.lignesParInsert == 1) {
+            PreparedStatement st = this.insertPlein();
+            for (int i = 0; i < this.nbrEnAttente; i++) {
+                for (int j = 0; j < nbrCol; j++) {
+                    st.setObject(j + 1, this.tampon[i * nbrCol + j]);
+                }
+                st.addBatch();
+            }
+            st.executeBatch();
+            if (this.recepteurCles != null) {
+                int nbrCles = 0;
+                try (ResultSet cles = st.getGeneratedKeys()) {
+                    while (cles.next()) {
+                        this.recepteurCles.accept(cles.getInt(1));
+                        nbrCles++;
+                    }
+                }
+                if (nbrCles != this.nbrEnAttente) {
+                    throw new SQLException("clés générées : " + nbrCles
+                            + " reçues pour " + this.nbrEnAttente + " lignes insérées");
+                }
+            }
+        } else if (this.nbrEnAttente == this.lignesParInsert) {
+            this.executeMultiLignes(this.insertPlein(), this.nbrEnAttente);
+        } else {
+            // dernier lot incomplet
+            try (PreparedStatement st = this.con.prepareStatement(this.sqlInsert(this.nbrEnAttente))) {
+                this.executeMultiLignes(st, this.nbrEnAttente);
+            }
+        }
+        this.nbrEnvoyees = this.nbrEnvoyees + this.nbrEnAttente;
+        this.nbrEnAttente = 0;
+    }
+
+    private PreparedStatement insertPlein() throws SQLException {
+        if (this.insertPlein == null) {
+            if (this.recepteurCles != null) {
+                this.insertPlein = this.connSGBD.prepare(this.sqlInsert(1),
+                        Statement.RETURN_GENERATED_KEYS);
+            } else {
+                this.insertPlein = this.connSGBD.prepare(this.sqlInsert(this.lignesParInsert));
+            }
+        }
+        return this.insertPlein;
+    }
+
+    private void executeMultiLignes(PreparedStatement st, int nbrLignes) throws SQLException {
+        int nbrParam = nbrLignes * this.colonnes.length;
+        for (int i = 0; i < nbrParam; i++) {
+            st.setObject(i + 1, this.tampon[i]);
+        }
+        st.executeUpdate();
+    }
+
+    /**
+     * @return le nombre de lignes déjà envoyées au SGBD
+     */
+    public long getNbrEnvoyees() {
+        return nbrEnvoyees;
+    }
+
+    /**
+     * envoie les lignes restantes et libère les ressources.
+     */
+    @Override
+    public void close() throws SQLException {
+        try {
+            this.flush();
+        } finally {
+            if (this.insertPlein != null) {
+                this.insertPlein.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,338 @@
+/*
+    Copyright 2000-2014 Francois de Bertrand de Beuvron
+
+    This file is part of UtilsBeuvron.
+
+    UtilsBeuvron is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    UtilsBeuvron is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with UtilsBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.utils.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Un pool de {@link java.sql.Connection} de taille bornée.
+ * <pre>
+ * . au plus max connections ouvertes simultanément : au delà, un emprunt
+ *   attend qu'une connection soit rendue (au plus attenteMaxMs)
+ * . au moins min connections sont conservées, même inactives
+ * . une connection est validée ({@link Connection#isValid(int)}) à chaque
+ *   emprunt, et remplacée si elle n'est plus valide
+ * . une connection inactive depuis plus de inactiviteMaxMs est fermée
+ *   (tant que l'on reste au dessus de min)
+ * </pre>
+ * Les connections libres sont gérées en pile : la dernière rendue est la
+ * première réempruntée, ce qui laisse vieillir (puis fermer) les connections
+ * en trop.
+ * <p>
+ * On n'utilise en général pas directement cette classe, mais un
+ * {@link ConnectionSGBD} en mode pool (voir
+ * {@link ConnectionSGBD#pool(ConnectionSGBD.SGBDDef, String, int, String, String, String, int, int)}).
+ * </p>
+ *
+ * @author francois
+ */
+public class PoolConnections implements AutoCloseable {
+
+    /**
+     * crée une nouvelle connection physique.
+     */
+    @FunctionalInterface
+    public interface FabriqueConnection {
+
+        public Connection cree() throws SQLException;
+    }
+
+    /**
+     * une connection gérée par le pool.
+     */
+    public static class Entree {
+
+        private final Connection con;
+        private long derniereUtilisation;
+        /**
+         * statements préparés sur cette connection (créé au premier besoin).
+         */
+        CacheRequetes cacheRequetes;
+
+        private Entree(Connection con) {
+            this.con = con;
+            this.derniereUtilisation = System.nanoTime();
+        }
+
+        /**
+         * @return the con
+         */
+        public Connection getCon() {
+            return con;
+        }
+    }
+
+    private final FabriqueConnection fabrique;
+    private final int min;
+    private final int max;
+    private final long attenteMaxMs;
+    private final long inactiviteMaxMs;
+    private final int validationTimeoutSec;
+
+    private final Deque<Entree> libres = new ArrayDeque<>();
+    private int total = 0;
+    private boolean ferme = false;
+
+    private final ScheduledExecutorService nettoyeur;
+
+    /**
+     *
+     * @param fabrique pour créer les connections physiques
+     * @param min nombre de connections conservées même inactives
+     * @param max nombre maximum de connections ouvertes simultanément
+     * @param attenteMaxMs attente maximum d'un emprunt si les max connections
+     * sont déjà empruntées
+     * @param inactiviteMaxMs une connection libre au delà de min est fermée
+     * après ce délai d'inactivité
+     * @throws SQLException si les min connections initiales ne peuvent être
+     * créées
+     */
+    public PoolConnections(FabriqueConnection fabrique, int min, int max,
+            long attenteMaxMs, long inactiviteMaxMs) throws SQLException {
+        if (min < 0 || max < 1 || min > max) {
+            throw new IllegalArgumentException("taille de pool invalide : min = " + min + " ; max = " + max);
+        }
+        this.fabrique = fabrique;
+        this.min = min;
+        this.max = max;
+        this.attenteMaxMs = attenteMaxMs;
+        this.inactiviteMaxMs = inactiviteMaxMs;
+        this.validationTimeoutSec = 2;
+        try {
+            for (int i = 0; i < min; i++) {
+                this.libres.addLast(new Entree(fabrique.cree()));
+                this.total++;
+            }
+        } catch (SQLException | RuntimeException ex) {
+            // le pool n'existera pas : on ferme les connections déjà créées
+            for (Entree e : this.libres) {
+                try {
+                    e.con.close();
+                } catch (SQLException exFermeture) {
+                    ex.addSuppressed(exFermeture);
+                }
+            }
+            throw ex;
+        }
+        this.nettoyeur = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "PoolConnections-nettoyeur");
+            t.setDaemon(true);
+            return t;
+        });
+        long periode = Math.max(1000, inactiviteMaxMs / 2);
+        this.nettoyeur.scheduleWithFixedDelay(this::nettoie, periode, periode, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * emprunte une connection. Elle doit être rendue par
+     * {@link #rend(fr.insa.beuvron.utils.database.PoolConnections.Entree)}.
+     *
+     * @return une connection validée
+     * @throws SQLException si le délai d'attente est dépassé, si le pool est
+     * fermé, ou si la création d'une nouvelle connection échoue
+     */
+    public Entree emprunte() throws SQLException {
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.attenteMaxMs);
+        while (true) {
+            Entree res = null;
+            synchronized (this) {
+                while (!this.ferme && this.libres.isEmpty() && this.total >= this.max) {
+                    long reste = limite - System.nanoTime();
+                    if (reste <= 0) {
+                        throw new SQLException("pool de connections : aucune connection libre après "
+                                + this.attenteMaxMs + " ms (max = " + this.max + ")");
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, reste);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("attente d'une connection interrompue", ex);
+                    }
+                }
+                if (this.ferme) {
+                    throw new SQLException("pool de connections fermé");
+                }
+                if (!this.libres.isEmpty()) {
+                    res = this.libres.pollFirst();
+                } else {
+                    this.total++;
+                }
+            }
+            if (res == null) {
+                // pas de connection libre mais place dans le pool : on en crée une
+                try {
+                    return new Entree(this.fabrique.cree());
+                } catch (SQLException ex) {
+                    this.oublie();
+                    throw ex;
+                }
+            }
+            if (this.valide(res)) {
+                return res;
+            }
+            this.detruit(res);
+        }
+    }
+
+    /**
+     * rend une connection empruntée. Une éventuelle transaction en cours est
+     * annulée.
+     *
+     * @param entree la connection empruntée
+     */
+    public void rend(Entree entree) {
+        try {
+            if (!entree.con.getAutoCommit()) {
+                entree.con.rollback();
+                entree.con.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            this.detruit(entree);
+            return;
+        }
+        boolean fermer;
+        synchronized (this) {
+            fermer = this.ferme;
+            if (!fermer) {
+                entree.derniereUtilisation = System.nanoTime();
+                this.libres.addFirst(entree);
+                this.notifyAll();
+            }
+        }
+        if (fermer) {
+            this.detruit(entree);
+        }
+    }
+
+    private boolean valide(Entree entree) {
+        try {
+            return entree.con.isValid(this.validationTimeoutSec);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private void detruit(Entree entree) {
+        try {
+            entree.con.close();
+        } catch (SQLException ex) {
+            // la connection est de toute façon abandonnée
+        }
+        this.oublie();
+    }
+
+    private synchronized void oublie() {
+        this.total--;
+        this.notifyAll();
+    }
+
+    /**
+     * ferme les connections inactives en trop, puis complète jusqu'à min.
+     */
+    private void nettoie() {
+        List<Entree> aFermer = new ArrayList<>();
+        int aCreer;
+        synchronized (this) {
+            if (this.ferme) {
+                return;
+            }
+            long seuil = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(this.inactiviteMaxMs);
+            // les plus anciennes sont en fin de pile
+            Iterator<Entree> it = this.libres.descendingIterator();
+            while (it.hasNext() && this.total - aFermer.size() > this.min) {
+                Entree e = it.next();
+                if (e.derniereUtilisation - seuil < 0) {
+                    it.remove();
+                    aFermer.add(e);
+                } else {
+                    break;
+                }
+            }
+            aCreer = this.min - (this.total - aFermer.size());
+        }
+        for (Entree e : aFermer) {
+            this.detruit(e);
+        }
+        for (int i = 0; i < aCreer; i++) {
+            synchronized (this) {
+                if (this.ferme || this.total >= this.min) {
+                    return;
+                }
+                this.total++;
+            }
+            try {
+                this.rend(new Entree(this.fabrique.cree()));
+            } catch (SQLException ex) {
+                // SGBD indisponible : on réessaiera au prochain nettoyage
+                this.oublie();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return le nombre de connections ouvertes (libres ou empruntées)
+     */
+    public synchronized int getNbrConnections() {
+        return this.total;
+    }
+
+    /**
+     * @return le nombre de connections libres
+     */
+    public synchronized int getNbrLibres() {
+        return this.libres.size();
+    }
+
+    /**
+     * @return the max
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * ferme les connections libres ; les connections encore empruntées seront
+     * fermées lorsqu'elles seront rendues.
+     */
+    @Override
+    public void close() {
+        List<Entree> aFermer;
+        synchronized (this) {
+            this.ferme = true;
+            aFermer = new ArrayList<>(this.libres);
+            this.libres.clear();
+            this.notifyAll();
+        }
+        this.nettoyeur.shutdownNow();
+        for (Entree e : aFermer) {
+            this.detruit(e);
+        }
+    }
+
+}
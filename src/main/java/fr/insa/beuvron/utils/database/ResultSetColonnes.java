@@ -0,0 +1,419 @@
+/*
+    Copyright 2000-2011 Francois de Bertrand de Beuvron
+
+    This file is part of CoursBeuvron.
+
+    CoursBeuvron is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    CoursBeuvron is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.utils.database;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Le contenu d'un ResultSet stocké par colonnes.
+ * <p>
+ * Contrairement à {@link ResultSetUtils#fromResultSetToMatrix(java.sql.ResultSet)}
+ * qui crée un objet par case, chaque colonne est ici un tableau typé suivant
+ * le type sql de la colonne (voir {@link ResultSetMetaData#getColumnType(int)}) :
+ * <pre>
+ * . entiers (tinyint, smallint, integer) : int[]
+ * . bigint : long[]
+ * . réels (real, float, double) : double[]
+ * . chaînes (char, varchar ...) : codes int[] dans un dictionnaire des
+ *   valeurs distinctes (une valeur répétée n'est stockée qu'une fois)
+ * . autres : Object[]
+ * </pre>
+ * Les valeurs NULL sont repérées dans un bitmap par colonne.
+ * </p>
+ *
+ * @author francois
+ */
+public class ResultSetColonnes {
+
+    /**
+     * une colonne : nom, type sql et bitmap des NULL.
+     */
+    public static abstract class Colonne {
+
+        private final String nom;
+        private final int typeSQL;
+        private long[] nulls = new long[1];
+
+        protected Colonne(String nom, int typeSQL) {
+            this.nom = nom;
+            this.typeSQL = typeSQL;
+        }
+
+        /**
+         * lit la valeur de la colonne numCol de la ligne courante de rs.
+         */
+        protected abstract void lit(ResultSet rs, int numCol, int ligne) throws SQLException;
+
+        /**
+         * les tableaux doivent pouvoir contenir capacite lignes.
+         */
+        protected abstract void redimensionne(int capacite);
+
+        /**
+         * @return la valeur (objet) de la ligne, null pour NULL
+         */
+        public abstract Object get(int ligne);
+
+        protected void marqueNull(int ligne) {
+            if ((ligne >> 6) >= this.nulls.length) {
+                this.nulls = Arrays.copyOf(this.nulls, Math.max(this.nulls.length * 2, (ligne >> 6) + 1));
+            }
+            this.nulls[ligne >> 6] |= 1L << ligne;
+        }
+
+        public boolean isNull(int ligne) {
+            return (ligne >> 6) < this.nulls.length && (this.nulls[ligne >> 6] & (1L << ligne)) != 0;
+        }
+
+        /**
+         * @return the nom
+         */
+        public String getNom() {
+            return nom;
+        }
+
+        /**
+         * @return le type sql (voir {@link java.sql.Types})
+         */
+        public int getTypeSQL() {
+            return typeSQL;
+        }
+    }
+
+    public static class ColonneInt extends Colonne {
+
+        private int[] valeurs = new int[16];
+
+        public ColonneInt(String nom, int typeSQL) {
+            super(nom, typeSQL);
+        }
+
+        @Override
+        protected void lit(ResultSet rs, int numCol, int ligne) throws SQLException {
+            this.valeurs[ligne] = rs.getInt(numCol);
+            if (rs.wasNull()) {
+                this.marqueNull(ligne);
+            }
+        }
+
+        @Override
+        protected void redimensionne(int capacite) {
+            this.valeurs = Arrays.copyOf(this.valeurs, capacite);
+        }
+
+        public int getInt(int ligne) {
+            return this.valeurs[ligne];
+        }
+
+        /**
+         * @return le tableau des valeurs (à utiliser pour les parcours
+         * rapides ; sa taille peut dépasser le nombre de lignes)
+         */
+        public int[] getValeurs() {
+            return valeurs;
+        }
+
+        @Override
+        public Object get(int ligne) {
+            return this.isNull(ligne) ? null : this.valeurs[ligne];
+        }
+    }
+
+    public static class ColonneLong extends Colonne {
+
+        private long[] valeurs = new long[16];
+
+        public ColonneLong(String nom, int typeSQL) {
+            super(nom, typeSQL);
+        }
+
+        @Override
+        protected void lit(ResultSet rs, int numCol, int ligne) throws SQLException {
+            this.valeurs[ligne] = rs.getLong(numCol);
+            if (rs.wasNull()) {
+                this.marqueNull(ligne);
+            }
+        }
+
+        @Override
+        protected void redimensionne(int capacite) {
+            this.valeurs = Arrays.copyOf(this.valeurs, capacite);
+        }
+
+        public long getLong(int ligne) {
+            return this.valeurs[ligne];
+        }
+
+        public long[] getValeurs() {
+            return valeurs;
+        }
+
+        @Override
+        public Object get(int ligne) {
+            return this.isNull(ligne) ? null : this.valeurs[ligne];
+        }
+    }
+
+    public static class ColonneDouble extends Colonne {
+
+        private double[] valeurs = new double[16];
+
+        public ColonneDouble(String nom, int typeSQL) {
+            super(nom, typeSQL);
+        }
+
+        @Override
+        protected void lit(ResultSet rs, int numCol, int ligne) throws SQLException {
+            this.valeurs[ligne] = rs.getDouble(numCol);
+            if (rs.wasNull()) {
+                this.marqueNull(ligne);
+            }
+        }
+
+        @Override
+        protected void redimensionne(int capacite) {
+            this.valeurs = Arrays.copyOf(this.valeurs, capacite);
+        }
+
+        public double getDouble(int ligne) {
+            return this.valeurs[ligne];
+        }
+
+        public double[] getValeurs() {
+            return valeurs;
+        }
+
+        @Override
+        public Object get(int ligne) {
+            return this.isNull(ligne) ? null : this.valeurs[ligne];
+        }
+    }
+
+    /**
+     * colonne de chaînes codée par dictionnaire : chaque ligne contient
+     * l'indice de sa valeur dans la liste des valeurs distinctes.
+     */
+    public static class ColonneChaine extends Colonne {
+
+        private int[] codes = new int[16];
+        private final List<String> dictionnaire = new ArrayList<>();
+        private final Map<String, Integer> indices = new HashMap<>();
+
+        public ColonneChaine(String nom, int typeSQL) {
+            super(nom, typeSQL);
+        }
+
+        @Override
+        protected void lit(ResultSet rs, int numCol, int ligne) throws SQLException {
+            String val = rs.getString(numCol);
+            if (val == null) {
+                this.marqueNull(ligne);
+                this.codes[ligne] = -1;
+            } else {
+                Integer code = this.indices.get(val);
+                if (code == null) {
+                    code = this.dictionnaire.size();
+                    this.dictionnaire.add(val);
+                    this.indices.put(val, code);
+                }
+                this.codes[ligne] = code;
+            }
+        }
+
+        @Override
+        protected void redimensionne(int capacite) {
+            this.codes = Arrays.copyOf(this.codes, capacite);
+        }
+
+        /**
+         * @return le code de la valeur de la ligne (-1 pour NULL)
+         */
+        public int getCode(int ligne) {
+            return this.codes[ligne];
+        }
+
+        public String getString(int ligne) {
+            int code = this.codes[ligne];
+            return code < 0 ? null : this.dictionnaire.get(code);
+        }
+
+        public int[] getCodes() {
+            return codes;
+        }
+
+        /**
+         * @return les valeurs distinctes, indicées par leur code
+         */
+        public List<String> getDictionnaire() {
+            return dictionnaire;
+        }
+
+        @Override
+        public Object get(int ligne) {
+            return this.getString(ligne);
+        }
+    }
+
+    public static class ColonneObjet extends Colonne {
+
+        private Object[] valeurs = new Object[16];
+
+        public ColonneObjet(String nom, int typeSQL) {
+            super(nom, typeSQL);
+        }
+
+        @Override
+        protected void lit(ResultSet rs, int numCol, int ligne) throws SQLException {
+            this.valeurs[ligne] = rs.getObject(numCol);
+            if (this.valeurs[ligne] == null) {
+                this.marqueNull(ligne);
+            }
+        }
+
+        @Override
+        protected void redimensionne(int capacite) {
+            this.valeurs = Arrays.copyOf(this.valeurs, capacite);
+        }
+
+        @Override
+        public Object get(int ligne) {
+            return this.valeurs[ligne];
+        }
+    }
+
+    private final Colonne[] colonnes;
+    private int nbrLignes;
+
+    private ResultSetColonnes(Colonne[] colonnes) {
+        this.colonnes = colonnes;
+    }
+
+    private static Colonne creeColonne(String nom, int typeSQL) {
+        switch (typeSQL) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return new ColonneInt(nom, typeSQL);
+            case Types.BIGINT:
+                return new ColonneLong(nom, typeSQL);
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return new ColonneDouble(nom, typeSQL);
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+            case Types.CLOB:
+                return new ColonneChaine(nom, typeSQL);
+            default:
+                return new ColonneObjet(nom, typeSQL);
+        }
+    }
+
+    /**
+     * lit toutes les lignes (restantes) de rs.
+     *
+     * @param rs
+     * @return le contenu de rs par colonnes
+     * @throws java.sql.SQLException
+     */
+    public static ResultSetColonnes fromResultSet(ResultSet rs) throws SQLException {
+        ResultSetMetaData metadata = rs.getMetaData();
+        int nombreColonnes = metadata.getColumnCount();
+        Colonne[] cols = new Colonne[nombreColonnes];
+        for (int i = 1; i <= nombreColonnes; i++) {
+            cols[i - 1] = creeColonne(metadata.getColumnName(i), metadata.getColumnType(i));
+        }
+        ResultSetColonnes res = new ResultSetColonnes(cols);
+        int capacite = 16;
+        int ligne = 0;
+        while (rs.next()) {
+            if (ligne == capacite) {
+                capacite = capacite * 2;
+                for (Colonne c : cols) {
+                    c.redimensionne(capacite);
+                }
+            }
+            for (int i = 0; i < nombreColonnes; i++) {
+                cols[i].lit(rs, i + 1, ligne);
+            }
+            ligne++;
+        }
+        // on libère la place inutilisée
+        for (Colonne c : cols) {
+            c.redimensionne(ligne);
+        }
+        res.nbrLignes = ligne;
+        return res;
+    }
+
+    public int getNbrLignes() {
+        return nbrLignes;
+    }
+
+    public int getNbrColonnes() {
+        return this.colonnes.length;
+    }
+
+    /**
+     * @param col indice de la colonne (à partir de 0)
+     */
+    public Colonne getColonne(int col) {
+        return this.colonnes[col];
+    }
+
+    /**
+     * @return la colonne de ce nom (casse ignorée), ou null
+     */
+    public Colonne getColonne(String nom) {
+        for (Colonne c : this.colonnes) {
+            if (c.getNom().equalsIgnoreCase(nom)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    public String[] getNomsColonnes() {
+        String[] res = new String[this.colonnes.length];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = this.colonnes[i].getNom();
+        }
+        return res;
+    }
+
+    /**
+     * @return la valeur (objet) de la case, null pour NULL
+     */
+    public Object get(int ligne, int col) {
+        return this.colonnes[col].get(ligne);
+    }
+
+}
@@ -22,6 +22,7 @@ import fr.insa.beuvron.utils.StringUtil;
 import fr.insa.beuvron.utils.latex.LatexEscape;
 import fr.insa.beuvron.utils.latex.LatexMode;
 import fr.insa.beuvron.utils.matrice.MatriceToText;
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -158,6 +159,86 @@ public class ResultSetUtils {
         return MatriceToText.formatMat(collect, true);
     }
 
+    /**
+     * largeur maximum d'une colonne lorsqu'elle est déterminée par les
+     * metadata (les colonnes text ont souvent une taille "infinie").
+     */
+    private static final int LARGEUR_MAX_METADATA = 40;
+
+    /**
+     * écrit un 'ResultSet' au format texte (même format que
+     * {@link #formatResultSetAsTxt(java.sql.ResultSet)}) au fur et à mesure
+     * de la lecture des lignes : la mémoire utilisée ne dépend pas du nombre
+     * de lignes.
+     * <p>
+     * La largeur des colonnes est calculée sur les tailleEchantillon
+     * premières lignes (gardées en mémoire le temps de ce calcul), ou, si
+     * tailleEchantillon est nul, à partir des metadata du ResultSet. Une
+     * valeur plus large que sa colonne est écrite entièrement (elle décale
+     * la fin de sa ligne).
+     * </p>
+     *
+     * @param rs le ResultSet
+     * @param out destination (penser à utiliser un Writer bufferisé)
+     * @param tailleEchantillon nombre de lignes utilisées pour calculer la
+     * largeur des colonnes
+     * @return le nombre de lignes écrites (hors entête)
+     * @throws java.sql.SQLException
+     * @throws java.io.IOException
+     */
+    public static long formatResultSetAsTxt(ResultSet rs, Appendable out, int tailleEchantillon)
+            throws SQLException, IOException {
+        ResultSetMetaData metadata = rs.getMetaData();
+        int nombreColonnes = metadata.getColumnCount();
+        String[] entete = new String[nombreColonnes];
+        int[] largeurs = new int[nombreColonnes];
+        for (int i = 1; i <= nombreColonnes; i++) {
+            entete[i - 1] = metadata.getColumnName(i);
+            largeurs[i - 1] = entete[i - 1].length();
+            if (tailleEchantillon <= 0) {
+                largeurs[i - 1] = Math.max(largeurs[i - 1],
+                        Math.min(LARGEUR_MAX_METADATA, metadata.getColumnDisplaySize(i)));
+            }
+        }
+        List<String[]> echantillon = new ArrayList<>();
+        boolean encore = true;
+        while (echantillon.size() < tailleEchantillon && (encore = rs.next())) {
+            String[] ligne = litLigne(rs, new String[nombreColonnes]);
+            for (int j = 0; j < nombreColonnes; j++) {
+                largeurs[j] = Math.max(largeurs[j], ligne[j].length());
+            }
+            echantillon.add(ligne);
+        }
+        MatriceToText.appendHline(largeurs, out);
+        MatriceToText.appendLigne(entete, largeurs, out);
+        MatriceToText.appendHline(largeurs, out);
+        long nbr = 0;
+        for (String[] ligne : echantillon) {
+            MatriceToText.appendLigne(ligne, largeurs, out);
+            nbr++;
+        }
+        if (encore) {
+            String[] ligne = new String[nombreColonnes];
+            while (rs.next()) {
+                MatriceToText.appendLigne(litLigne(rs, ligne), largeurs, out);
+                nbr++;
+            }
+        }
+        MatriceToText.appendHline(largeurs, out);
+        return nbr;
+    }
+
+    /**
+     * remplit ligne avec la ligne courante de rs.
+     */
+    private static String[] litLigne(ResultSet rs, String[] ligne) throws SQLException {
+        for (int i = 1; i <= ligne.length; i++) {
+            Object oneCol = rs.getObject(i);
+            ligne[i - 1] = oneCol != null ? oneCol.toString() : "NULL";
+        }
+        return ligne;
+    }
+
     /** todoDoc. */
     public static class ResultSetAsArrays {
 
@@ -216,6 +297,18 @@ public class ResultSetUtils {
 
     }
 
+    /**
+     * retourne le contenu d'un ResultSet stocké par colonnes typées : moins
+     * de mémoire que {@link #fromResultSetToMatrix(java.sql.ResultSet)} et
+     * des parcours de colonnes plus rapides. Voir {@link ResultSetColonnes}.
+     * @param rs
+     * @return 
+     * @throws java.sql.SQLException 
+     */
+    public static ResultSetColonnes fromResultSetToColonnes(ResultSet rs) throws SQLException {
+        return ResultSetColonnes.fromResultSet(rs);
+    }
+
     /**
      * retourne le contenu d'une colonne comme un tableau d'objets
      * @param rs
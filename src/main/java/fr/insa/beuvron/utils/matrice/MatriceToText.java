@@ -19,6 +19,7 @@
 package fr.insa.beuvron.utils.matrice;
 
 import fr.insa.beuvron.utils.StringUtil;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -93,6 +94,44 @@ public class MatriceToText {
         collect.append("\n");
     }
 
+    /**
+     * écrit une ligne horizontale de séparation (même format que
+     * {@link #formatMat(java.lang.String[][], boolean)}).
+     */
+    public static void appendHline(int[] largeurs, Appendable out) throws IOException {
+        out.append('+');
+        for (int i = 0; i < largeurs.length; i++) {
+            appendRepete(out, '-', largeurs[i] + 2);
+            out.append('+');
+        }
+        out.append('\n');
+    }
+
+    /**
+     * écrit une ligne de la matrice (même format que
+     * {@link #formatMat(java.lang.String[][], boolean)}). Une valeur plus
+     * large que sa colonne est écrite entièrement (elle décale alors la fin
+     * de la ligne).
+     */
+    public static void appendLigne(String[] ligne, int[] largeurs, Appendable out) throws IOException {
+        out.append("| ");
+        for (int j = 0; j < ligne.length; j++) {
+            String elem = ligne[j] == null ? "null" : ligne[j];
+            out.append(elem);
+            if (j < largeurs.length) {
+                appendRepete(out, ' ', largeurs[j] - elem.length());
+            }
+            out.append(" | ");
+        }
+        out.append('\n');
+    }
+
+    private static void appendRepete(Appendable out, char c, int nbr) throws IOException {
+        for (int i = 0; i < nbr; i++) {
+            out.append(c);
+        }
+    }
+
     public static String formatMat(List<List<String>> mat, boolean headers) {
         return formatMat(fromListOfListToArrays(mat), headers);
     }
@@ -0,0 +1,74 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * bases h2 en mémoire pour les tests : une base neuve par appel, supprimée à
+ * la fermeture de la {@link ConnectionSGBD}.
+ *
+ * @author francois
+ */
+final class BaseDeTest {
+
+    private static final AtomicInteger NUMERO = new AtomicInteger();
+
+    private BaseDeTest() {
+    }
+
+    /**
+     * @return une base avec le schéma et l'administrateur, en mode pool
+     * (une connection gardée ouverte : la base vit jusqu'à la fermeture)
+     */
+    static ConnectionSGBD nouvelle(int maxConnections) throws SQLException {
+        ConnectionSGBD res = ConnectionSGBD.pool(ConnectionSGBD.SGBDConnus.H2InMemory,
+                "", 0, "test" + NUMERO.incrementAndGet(), "", "", 1, maxConnections, 5000, 60000);
+        GestionBdD.razBdD(res);
+        return res;
+    }
+
+    /**
+     * @return le contenu de la table apprecie, couples (u1 &lt;&lt; 32 | u2)
+     * triés
+     */
+    static long[] apprecie(ConnectionSGBD connSGBD) throws SQLException {
+        long[] res = new long[16];
+        int n = 0;
+        try (ConnectionSGBD.Emprunt emp = connSGBD.emprunte();
+                Statement st = emp.getCon().createStatement()) {
+            ResultSet rs = st.executeQuery("select u1,u2 from apprecie");
+            while (rs.next()) {
+                if (n == res.length) {
+                    res = Arrays.copyOf(res, n * 2);
+                }
+                res[n++] = ((long) rs.getInt(1) << 32) | rs.getInt(2);
+            }
+        }
+        res = Arrays.copyOf(res, n);
+        Arrays.sort(res);
+        return res;
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * opérations ensemblistes comparées à celles de {@link BitSet}, sur des
+ * ensembles dont les groupes sont vides, creux (conteneur tableau), denses
+ * (conteneur bitmap) ou autour du seuil {@link BitmapCompresse#MAX_TABLEAU}.
+ *
+ * @author francois
+ */
+public class BitmapCompresseTest {
+
+    private static final int NBR_GROUPES = 4;
+
+    private static BitSet aleatoire(Random r) {
+        BitSet res = new BitSet();
+        for (int g = 0; g < NBR_GROUPES; g++) {
+            int nbr;
+            switch (r.nextInt(4)) {
+                case 0:
+                    nbr = 0;
+                    break;
+                case 1:
+                    nbr = 1 + r.nextInt(200);
+                    break;
+                case 2:
+                    nbr = BitmapCompresse.MAX_TABLEAU - 50 + r.nextInt(100);
+                    break;
+                default:
+                    nbr = 20000 + r.nextInt(40000);
+                    break;
+            }
+            int mis = 0;
+            while (mis < nbr) {
+                int v = (g << 16) + r.nextInt(65536);
+                if (!res.get(v)) {
+                    res.set(v);
+                    mis++;
+                }
+            }
+        }
+        return res;
+    }
+
+    private static BitmapCompresse bitmap(BitSet b) {
+        return BitmapCompresse.depuis(b.stream().toArray());
+    }
+
+    private static void verifie(BitSet attendu, BitmapCompresse b) {
+        assertArrayEquals(attendu.stream().toArray(), b.versTableau());
+        assertEquals(attendu.cardinality(), b.cardinalite());
+        assertEquals(attendu.isEmpty(), b.isVide());
+    }
+
+    @Test
+    public void construction() {
+        Random r = new Random(1);
+        for (int n = 0; n < 20; n++) {
+            BitSet ref = aleatoire(r);
+            int[] ids = ref.stream().toArray();
+            // désordre et doublons
+            int[] melange = Arrays.copyOf(ids, ids.length + ids.length / 3);
+            for (int i = ids.length; i < melange.length; i++) {
+                melange[i] = ids[r.nextInt(ids.length)];
+            }
+            for (int i = melange.length - 1; i > 0; i--) {
+                int j = r.nextInt(i + 1);
+                int t = melange[i];
+                melange[i] = melange[j];
+                melange[j] = t;
+            }
+            BitmapCompresse b = BitmapCompresse.depuis(melange);
+            verifie(ref, b);
+            assertEquals(b, BitmapCompresse.depuisTrie(ids, 0, ids.length));
+            assertEquals(b.hashCode(), BitmapCompresse.depuisTrie(ids, 0, ids.length).hashCode());
+            for (int k = 0; k < 1000; k++) {
+                int v = r.nextInt(NBR_GROUPES << 16);
+                assertEquals(ref.get(v), b.contient(v));
+            }
+            assertFalse(b.contient(-1));
+        }
+    }
+
+    @Test
+    public void sousTableau() {
+        int[] trie = {1, 5, 70000, 70001, 200000};
+        verifie(new BitSet(), BitmapCompresse.depuisTrie(trie, 2, 2));
+        BitmapCompresse b = BitmapCompresse.depuisTrie(trie, 1, 4);
+        assertArrayEquals(new int[]{5, 70000, 70001}, b.versTableau());
+    }
+
+    @Test
+    public void operations() {
+        Random r = new Random(2);
+        for (int n = 0; n < 100; n++) {
+            BitSet a = aleatoire(r);
+            BitSet b = aleatoire(r);
+            BitmapCompresse ba = bitmap(a);
+            BitmapCompresse bb = bitmap(b);
+
+            BitSet et = (BitSet) a.clone();
+            et.and(b);
+            verifie(et, ba.et(bb));
+            assertEquals(et.cardinality(), ba.cardinaliteEt(bb));
+            assertEquals(et.cardinality(), bb.cardinaliteEt(ba));
+
+            BitSet ou = (BitSet) a.clone();
+            ou.or(b);
+            verifie(ou, ba.ou(bb));
+
+            BitSet sauf = (BitSet) a.clone();
+            sauf.andNot(b);
+            verifie(sauf, ba.sauf(bb));
+            // a \ (a \ b) = a ∩ b, à partir d'un résultat calculé
+            verifie(et, ba.sauf(ba.sauf(bb)));
+        }
+    }
+
+    @Test
+    public void vide() {
+        BitmapCompresse b = BitmapCompresse.depuis(3, 70000, 140000);
+        assertTrue(BitmapCompresse.VIDE.isVide());
+        assertTrue(b.et(BitmapCompresse.VIDE).isVide());
+        assertTrue(b.sauf(b).isVide());
+        assertEquals(0, b.cardinaliteEt(BitmapCompresse.VIDE));
+        assertEquals(b, b.ou(BitmapCompresse.VIDE));
+        assertEquals(b, BitmapCompresse.VIDE.ou(b));
+        assertEquals(BitmapCompresse.VIDE, BitmapCompresse.depuis());
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * fusion des événements d'un même couple, {@link EcrituresDifferees#flush()},
+ * fermeture, et abandon des événements invalides sans bloquer les suivants.
+ *
+ * @author francois
+ */
+public class EcrituresDiffereesTest {
+
+    private ConnectionSGBD connSGBD;
+    private int[] ids;
+    private EcrituresDifferees differees;
+
+    @BeforeEach
+    public void initialise() throws SQLException {
+        this.connSGBD = BaseDeTest.nouvelle(4);
+        this.ids = GenerateurDonnees.creeUtilisateurs(this.connSGBD, "u", 10, 100, (etape, fait, total) -> {
+        });
+        this.differees = EcrituresDifferees.get(this.connSGBD);
+    }
+
+    @AfterEach
+    public void ferme() throws SQLException {
+        this.connSGBD.close();
+    }
+
+    private long couple(int i, int j) {
+        return ((long) this.ids[i] << 32) | this.ids[j];
+    }
+
+    private long[] couples(long... cs) {
+        long[] res = cs.clone();
+        Arrays.sort(res);
+        return res;
+    }
+
+    @Test
+    public void fusion() throws SQLException {
+        try (ConnectionSGBD.Emprunt emp = this.connSGBD.emprunte()) {
+            // l'écrivain prend le premier lot, puis attend le verrou pour
+            // l'écrire : les événements suivants restent dans la file
+            Lock verrou = Apprecie.verrouChargement(emp);
+            verrou.lock();
+            try {
+                this.differees.aime(this.ids[2], this.ids[3]);
+                while (this.differees.getNbrEnAttente() > 0) {
+                    Thread.onSpinWait();
+                }
+                for (int i = 0; i < 50; i++) {
+                    this.differees.aime(this.ids[0], this.ids[1]);
+                    this.differees.naimePlus(this.ids[0], this.ids[1]);
+                    this.differees.aime(this.ids[0], this.ids[4]);
+                    this.differees.naimePlus(this.ids[0], this.ids[4]);
+                }
+                this.differees.aime(this.ids[0], this.ids[1]);
+                this.differees.aime(this.ids[1], this.ids[0]);
+                assertEquals(3, this.differees.getNbrEnAttente());
+            } finally {
+                verrou.unlock();
+            }
+        }
+        this.differees.flush();
+        assertEquals(0, this.differees.getNbrEnAttente());
+        assertArrayEquals(this.couples(this.couple(2, 3), this.couple(0, 1), this.couple(1, 0)),
+                BaseDeTest.apprecie(this.connSGBD));
+        // les deux sens dans le même lot : l'amitié est créée
+        assertArrayEquals(new int[]{this.ids[1]}, Apprecie.amis(this.connSGBD, this.ids[0]));
+        assertEquals(2, this.differees.getNbrLots());
+    }
+
+    @Test
+    public void flushEtFermeture() throws SQLException {
+        // rien en attente : retour immédiat
+        this.differees.flush();
+        this.differees.aime(this.ids[0], this.ids[1]);
+        this.differees.flush();
+        assertArrayEquals(new long[]{this.couple(0, 1)}, BaseDeTest.apprecie(this.connSGBD));
+        this.differees.naimePlus(this.ids[0], this.ids[1]);
+        // déjà absent : aucun effet
+        this.differees.naimePlus(this.ids[0], this.ids[2]);
+        this.differees.flush();
+        assertEquals(0, BaseDeTest.apprecie(this.connSGBD).length);
+
+        // la fermeture écrit ce qui est en attente
+        this.differees.aime(this.ids[3], this.ids[4]);
+        this.differees.close();
+        assertArrayEquals(new long[]{this.couple(3, 4)}, BaseDeTest.apprecie(this.connSGBD));
+        assertThrows(SQLException.class, () -> this.differees.aime(this.ids[4], this.ids[3]));
+        assertThrows(IllegalArgumentException.class, () -> this.differees.aime(this.ids[1], this.ids[1]));
+    }
+
+    @Test
+    public void evenementsRejetes() throws SQLException {
+        int inconnu = 999999;
+        this.differees.aime(this.ids[0], inconnu);
+        this.differees.aime(inconnu, this.ids[0]);
+        this.differees.aime(this.ids[1], this.ids[0]);
+        SQLException ex = assertThrows(SQLException.class, () -> this.differees.flush());
+        assertTrue(ex.getMessage().contains(Integer.toString(inconnu)));
+        assertEquals(2, this.differees.getNbrRejetes());
+        assertArrayEquals(new long[]{this.couple(1, 0)}, BaseDeTest.apprecie(this.connSGBD));
+
+        // les événements suivants sont écrits normalement
+        this.differees.aime(this.ids[2], this.ids[0]);
+        this.differees.flush();
+        assertEquals(2, this.differees.getNbrRejetes());
+        assertArrayEquals(this.couples(this.couple(1, 0), this.couple(2, 0)), BaseDeTest.apprecie(this.connSGBD));
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * écriture puis relecture d'un instantané, refus des fichiers tronqués ou
+ * corrompus, et démarrage de l'index depuis l'instantané, le journal et la
+ * base.
+ *
+ * @author francois
+ */
+public class InstantaneGrapheTest {
+
+    @TempDir
+    Path dossier;
+
+    /**
+     * @param couples {u1, u2} distincts
+     */
+    private static GrapheCSR graphe(int taille, int[]... couples) {
+        int[][] tries = couples.clone();
+        Arrays.sort(tries, (a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(a[1], b[1]));
+        int[] debutsS = new int[taille + 1];
+        int[] sortants = new int[tries.length];
+        int[] debutsE = new int[taille + 1];
+        int[] entrants = new int[tries.length];
+        for (int i = 0; i < tries.length; i++) {
+            sortants[i] = tries[i][1];
+            debutsS[tries[i][0] + 1]++;
+            debutsE[tries[i][1] + 1]++;
+        }
+        for (int u = 0; u < taille; u++) {
+            debutsS[u + 1] += debutsS[u];
+            debutsE[u + 1] += debutsE[u];
+        }
+        // parcourus dans l'ordre des u1 : les entrants sont triés
+        int[] pos = Arrays.copyOf(debutsE, taille);
+        for (int[] c : tries) {
+            entrants[pos[c[1]]++] = c[0];
+        }
+        return new GrapheCSR(debutsS, sortants, debutsE, entrants);
+    }
+
+    @Test
+    public void allerRetour() throws IOException {
+        // des écarts d'ids de 1 à 3 octets en varint, et des utilisateurs sans couple
+        GrapheCSR g = graphe(200001, new int[]{0, 1}, new int[]{0, 200}, new int[]{0, 70000},
+                new int[]{0, 200000}, new int[]{5, 0}, new int[]{200000, 5});
+        Path fichier = this.dossier.resolve("graphe.inst");
+        long taille = InstantaneGraphe.ecrit(g, 42, fichier);
+        assertEquals(Files.size(fichier), taille);
+        assertFalse(Files.exists(this.dossier.resolve("graphe.inst.tmp")));
+        InstantaneGraphe lu = InstantaneGraphe.lit(fichier);
+        assertEquals(42, lu.getHauteMarque());
+        assertEquals(g.getTaille(), lu.getTaille());
+        assertArrayEquals(g.getDebutsSortants(), lu.getDebutsSortants());
+        assertArrayEquals(g.getSortants(), lu.getSortants());
+
+        // graphe vide, fichier existant remplacé
+        InstantaneGraphe.ecrit(graphe(0), -1, fichier);
+        lu = InstantaneGraphe.lit(fichier);
+        assertEquals(0, lu.getTaille());
+        assertEquals(-1, lu.getHauteMarque());
+        assertEquals(0, lu.getSortants().length);
+    }
+
+    @Test
+    public void fichiersIncorrects() throws IOException {
+        Path fichier = this.dossier.resolve("graphe.inst");
+        InstantaneGraphe.ecrit(graphe(300, new int[]{1, 2}, new int[]{1, 250}, new int[]{2, 1}), 0, fichier);
+        byte[] bon = Files.readAllBytes(fichier);
+        Path mauvais = this.dossier.resolve("mauvais.inst");
+
+        List<byte[]> variantes = new ArrayList<>();
+        // une donnée modifiée : CRC faux
+        byte[] donnee = bon.clone();
+        donnee[InstantaneGraphe.TAILLE_ENTETE + 3] ^= 0x10;
+        variantes.add(donnee);
+        // marque modifiée
+        byte[] marque = bon.clone();
+        marque[0] ^= 0x01;
+        variantes.add(marque);
+        // tronqué dans les données, ou dans l'en-tête
+        variantes.add(Arrays.copyOf(bon, bon.length - 1));
+        variantes.add(Arrays.copyOf(bon, 10));
+        // rallongé
+        variantes.add(Arrays.copyOf(bon, bon.length + 1));
+        for (byte[] contenu : variantes) {
+            Files.write(mauvais, contenu);
+            assertThrows(IOException.class, () -> InstantaneGraphe.lit(mauvais));
+        }
+    }
+
+    private static void verifieIndex(ConnectionSGBD connSGBD, GrapheApprecie g) throws SQLException {
+        long[] table = BaseDeTest.apprecie(connSGBD);
+        assertEquals(table.length, g.getNbrArcs());
+        for (long c : table) {
+            assertTrue(g.apprecie((int) (c >>> 32), (int) c));
+        }
+    }
+
+    @Test
+    public void demarre() throws IOException, SQLException {
+        try (ConnectionSGBD connSGBD = BaseDeTest.nouvelle(4)) {
+            int[] ids = GenerateurDonnees.creeUtilisateurs(connSGBD, "u", 10, 100, (etape, fait, total) -> {
+            });
+            List<Utilisateur> us = Utilisateur.parIds(connSGBD, ids);
+            us.get(0).saveApprecies(connSGBD, List.of(us.get(1), us.get(2)));
+            JournalApprecie.ouvre(connSGBD, this.dossier.resolve("journal"));
+            Path fichier = this.dossier.resolve("graphe.inst");
+
+            // pas d'instantané : table relue, instantané écrit
+            InstantaneGraphe.Chargement ch = InstantaneGraphe.demarre(connSGBD, fichier);
+            assertFalse(ch.isDepuisInstantane());
+            assertTrue(Files.exists(fichier));
+            verifieIndex(connSGBD, ch.getGraphe());
+
+            // redémarrage : l'instantané, puis les événements journalisés depuis
+            connSGBD.setExtension(GrapheApprecie.class, null);
+            us.get(1).saveApprecies(connSGBD, List.of(us.get(0)));
+            us.get(0).saveApprecies(connSGBD, List.of(us.get(3)));
+            ch = InstantaneGraphe.demarre(connSGBD, fichier);
+            assertTrue(ch.isDepuisInstantane());
+            // (1,0) ; (0,1) et (0,2) supprimés, (0,3) ajouté
+            assertEquals(4, ch.getNbrEvenementsRejoues());
+            assertEquals(0, ch.getNbrUtilisateursRelus());
+            verifieIndex(connSGBD, ch.getGraphe());
+            assertTrue(GrapheApprecie.get(connSGBD) == ch.getGraphe());
+
+            // sans journal : rattrapage par les compteurs de la table
+            JournalApprecie.ferme(connSGBD);
+            InstantaneGraphe.ecrit(connSGBD, fichier);
+            connSGBD.setExtension(GrapheApprecie.class, null);
+            us.get(2).saveApprecies(connSGBD, List.of(us.get(0), us.get(1)));
+            ch = InstantaneGraphe.demarre(connSGBD, fichier);
+            assertTrue(ch.isDepuisInstantane());
+            assertEquals(1, ch.getNbrUtilisateursRelus());
+            verifieIndex(connSGBD, ch.getGraphe());
+
+            // instantané corrompu : table relue, instantané réécrit
+            byte[] contenu = Files.readAllBytes(fichier);
+            contenu[contenu.length - 1] ^= 0x01;
+            Files.write(fichier, contenu);
+            connSGBD.setExtension(GrapheApprecie.class, null);
+            ch = InstantaneGraphe.demarre(connSGBD, fichier);
+            assertFalse(ch.isDepuisInstantane());
+            verifieIndex(connSGBD, ch.getGraphe());
+            assertEquals(ch.getGraphe().getNbrArcs(), InstantaneGraphe.lit(fichier).getSortants().length);
+        }
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * écriture puis relecture du journal (événements, état final, index
+ * mémoire, table), fin de journal tronquée ou corrompue, et refus de
+ * rejouer un journal en retard sur la table ou incomplet.
+ *
+ * @author francois
+ */
+public class JournalApprecieTest {
+
+    @TempDir
+    Path dossier;
+
+    private ConnectionSGBD connSGBD;
+    private int[] ids;
+    private List<Utilisateur> us;
+
+    @BeforeEach
+    public void initialise() throws SQLException {
+        this.connSGBD = BaseDeTest.nouvelle(4);
+        this.ids = GenerateurDonnees.creeUtilisateurs(this.connSGBD, "u", 10, 100, (etape, fait, total) -> {
+        });
+        this.us = Utilisateur.parIds(this.connSGBD, this.ids);
+    }
+
+    @AfterEach
+    public void ferme() throws SQLException {
+        this.connSGBD.close();
+    }
+
+    /**
+     * le i-ème utilisateur apprécie exactement les js-ièmes.
+     */
+    private void aime(int i, int... js) throws SQLException {
+        List<Utilisateur> apprecies = new ArrayList<>();
+        for (int j : js) {
+            apprecies.add(this.us.get(j));
+        }
+        this.us.get(i).saveApprecies(this.connSGBD, apprecies);
+    }
+
+    private long couple(int i, int j) {
+        return ((long) this.ids[i] << 32) | this.ids[j];
+    }
+
+    /**
+     * @return les événements {u1, u2, op} depuis la séquence depuis
+     */
+    private List<int[]> evenements(long depuis) throws IOException {
+        List<int[]> res = new ArrayList<>();
+        JournalApprecie.lit(this.dossier, depuis, (sequence, date, u1, u2, op) -> res.add(new int[]{u1, u2, op}));
+        return res;
+    }
+
+    private Path segment() throws IOException {
+        try (Stream<Path> fichiers = Files.list(this.dossier)) {
+            return fichiers.filter(f -> f.getFileName().toString().endsWith(".journal")).findFirst().get();
+        }
+    }
+
+    @Test
+    public void allerRetour() throws IOException, SQLException {
+        // avant l'ouverture : dans l'amorce
+        this.aime(0, 1, 2);
+        JournalApprecie journal = JournalApprecie.ouvre(this.connSGBD, this.dossier);
+        assertEquals(3, journal.getProchaineSequence());
+        this.aime(1, 0, 3);
+        // supprime (0,1), ajoute (0,4)
+        this.aime(0, 2, 4);
+
+        List<int[]> evs = this.evenements(0);
+        assertEquals(journal.getProchaineSequence(), evs.size());
+        assertEquals(JournalApprecie.EFFACEMENT, evs.get(0)[2]);
+        assertArrayEquals(new int[]{this.ids[0], this.ids[1], JournalApprecie.SUPPRESSION}, evs.get(evs.size() - 2));
+        assertArrayEquals(new int[]{this.ids[0], this.ids[4], JournalApprecie.AJOUT}, evs.get(evs.size() - 1));
+        assertEquals(2, this.evenements(evs.size() - 2).size());
+
+        long[] table = BaseDeTest.apprecie(this.connSGBD);
+        assertArrayEquals(table, JournalApprecie.etatFinal(this.dossier));
+        GrapheApprecie graphe = JournalApprecie.rejoueEnMemoire(this.connSGBD, this.dossier);
+        assertEquals(table.length, graphe.getNbrArcs());
+        for (long c : table) {
+            assertTrue(Arrays.binarySearch(graphe.apprecie((int) (c >>> 32)), (int) c) >= 0);
+        }
+
+        // rouvert : pas de nouvelle amorce, les événements suivants sont ajoutés
+        long nbr = journal.getProchaineSequence();
+        JournalApprecie.ferme(this.connSGBD);
+        assertNull(JournalApprecie.get(this.connSGBD));
+        journal = JournalApprecie.ouvre(this.connSGBD, this.dossier);
+        assertEquals(nbr, journal.getProchaineSequence());
+        this.aime(2, 0);
+        assertEquals(nbr + 1, journal.getProchaineSequence());
+        assertArrayEquals(BaseDeTest.apprecie(this.connSGBD), JournalApprecie.etatFinal(this.dossier));
+    }
+
+    @Test
+    public void finTronquee() throws IOException, SQLException {
+        // table vide : l'amorce n'est qu'un effacement
+        JournalApprecie.ouvre(this.connSGBD, this.dossier);
+        this.aime(0, 1, 2);
+        this.aime(1, 0);
+        JournalApprecie.ferme(this.connSGBD);
+        assertEquals(4, this.evenements(0).size());
+
+        // arrêt au milieu du quatrième enregistrement
+        try (FileChannel canal = FileChannel.open(this.segment(), StandardOpenOption.WRITE)) {
+            canal.truncate(3L * JournalApprecie.TAILLE_ENREGISTREMENT + 10);
+        }
+        assertEquals(3, JournalApprecie.lit(this.dossier, 0, (sequence, date, u1, u2, op) -> {
+        }));
+        long[] attendu = {this.couple(0, 1), this.couple(0, 2)};
+        Arrays.sort(attendu);
+        assertArrayEquals(attendu, JournalApprecie.etatFinal(this.dossier));
+
+        // rouvert : reprend après le dernier enregistrement complet
+        JournalApprecie journal = JournalApprecie.ouvre(this.connSGBD, this.dossier);
+        assertEquals(3, journal.getProchaineSequence());
+        this.aime(2, 0);
+        List<int[]> evs = this.evenements(3);
+        assertEquals(1, evs.size());
+        assertArrayEquals(new int[]{this.ids[2], this.ids[0], JournalApprecie.AJOUT}, evs.get(0));
+    }
+
+    @Test
+    public void enregistrementCorrompu() throws IOException, SQLException {
+        assertEquals(0, JournalApprecie.lit(this.dossier, 0, (sequence, date, u1, u2, op) -> {
+        }));
+        assertEquals(0, JournalApprecie.etatFinal(this.dossier).length);
+
+        JournalApprecie.ouvre(this.connSGBD, this.dossier);
+        this.aime(0, 1, 2, 3);
+        JournalApprecie.ferme(this.connSGBD);
+        assertEquals(4, this.evenements(0).size());
+
+        // u1 du troisième enregistrement modifié : son contrôle est faux, le
+        // journal s'arrête avant
+        try (FileChannel canal = FileChannel.open(this.segment(), StandardOpenOption.WRITE)) {
+            canal.write(ByteBuffer.wrap(new byte[]{0x7F}), 2L * JournalApprecie.TAILLE_ENREGISTREMENT + 8);
+        }
+        assertEquals(2, this.evenements(0).size());
+        assertArrayEquals(new long[]{this.couple(0, 1)}, JournalApprecie.etatFinal(this.dossier));
+    }
+
+    @Test
+    public void rejoueDansBase() throws IOException, SQLException {
+        this.aime(0, 1);
+        JournalApprecie.ouvre(this.connSGBD, this.dossier);
+        this.aime(1, 0, 2);
+        long[] journalise = BaseDeTest.apprecie(this.connSGBD);
+
+        // des couples perdus par la table sont remis
+        try (ConnectionSGBD.Emprunt emp = this.connSGBD.emprunte();
+                Statement st = emp.getCon().createStatement()) {
+            st.executeUpdate("delete from apprecie where u1 = " + this.ids[1]);
+        }
+        assertEquals(3, JournalApprecie.rejoueDansBase(this.connSGBD, this.dossier));
+        assertArrayEquals(journalise, BaseDeTest.apprecie(this.connSGBD));
+        assertArrayEquals(new int[]{this.ids[1]}, Apprecie.amis(this.connSGBD, this.ids[0]));
+
+        // un couple absent du journal : refus, la table ne change pas
+        JournalApprecie.ferme(this.connSGBD);
+        this.aime(2, 0);
+        long[] avant = BaseDeTest.apprecie(this.connSGBD);
+        assertThrows(SQLException.class, () -> JournalApprecie.rejoueDansBase(this.connSGBD, this.dossier));
+        assertArrayEquals(avant, BaseDeTest.apprecie(this.connSGBD));
+    }
+
+    @Test
+    public void erreurApresCommit() throws IOException, SQLException {
+        JournalApprecie journal = JournalApprecie.ouvre(this.connSGBD, this.dossier);
+        // fermé mais encore associé à la base : l'écriture échoue après le commit
+        journal.close();
+        this.aime(0, 1);
+        assertArrayEquals(new long[]{this.couple(0, 1)}, BaseDeTest.apprecie(this.connSGBD));
+        assertNotNull(journal.getErreur());
+        assertThrows(IOException.class, () -> JournalApprecie.rejoueDansBase(this.connSGBD, this.dossier));
+        assertThrows(IOException.class, () -> JournalApprecie.rejoueEnMemoire(this.connSGBD, this.dossier));
+
+        // rouvert : réamorcé depuis la table
+        journal = JournalApprecie.ouvre(this.connSGBD, this.dossier);
+        assertNull(journal.getErreur());
+        assertArrayEquals(BaseDeTest.apprecie(this.connSGBD), JournalApprecie.etatFinal(this.dossier));
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+Copyright 2000- Francois de Bertrand de Beuvron
+
+This file is part of CoursBeuvron.
+
+CoursBeuvron is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+CoursBeuvron is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with CoursBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.cours.m3.projets.likes.model;
+
+import fr.insa.beuvron.utils.database.ConnectionSGBD;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * hachage puis vérification, anciens mots de passe en clair, valeurs
+ * stockées invalides, et empreinte rapide (utilisée sans calcul, oubliée
+ * quand la valeur stockée change).
+ *
+ * @author francois
+ */
+public class MoteurLoginTest {
+
+    private MoteurLogin moteur;
+
+    @BeforeEach
+    public void initialise() {
+        this.moteur = new MoteurLogin(2);
+    }
+
+    @AfterEach
+    public void ferme() {
+        this.moteur.close();
+    }
+
+    @Test
+    public void hacheEtVerifie() throws SQLException {
+        String stocke = this.moteur.hache("secret");
+        assertTrue(stocke.startsWith(MoteurLogin.PREFIXE + MoteurLogin.ITERATIONS + "$"));
+        assertFalse(stocke.contains("secret"));
+        // sel aléatoire : deux hachages du même mot de passe diffèrent
+        assertNotEquals(stocke, this.moteur.hache("secret"));
+        assertFalse(this.moteur.aRehacher(stocke));
+
+        assertTrue(this.moteur.verifie("toto", "secret", stocke));
+        assertFalse(this.moteur.verifie("titi", "autre", stocke));
+        assertFalse(this.moteur.verifie("toto", "secret", null));
+        this.moteur.verifieFactice("secret");
+    }
+
+    @Test
+    public void ancienEnClair() throws SQLException {
+        assertTrue(this.moteur.verifie("toto", "pass", "pass"));
+        assertFalse(this.moteur.verifie("toto", "Pass", "pass"));
+        assertTrue(this.moteur.aRehacher("pass"));
+        // moins d'itérations que la valeur actuelle : vérifiable, mais à rehacher
+        String faible = this.moteur.hache("pass").replace(
+                MoteurLogin.PREFIXE + MoteurLogin.ITERATIONS, MoteurLogin.PREFIXE + "1000");
+        assertTrue(this.moteur.aRehacher(faible));
+    }
+
+    @Test
+    public void valeursInvalides() throws SQLException {
+        String[] invalides = {
+            MoteurLogin.PREFIXE + "abc",
+            MoteurLogin.PREFIXE + "x$AAAA$AAAA",
+            MoteurLogin.PREFIXE + "1000$pas du base64$AAAA",
+            MoteurLogin.PREFIXE + "1000$AAAA$AAAA$AAAA"};
+        for (String stocke : invalides) {
+            assertFalse(this.moteur.verifie("toto", "pass", stocke));
+            assertTrue(this.moteur.aRehacher(stocke));
+        }
+    }
+
+    @Test
+    public void empreinteRapide() throws SQLException {
+        String stocke = this.moteur.hache("secret");
+        assertTrue(this.moteur.verifie("toto", "secret", stocke));
+        // plus de calcul possible : seule l'empreinte rapide répond
+        this.moteur.close();
+        assertTrue(this.moteur.verifie("toto", "secret", stocke));
+        // autre valeur stockée, autre mot de passe ou autre login : il
+        // faudrait recalculer
+        assertThrows(SQLTransientException.class, () -> this.moteur.verifie("toto", "secret", stocke + "A"));
+        assertThrows(SQLTransientException.class, () -> this.moteur.verifie("toto", "secreT", stocke));
+        assertThrows(SQLTransientException.class, () -> this.moteur.verifie("titi", "secret", stocke));
+        assertThrows(SQLTransientException.class, () -> this.moteur.hache("secret"));
+        this.moteur.oublie("toto");
+        assertThrows(SQLTransientException.class, () -> this.moteur.verifie("toto", "secret", stocke));
+    }
+
+    @Test
+    public void associeALaBase() throws SQLException {
+        MoteurLogin associe;
+        try (ConnectionSGBD connSGBD = BaseDeTest.nouvelle(1)) {
+            associe = MoteurLogin.get(connSGBD);
+            assertSame(associe, MoteurLogin.get(connSGBD));
+            assertTrue(associe.verifie("toto", "secret", associe.hache("secret")));
+        }
+        // fermé avec la base
+        assertThrows(SQLTransientException.class, () -> associe.hache("secret"));
+    }
+
+}
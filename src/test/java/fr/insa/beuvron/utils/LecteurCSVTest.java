@@ -0,0 +1,77 @@
+/*
+    Copyright 2000-2014 Francois de Bertrand de Beuvron
+
+    This file is part of UtilsBeuvron.
+
+    UtilsBeuvron is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    UtilsBeuvron is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with UtilsBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * lecture de la fin de fichier, avec ou sans passage à la ligne final.
+ *
+ * @author francois
+ */
+public class LecteurCSVTest {
+
+    @TempDir
+    Path dossier;
+
+    private List<String> litTout(String contenu) throws IOException, StringFormatException {
+        Path fichier = this.dossier.resolve("test.csv");
+        Files.write(fichier, contenu.getBytes(StandardCharsets.UTF_8));
+        List<String> res = new ArrayList<>();
+        try (LecteurCSV in = LecteurCSV.ouvre(fichier, ',', '/')) {
+            while (in.ligneSuivante()) {
+                res.add(in.itemInt(0) + "|" + in.item(1));
+            }
+            // les appels suivants restent à la fin du fichier
+            assertFalse(in.ligneSuivante());
+            assertFalse(in.ligneSuivante());
+        }
+        return res;
+    }
+
+    @Test
+    public void avecPassageALaLigneFinal() throws IOException, StringFormatException {
+        assertEquals(List.of("1|a", "2|b"), this.litTout("1,a\n2,b\n"));
+    }
+
+    @Test
+    public void sansPassageALaLigneFinal() throws IOException, StringFormatException {
+        assertEquals(List.of("1|a", "2|b"), this.litTout("1,a\n2,b"));
+    }
+
+    @Test
+    public void fichierVide() throws IOException, StringFormatException {
+        assertEquals(List.of(), this.litTout(""));
+    }
+
+    @Test
+    public void itemsEchappes() throws IOException, StringFormatException {
+        assertEquals(List.of("1|a,b//c\nd"), this.litTout("1,a/,b////c/\nd"));
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+    Copyright 2000-2014 Francois de Bertrand de Beuvron
+
+    This file is part of UtilsBeuvron.
+
+    UtilsBeuvron is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    UtilsBeuvron is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with UtilsBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.utils.database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * réutilisation des statements préparés par
+ * {@link ConnectionSGBD#prepare(java.lang.String)}, remise à zéro au retour
+ * dans le cache, et vidage après {@link ConnectionSGBD#videCacheRequetes()}.
+ *
+ * @author francois
+ */
+public class CacheRequetesTest {
+
+    private static final AtomicInteger NUMERO = new AtomicInteger();
+
+    private static final String SELECT = "select i from t where i >= ? order by i";
+
+    private ConnectionSGBD connSGBD;
+
+    @BeforeEach
+    public void initialise() throws SQLException {
+        this.connSGBD = ConnectionSGBD.pool(ConnectionSGBD.SGBDConnus.H2InMemory,
+                "", 0, "cache" + NUMERO.incrementAndGet(), "", "", 1, 2, 5000, 60000);
+        try (ConnectionSGBD.Emprunt emp = this.connSGBD.emprunte();
+                Statement st = emp.getCon().createStatement()) {
+            st.executeUpdate("create table t (i integer)");
+            st.executeUpdate("insert into t values (1),(2),(3)");
+        }
+    }
+
+    @AfterEach
+    public void ferme() throws SQLException {
+        this.connSGBD.close();
+    }
+
+    /**
+     * @return le statement du driver derrière celui du cache
+     */
+    private static PreparedStatement reel(PreparedStatement pst) throws SQLException {
+        return pst.unwrap(PreparedStatement.class);
+    }
+
+    private static int compte(PreparedStatement pst) throws SQLException {
+        int res = 0;
+        try (ResultSet rs = pst.executeQuery()) {
+            while (rs.next()) {
+                res++;
+            }
+        }
+        return res;
+    }
+
+    @Test
+    public void reutilisation() throws SQLException {
+        CacheRequetes.Stats stats = this.connSGBD.getStatsCacheRequetes();
+        try (ConnectionSGBD.Emprunt emp = this.connSGBD.emprunte()) {
+            PreparedStatement premier;
+            ResultSet rs;
+            try (PreparedStatement pst = emp.prepare(SELECT)) {
+                premier = reel(pst);
+                pst.setInt(1, 2);
+                pst.setMaxRows(1);
+                assertEquals(1, compte(pst));
+                rs = pst.executeQuery();
+            }
+            // rendu au cache : ResultSet fermés, le statement du driver reste ouvert
+            assertTrue(rs.isClosed());
+            assertFalse(premier.isClosed());
+            assertEquals(1, stats.getEchecs());
+
+            try (PreparedStatement pst = emp.prepare(SELECT)) {
+                assertSame(premier, reel(pst));
+                assertEquals(1, stats.getSucces());
+                // paramètres effacés, réglages d'origine
+                assertThrows(SQLException.class, () -> pst.executeQuery());
+                pst.setInt(1, 2);
+                assertEquals(0, pst.getMaxRows());
+                assertEquals(2, compte(pst));
+
+                // le même ordre pendant que le premier est sorti, par la base
+                // plutôt que par l'emprunt : un autre statement du même cache
+                try (PreparedStatement imbrique = this.connSGBD.prepare(SELECT)) {
+                    assertNotSame(premier, reel(imbrique));
+                }
+            }
+            assertEquals(2, stats.getEchecs());
+            // un seul des deux est gardé
+            PreparedStatement garde;
+            try (PreparedStatement pst = emp.prepare(SELECT)) {
+                garde = reel(pst);
+            }
+            try (PreparedStatement pst = emp.prepare(SELECT)) {
+                assertSame(garde, reel(pst));
+                assertEquals(2, stats.getEchecs());
+            }
+        }
+    }
+
+    @Test
+    public void statementRendu() throws SQLException {
+        try (ConnectionSGBD.Emprunt emp = this.connSGBD.emprunte()) {
+            PreparedStatement pst = emp.prepare(SELECT);
+            pst.close();
+            assertTrue(pst.isClosed());
+            assertThrows(SQLException.class, () -> pst.setInt(1, 1));
+            // un deuxième close ne le rend pas deux fois
+            pst.close();
+        }
+        assertThrows(IllegalStateException.class, () -> this.connSGBD.prepare(SELECT));
+    }
+
+    @Test
+    public void changementDeGeneration() throws SQLException {
+        CacheRequetes.Stats stats = this.connSGBD.getStatsCacheRequetes();
+        PreparedStatement premier;
+        try (ConnectionSGBD.Emprunt emp = this.connSGBD.emprunte();
+                PreparedStatement pst = emp.prepare(SELECT)) {
+            premier = reel(pst);
+        }
+        this.connSGBD.videCacheRequetes();
+        try (ConnectionSGBD.Emprunt emp = this.connSGBD.emprunte()) {
+            try (Statement st = emp.getCon().createStatement()) {
+                st.executeUpdate("alter table t add column j integer default 0");
+            }
+            // cache vidé à la première utilisation : l'ancien statement est fermé
+            try (PreparedStatement pst = emp.prepare(SELECT)) {
+                assertTrue(premier.isClosed());
+                assertNotSame(premier, reel(pst));
+                pst.setInt(1, 1);
+                assertEquals(3, compte(pst));
+            }
+        }
+        assertEquals(0, stats.getSucces());
+        assertEquals(2, stats.getEchecs());
+    }
+
+    @Test
+    public void eviction() throws SQLException {
+        this.connSGBD.setTailleCacheRequetes(2);
+        CacheRequetes.Stats stats = this.connSGBD.getStatsCacheRequetes();
+        try (ConnectionSGBD.Emprunt emp = this.connSGBD.emprunte()) {
+            for (int i = 0; i < 3; i++) {
+                try (PreparedStatement pst = emp.prepare("select i from t where i = " + i)) {
+                    compte(pst);
+                }
+            }
+            assertEquals(1, stats.getEvictions());
+            // le moins récemment utilisé a été fermé
+            try (PreparedStatement pst = emp.prepare("select i from t where i = 0")) {
+                compte(pst);
+            }
+            assertEquals(4, stats.getEchecs());
+            try (PreparedStatement pst = emp.prepare("select i from t where i = 2")) {
+                compte(pst);
+            }
+            assertEquals(1, stats.getSucces());
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+    Copyright 2000-2014 Francois de Bertrand de Beuvron
+
+    This file is part of UtilsBeuvron.
+
+    UtilsBeuvron is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    UtilsBeuvron is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with UtilsBeuvron.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.insa.beuvron.utils.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * emprunt et retour des connections, attente bornée quand le pool est
+ * plein, remplacement des connections invalides, et fermeture.
+ *
+ * @author francois
+ */
+public class PoolConnectionsTest {
+
+    private static final AtomicInteger NUMERO = new AtomicInteger();
+
+    private String url;
+    /**
+     * toutes les connections créées par la fabrique.
+     */
+    private final List<Connection> creees = new ArrayList<>();
+    private PoolConnections pool;
+
+    @BeforeEach
+    public void initialise() throws SQLException {
+        // la base vit tant qu'une connection y est ouverte : celle-ci, fermée à la fin
+        this.url = "jdbc:h2:mem:pool" + NUMERO.incrementAndGet();
+        Connection temoin = DriverManager.getConnection(this.url);
+        this.creees.add(temoin);
+        try (Statement st = temoin.createStatement()) {
+            st.executeUpdate("create table t (i integer)");
+        }
+    }
+
+    @AfterEach
+    public void ferme() throws SQLException {
+        if (this.pool != null) {
+            this.pool.close();
+        }
+        for (Connection con : this.creees) {
+            con.close();
+        }
+    }
+
+    private PoolConnections.FabriqueConnection fabrique() {
+        return () -> {
+            Connection res = DriverManager.getConnection(this.url);
+            synchronized (this.creees) {
+                this.creees.add(res);
+            }
+            return res;
+        };
+    }
+
+    @Test
+    public void empruntEtRetour() throws SQLException {
+        this.pool = new PoolConnections(this.fabrique(), 1, 2, 200, 60000);
+        assertEquals(1, this.pool.getNbrConnections());
+        assertEquals(1, this.pool.getNbrLibres());
+
+        PoolConnections.Entree a = this.pool.emprunte();
+        PoolConnections.Entree b = this.pool.emprunte();
+        assertNotSame(a.getCon(), b.getCon());
+        assertEquals(2, this.pool.getNbrConnections());
+        assertEquals(0, this.pool.getNbrLibres());
+
+        // la dernière rendue est la première réempruntée
+        this.pool.rend(a);
+        this.pool.rend(b);
+        PoolConnections.Entree c = this.pool.emprunte();
+        assertSame(b, c);
+
+        // une transaction en cours est annulée au retour
+        c.getCon().setAutoCommit(false);
+        try (Statement st = c.getCon().createStatement()) {
+            st.executeUpdate("insert into t values (1)");
+        }
+        this.pool.rend(c);
+        c = this.pool.emprunte();
+        assertTrue(c.getCon().getAutoCommit());
+        try (Statement st = c.getCon().createStatement();
+                ResultSet rs = st.executeQuery("select count(*) from t")) {
+            rs.next();
+            assertEquals(0, rs.getInt(1));
+        }
+        this.pool.rend(c);
+        assertEquals(2, this.pool.getNbrLibres());
+    }
+
+    @Test
+    public void attente() throws Exception {
+        this.pool = new PoolConnections(this.fabrique(), 0, 1, 200, 60000);
+        PoolConnections.Entree a = this.pool.emprunte();
+
+        // pool plein : échec après attenteMaxMs
+        long debut = System.nanoTime();
+        assertThrows(SQLException.class, () -> this.pool.emprunte());
+        assertTrue(System.nanoTime() - debut >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(1, this.pool.getNbrConnections());
+
+        // un emprunt en attente obtient la connection rendue
+        PoolConnections.Entree[] obtenue = new PoolConnections.Entree[1];
+        Thread t = new Thread(() -> {
+            try {
+                obtenue[0] = this.pool.emprunte();
+            } catch (SQLException ex) {
+                // obtenue reste null
+            }
+        });
+        t.start();
+        Thread.sleep(50);
+        this.pool.rend(a);
+        t.join();
+        assertSame(a, obtenue[0]);
+        this.pool.rend(obtenue[0]);
+    }
+
+    @Test
+    public void connectionInvalide() throws SQLException {
+        this.pool = new PoolConnections(this.fabrique(), 1, 1, 200, 60000);
+        PoolConnections.Entree a = this.pool.emprunte();
+        a.getCon().close();
+        // rendue fermée : détruite, la place est libérée
+        this.pool.rend(a);
+        assertEquals(0, this.pool.getNbrConnections());
+        PoolConnections.Entree b = this.pool.emprunte();
+        assertFalse(b.getCon().isClosed());
+        this.pool.rend(b);
+
+        // fermée pendant qu'elle est libre : remplacée à l'emprunt
+        b.getCon().close();
+        PoolConnections.Entree c = this.pool.emprunte();
+        assertNotSame(b, c);
+        assertTrue(c.getCon().isValid(1));
+        assertEquals(1, this.pool.getNbrConnections());
+        this.pool.rend(c);
+    }
+
+    @Test
+    public void echecALaCreation() throws SQLException {
+        PoolConnections.FabriqueConnection normale = this.fabrique();
+        AtomicInteger nbr = new AtomicInteger();
+        PoolConnections.FabriqueConnection troisiemeEnEchec = () -> {
+            if (nbr.incrementAndGet() == 3) {
+                throw new SQLException("SGBD indisponible");
+            }
+            return normale.cree();
+        };
+        assertThrows(SQLException.class, () -> new PoolConnections(troisiemeEnEchec, 4, 4, 200, 60000));
+        // les deux connections créées avant l'échec ont été fermées
+        assertEquals(3, this.creees.size());
+        for (Connection con : this.creees.subList(1, 3)) {
+            assertTrue(con.isClosed());
+        }
+    }
+
+    @Test
+    public void fermeture() throws SQLException {
+        this.pool = new PoolConnections(this.fabrique(), 2, 2, 200, 60000);
+        PoolConnections.Entree a = this.pool.emprunte();
+        PoolConnections.Entree libre = this.pool.emprunte();
+        this.pool.rend(libre);
+        this.pool.close();
+        // les libres sont fermées, les empruntées le seront à leur retour
+        assertTrue(libre.getCon().isClosed());
+        assertFalse(a.getCon().isClosed());
+        assertThrows(SQLException.class, () -> this.pool.emprunte());
+        this.pool.rend(a);
+        assertTrue(a.getCon().isClosed());
+        assertEquals(0, this.pool.getNbrConnections());
+    }
+
+}